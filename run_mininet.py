@@ -81,8 +81,9 @@ if __name__ == '__main__':
     setLogLevel( 'info' )
 
     # Create network
-    if (len(sys.argv) != 2):
+    if (len(sys.argv) != 2 and len(sys.argv) != 3):
         print 'Specify topology single, tree, linear, assign1, or triangle'
+        print 'and optionally a comma-separated list of local controller ports'
         sys.exit(1)
     topoName = sys.argv[1]
     topoParts = topoName.split(',')
@@ -107,7 +108,15 @@ if __name__ == '__main__':
         sys.exit(1) 
 
     net = Mininet(topo=topo, autoSetMacs=True, controller=RemoteController,
-            switch=customConstructor({'ovsk' : OVSSwitch}, "ovsk,protocols=OpenFlow13"))
+            switch=customConstructor({'ovsk' : OVSSwitch}, "ovsk,protocols=OpenFlow13"),
+            build=False)
+
+    # Connect every switch to each controller sharing the switches
+    if (len(sys.argv) == 3):
+        for port in sys.argv[2].split(','):
+            net.addController(RemoteController('c'+port, ip='127.0.0.1',
+                    port=int(port)))
+    net.build()
 
     # Run network
     net.start()
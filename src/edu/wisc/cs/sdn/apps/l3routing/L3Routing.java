@@ -4,14 +4,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.wisc.cs.sdn.apps.util.Host;
+import edu.wisc.cs.sdn.apps.util.HostRegistry;
+import edu.wisc.cs.sdn.apps.util.IPipelineService;
+import edu.wisc.cs.sdn.apps.util.Prefix;
+import edu.wisc.cs.sdn.apps.util.PrefixRouteTable;
+import edu.wisc.cs.sdn.apps.util.ShortestPaths;
 
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFSwitch;
@@ -29,11 +35,25 @@ import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryListener;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
 import net.floodlightcontroller.routing.Link;
 
+/**
+ * Routes IPv4 packets by longest prefix match. Each switch is assigned the
+ * largest prefixes that contain its attached hosts and no host attached to
+ * another switch; every other switch gets one rule per prefix, forwarding
+ * toward the prefix's switch, which holds a rule per attached host. When
+ * hosts are numbered by switch (e.g., one subnet per rack) each switch needs
+ * only about one rule per other switch, instead of one per host.
+ *
+ * Paths between switches are computed once per topology change, so hosts
+ * joining or leaving only update the rules that changed.
+ */
 public class L3Routing implements IFloodlightModule, IOFSwitchListener, 
 		ILinkDiscoveryListener, IDeviceListener, IL3Routing
 {
 	public static final String MODULE_NAME = L3Routing.class.getSimpleName();
 	
+	// Shortest prefix assigned to a switch
+	private static final int MIN_PREFIX_LENGTH = 16;
+	
 	// Interface to the logging system
     private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
     
@@ -49,8 +69,23 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
     // Switch table in which rules should be installed
     private byte table;
     
-    // Map of hosts to devices
-    private Map<IDevice,Host> knownHosts;
+    // Known hosts, indexed by MAC address, IP address and switch
+    private HostRegistry knownHosts;
+    
+    // Shortest prefix assigned to a switch
+    private int minPrefixLength;
+    
+    // Incremented whenever switches or links change
+    private long topologyEpoch;
+    
+    // Topology epoch for which paths were last computed
+    private long pathEpoch;
+    
+    // Switch DPID -> destination switch DPID -> port toward the destination
+    private Map<Long,Map<Long,Integer>> nextHops;
+    
+    // Routes installed in each switch
+    private PrefixRouteTable routeTable;
 
 	/**
      * Loads dependencies and initializes data structures.
@@ -61,14 +96,22 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	{
 		log.info(String.format("Initializing %s...", MODULE_NAME));
 		Map<String,String> config = context.getConfigParams(this);
-        this.table = Byte.parseByte(config.get("table"));
+        this.table = context.getServiceImpl(IPipelineService.class).getTable(
+        		IPipelineService.ROUTING);
         
 		this.floodlightProv = context.getServiceImpl(
 				IFloodlightProviderService.class);
         this.linkDiscProv = context.getServiceImpl(ILinkDiscoveryService.class);
         this.deviceProv = context.getServiceImpl(IDeviceService.class);
         
-        this.knownHosts = new ConcurrentHashMap<IDevice,Host>();
+        this.knownHosts = new HostRegistry();
+        this.minPrefixLength = (config.containsKey("minPrefixLength")
+        		? Integer.parseInt(config.get("minPrefixLength").trim())
+        		: MIN_PREFIX_LENGTH);
+        this.topologyEpoch = 0;
+        this.pathEpoch = -1;
+        this.nextHops = new HashMap<Long,Map<Long,Integer>>();
+        this.routeTable = new PrefixRouteTable(this.table);
         
         /*********************************************************************/
         /* TODO: Initialize other class variables, if necessary              */
@@ -104,7 +147,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
      * Get a list of all known hosts in the network.
      */
     private Collection<Host> getHosts()
-    { return this.knownHosts.values(); }
+    { return this.knownHosts.getHosts(); }
 	
     /**
      * Get a map of all active switches in the network. Switch DPID is used as
@@ -126,16 +169,16 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public void deviceAdded(IDevice device) 
 	{
-		Host host = new Host(device, this.floodlightProv);
+		Host host = new Host(device);
 		// We only care about a new host if we know its IP
 		if (host.getIPv4Address() != null)
 		{
 			log.info(String.format("Host %s added", host.getName()));
-			this.knownHosts.put(device, host);
+			this.knownHosts.put(host);
 			
 			/*****************************************************************/
 			/* TODO: Update routing: add rules to route to new host          */
-			
+			this.updateRoutes();
 			/*****************************************************************/
 		}
 	}
@@ -147,19 +190,16 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public void deviceRemoved(IDevice device) 
 	{
-		Host host = this.knownHosts.get(device);
+		Host host = this.knownHosts.remove(device.getMACAddress());
 		if (null == host)
-		{
-			host = new Host(device, this.floodlightProv);
-			this.knownHosts.put(device, host);
-		}
+		{ host = new Host(device); }
 		
 		log.info(String.format("Host %s is no longer attached to a switch", 
 				host.getName()));
 		
 		/*********************************************************************/
 		/* TODO: Update routing: remove rules to route to host               */
-		
+		this.updateRoutes();
 		/*********************************************************************/
 	}
 
@@ -170,24 +210,19 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public void deviceMoved(IDevice device) 
 	{
-		Host host = this.knownHosts.get(device);
-		if (null == host)
-		{
-			host = new Host(device, this.floodlightProv);
-			this.knownHosts.put(device, host);
-		}
-		
+		Host host = new Host(device);
 		if (!host.isAttachedToSwitch())
 		{
 			this.deviceRemoved(device);
 			return;
 		}
+		this.knownHosts.put(host);
 		log.info(String.format("Host %s moved to s%d:%d", host.getName(),
-				host.getSwitch().getId(), host.getPort()));
+				host.getSwitchId(), host.getPort()));
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change rules to route to host               */
-		
+		this.updateRoutes();
 		/*********************************************************************/
 	}
 	
@@ -203,7 +238,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change routing rules for all hosts          */
-
+		this.topologyChanged();
 		/*********************************************************************/
 	}
 
@@ -219,7 +254,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change routing rules for all hosts          */
-		
+		this.topologyChanged();
 		/*********************************************************************/
 	}
 
@@ -250,10 +285,84 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change routing rules for all hosts          */
-		
+		this.topologyChanged();
 		/*********************************************************************/
 	}
 
+	/**
+	 * Recompute paths and routes after switches or links change.
+	 */
+	private synchronized void topologyChanged()
+	{
+		this.topologyEpoch++;
+		this.updateRoutes();
+	}
+	
+	/**
+	 * Bring the routing rules in every switch up to date, sending only the
+	 * rules that changed.
+	 */
+	private synchronized void updateRoutes()
+	{
+		Map<Long,IOFSwitch> switches = this.getSwitches();
+		if (this.pathEpoch != this.topologyEpoch)
+		{
+			this.nextHops = ShortestPaths.computeNextHops(switches.keySet(), 
+					this.getLinks());
+			this.pathEpoch = this.topologyEpoch;
+			log.info(String.format("Computed paths between %d switches",
+					switches.size()));
+		}
+		
+		// Only hosts attached to connected switches can be routed to
+		// Each address keeps the first switch it was seen on
+		Set<Host> hosts = new HashSet<Host>();
+		Map<Long,Long> owners = new HashMap<Long,Long>();
+		for (Host host : this.getHosts())
+		{
+			if (!host.isAttachedToSwitch() 
+					|| !switches.containsKey(host.getSwitchId()))
+			{ continue; }
+			hosts.add(host);
+			for (Integer ip : host.getIPv4Addresses())
+			{
+				long address = ip & 0xFFFFFFFFL;
+				if (!owners.containsKey(address))
+				{ owners.put(address, host.getSwitchId()); }
+			}
+		}
+		Map<Prefix,Long> prefixes = PrefixRouteTable.assignPrefixes(owners, 
+				this.minPrefixLength);
+		
+		this.routeTable.retainSwitches(switches.keySet());
+		for (IOFSwitch sw : switches.values())
+		{
+			Map<Prefix,Integer> routes = new HashMap<Prefix,Integer>();
+			
+			// The switch a prefix is assigned to routes to each of its hosts
+			for (Host host : this.knownHosts.getBySwitch(sw.getId()))
+			{
+				if (!hosts.contains(host))
+				{ continue; }
+				for (Integer ip : host.getIPv4Addresses())
+				{ routes.put(new Prefix(ip, 32), host.getPort()); }
+			}
+			
+			// Every other switch forwards the whole prefix toward it
+			Map<Long,Integer> ports = this.nextHops.get(sw.getId());
+			for (Map.Entry<Prefix,Long> prefix : prefixes.entrySet())
+			{
+				if (prefix.getValue() == sw.getId() || null == ports)
+				{ continue; }
+				Integer port = ports.get(prefix.getValue());
+				if (port != null)
+				{ routes.put(prefix.getKey(), port); }
+			}
+			
+			this.routeTable.apply(sw, routes);
+		}
+	}
+	
 	/**
 	 * Event handler called when link goes up or down.
 	 * @param update information about the change in link state
@@ -369,6 +478,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		modules.add(IFloodlightProviderService.class);
 		modules.add(ILinkDiscoveryService.class);
 		modules.add(IDeviceService.class);
+		modules.add(IPipelineService.class);
         return modules;
 	}
 }
@@ -0,0 +1,172 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which host each client IP was last sent to, so a returning
+ * client reaches the same host. The table holds at most a fixed number of
+ * clients: it is split into segments, each an access-ordered LRU map with
+ * its own lock, and the least recently used client in a segment is evicted
+ * when the segment is full. Entries also expire a fixed time after they were
+ * last used.
+ */
+public class AffinityTable
+{
+	// Number of independently locked segments; a power of two
+	private static final int SEGMENTS = 16;
+
+	private static class Client
+	{
+		final int hostIP;
+		long lastUsed;
+
+		Client(int hostIP, long lastUsed)
+		{
+			this.hostIP = hostIP;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	private class Segment extends LinkedHashMap<Integer,Client>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		Segment(int capacity)
+		{
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer,Client> eldest)
+		{
+			if (this.size() <= this.capacity)
+			{ return false; }
+			evictions.incrementAndGet();
+			return true;
+		}
+	}
+
+	private Segment[] segments;
+
+	// Milliseconds after its last use at which an entry expires
+	private long ttl;
+
+	// Lookups that found a live entry, lookups that did not, and entries
+	// evicted to make room
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong evictions;
+
+	/**
+	 * Create an affinity table.
+	 * @param capacity maximum number of clients remembered
+	 * @param ttlSeconds seconds after its last use at which an entry expires
+	 */
+	public AffinityTable(int capacity, int ttlSeconds)
+	{
+		this.ttl = ttlSeconds * 1000L;
+		this.hits = new AtomicLong(0);
+		this.misses = new AtomicLong(0);
+		this.evictions = new AtomicLong(0);
+		this.segments = new Segment[SEGMENTS];
+		int segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++)
+		{ this.segments[i] = new Segment(segmentCapacity); }
+	}
+
+	/**
+	 * Get the host a client was last sent to.
+	 * @param clientIP the client's IP address
+	 * @param now the current time, in milliseconds
+	 * @return the host's IP address, ConnectionTable.NO_HOST if the client
+	 *         is unknown or its entry expired
+	 */
+	public int lookup(int clientIP, long now)
+	{
+		Segment segment = this.segmentFor(clientIP);
+		synchronized (segment)
+		{
+			Client entry = segment.get(clientIP);
+			if (entry != null && now - entry.lastUsed > this.ttl)
+			{
+				segment.remove(clientIP);
+				entry = null;
+			}
+			if (null == entry)
+			{
+				this.misses.incrementAndGet();
+				return ConnectionTable.NO_HOST;
+			}
+			entry.lastUsed = now;
+			this.hits.incrementAndGet();
+			return entry.hostIP;
+		}
+	}
+
+	/**
+	 * Record the host a client was sent to.
+	 * @param clientIP the client's IP address
+	 * @param hostIP the host's IP address
+	 * @param now the current time, in milliseconds
+	 */
+	public void put(int clientIP, int hostIP, long now)
+	{
+		Segment segment = this.segmentFor(clientIP);
+		synchronized (segment)
+		{ segment.put(clientIP, new Client(hostIP, now)); }
+	}
+
+	/**
+	 * Forget the host a client was sent to, e.g., because the host left.
+	 * @param clientIP the client's IP address
+	 */
+	public void remove(int clientIP)
+	{
+		Segment segment = this.segmentFor(clientIP);
+		synchronized (segment)
+		{ segment.remove(clientIP); }
+	}
+
+	/**
+	 * Get the number of clients remembered.
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (Segment segment : this.segments)
+		{
+			synchronized (segment)
+			{ size += segment.size(); }
+		}
+		return size;
+	}
+
+	private Segment segmentFor(int clientIP)
+	{
+		int hash = clientIP * 0x9E3779B9;
+		return this.segments[(hash >>> 28) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * Get the number of lookups that found a live entry.
+	 */
+	public long getHits()
+	{ return this.hits.get(); }
+
+	/**
+	 * Get the number of lookups that found no live entry.
+	 */
+	public long getMisses()
+	{ return this.misses.get(); }
+
+	/**
+	 * Get the number of entries evicted to make room for new clients.
+	 */
+	public long getEvictions()
+	{ return this.evictions.get(); }
+}
@@ -0,0 +1,271 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.wisc.cs.sdn.apps.util.IHostIndexService;
+import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+import edu.wisc.cs.sdn.apps.util.TcpPackets;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Periodically probes the hosts behind each load balancer instance with a TCP
+ * SYN sent from the instance's virtual IP. A host stays in rotation while it
+ * is known to the device manager and answers each probe with a SYN-ACK.
+ */
+public class BackendHealthChecker implements Runnable
+{
+	// Interface to the logging system
+	private static Logger log = LoggerFactory.getLogger(
+			BackendHealthChecker.class.getSimpleName());
+
+	// Interface to Floodlight core for interacting with connected switches
+	private IFloodlightProviderService floodlightProv;
+
+	// Interface to the index of host IP addresses
+	private IHostIndexService hostIndex;
+
+	// Provides the load balancer instances whose hosts should be probed
+	private ILoadBalancerService loadBalancer;
+
+	// TCP port on which hosts are expected to accept connections
+	private short probePort;
+
+	// Seconds between probes
+	private int interval;
+
+	// Consecutive unanswered probes after which a host is taken out of rotation
+	private int failThreshold;
+
+	// Source port used for probes; replies to this port are ours
+	private short sourcePort;
+
+	// Outstanding probes and consecutive failures for each host
+	private Map<LoadBalancerBackend,ProbeState> probes;
+
+	// Task which sends the probes
+	private SingletonTask probeTask;
+
+	private Random random;
+
+	private static class ProbeState
+	{
+		volatile boolean outstanding;
+		volatile int failures;
+	}
+
+	/**
+	 * Create a health checker.
+	 * @param floodlightProv Floodlight module to lookup switches by DPID
+	 * @param hostIndex index used to locate hosts
+	 * @param loadBalancer provides the instances whose hosts are probed
+	 * @param probePort TCP port on which hosts accept connections
+	 * @param interval seconds between probes
+	 * @param failThreshold unanswered probes before a host is removed
+	 */
+	public BackendHealthChecker(IFloodlightProviderService floodlightProv,
+			IHostIndexService hostIndex,
+			ILoadBalancerService loadBalancer, short probePort,
+			int interval, int failThreshold)
+	{
+		this.floodlightProv = floodlightProv;
+		this.hostIndex = hostIndex;
+		this.loadBalancer = loadBalancer;
+		this.probePort = probePort;
+		this.interval = interval;
+		this.failThreshold = Math.max(1, failThreshold);
+		this.probes = new ConcurrentHashMap<LoadBalancerBackend,ProbeState>();
+		this.random = new Random();
+		// Use a port in the ephemeral range so it never clashes with a VIP
+		// service port
+		this.sourcePort = (short)(49152 + this.random.nextInt(16384));
+	}
+
+	/**
+	 * Start probing hosts.
+	 * @param executor executor on which probes should be scheduled
+	 */
+	public void start(ScheduledExecutorService executor)
+	{
+		this.probeTask = new SingletonTask(executor, this);
+		this.probeTask.reschedule(this.interval, TimeUnit.SECONDS);
+		log.info(String.format("Probing hosts on port %d every %d seconds",
+				this.probePort & 0xFFFF, this.interval));
+	}
+
+	/**
+	 * Evaluate the previous round of probes and send the next round.
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			// Forget hosts that were removed from their instances
+			Set<LoadBalancerBackend> probed = 
+					new HashSet<LoadBalancerBackend>();
+			for (LoadBalancerInstance instance : 
+					this.loadBalancer.getInstances())
+			{
+				for (LoadBalancerBackend backend : instance.getBackends())
+				{
+					this.probe(instance, backend);
+					probed.add(backend);
+				}
+			}
+			this.probes.keySet().retainAll(probed);
+		}
+		catch (RuntimeException e)
+		{ log.error("Health check round failed", e); }
+		finally
+		{ this.probeTask.reschedule(this.interval, TimeUnit.SECONDS); }
+	}
+
+	private void probe(LoadBalancerInstance instance,
+			LoadBalancerBackend backend)
+	{
+		ProbeState state = this.probes.get(backend);
+		if (null == state)
+		{
+			state = new ProbeState();
+			this.probes.put(backend, state);
+		}
+
+		// A probe sent last round that is still outstanding is a failure
+		if (state.outstanding)
+		{ state.failures++; }
+		state.outstanding = false;
+
+		// The host must be known to the device manager and attached
+		int hostIP = backend.getHostIP();
+		long hostMACAddress = this.hostIndex.getMACAddress(hostIP);
+		long switchDPID = this.hostIndex.getSwitch(hostIP);
+		IOFSwitch sw = (IHostIndexService.UNKNOWN == switchDPID ? null
+				: this.floodlightProv.getSwitch(switchDPID));
+		if (IHostIndexService.UNKNOWN == hostMACAddress || null == sw)
+		{
+			this.markUnhealthy(backend, "not attached to any switch");
+			return;
+		}
+
+		if (state.failures >= this.failThreshold)
+		{ this.markUnhealthy(backend, "did not answer health check"); }
+
+		// Send the next probe out the host's attachment point
+		byte[] hostMAC = MACAddress.valueOf(hostMACAddress).toBytes();
+		Ethernet syn = TcpPackets.buildSegment(instance.getVirtualMAC(),
+				hostMAC, instance.getVirtualIP(), backend.getHostIP(), this.sourcePort,
+				this.probePort, this.random.nextInt(), 0, TcpPackets.FLAG_SYN);
+		state.outstanding = true;
+		SwitchCommands.sendPacket(sw, (short)this.hostIndex.getPort(hostIP),
+				syn);
+	}
+
+	/**
+	 * Check whether a TCP segment sent to a virtual IP answers a probe: a
+	 * SYN+ACK or RST between the probe ports, from one of the instance's
+	 * hosts with a probe outstanding. Anything else, even between the probe
+	 * ports, is treated like any other packet.
+	 * @param instance load balancer instance whose virtual IP the packet is for
+	 * @param ethPkt the packet
+	 * @return true if the packet is a probe reply, otherwise false
+	 */
+	public boolean isReply(LoadBalancerInstance instance, Ethernet ethPkt)
+	{
+		if (ethPkt.getEtherType() != Ethernet.TYPE_IPv4)
+		{ return false; }
+		IPv4 ipPkt = (IPv4)ethPkt.getPayload();
+		if (ipPkt.getProtocol() != IPv4.PROTOCOL_TCP)
+		{ return false; }
+		TCP tcpPkt = (TCP)ipPkt.getPayload();
+		if (tcpPkt.getDestinationPort() != this.sourcePort
+				|| tcpPkt.getSourcePort() != this.probePort)
+		{ return false; }
+
+		short flags = tcpPkt.getFlags();
+		boolean synAck = ((flags & (TcpPackets.FLAG_SYN | TcpPackets.FLAG_ACK))
+				== (TcpPackets.FLAG_SYN | TcpPackets.FLAG_ACK));
+		if (!synAck && 0 == (flags & TcpPackets.FLAG_RST))
+		{ return false; }
+
+		LoadBalancerBackend backend =
+				instance.getBackend(ipPkt.getSourceAddress());
+		ProbeState state = (null == backend ? null : this.probes.get(backend));
+		return (state != null && state.outstanding);
+	}
+
+	/**
+	 * Check whether a packet sent to a virtual IP is the reply to a probe, and
+	 * if so record the host as healthy and close the half-open connection.
+	 * @param sw switch on which the packet was received
+	 * @param inPort port on which the packet was received
+	 * @param instance load balancer instance whose virtual IP the packet is for
+	 * @param ethPkt the packet
+	 * @return true if the packet was a probe reply, otherwise false
+	 */
+	public boolean handleReply(IOFSwitch sw, short inPort,
+			LoadBalancerInstance instance, Ethernet ethPkt)
+	{
+		if (!this.isReply(instance, ethPkt))
+		{ return false; }
+		IPv4 ipPkt = (IPv4)ethPkt.getPayload();
+		TCP tcpPkt = (TCP)ipPkt.getPayload();
+		LoadBalancerBackend backend =
+				instance.getBackend(ipPkt.getSourceAddress());
+
+		if ((tcpPkt.getFlags() & (TcpPackets.FLAG_SYN | TcpPackets.FLAG_ACK))
+				== (TcpPackets.FLAG_SYN | TcpPackets.FLAG_ACK))
+		{
+			ProbeState state = this.probes.get(backend);
+			if (state != null)
+			{
+				state.outstanding = false;
+				state.failures = 0;
+			}
+			if (!backend.isHealthy())
+			{
+				log.info(String.format("Host %s for %s passed health check",
+						backend, IPv4.fromIPv4Address(instance.getVirtualIP())));
+				backend.setHealthy(true);
+			}
+
+			// Reset the half-open connection so the host does not retransmit
+			Ethernet rst = TcpPackets.buildSegment(instance.getVirtualMAC(),
+					ethPkt.getSourceMACAddress(), instance.getVirtualIP(),
+					backend.getHostIP(), this.sourcePort, this.probePort,
+					tcpPkt.getAcknowledge(), 0, TcpPackets.FLAG_RST);
+			SwitchCommands.sendPacket(sw, inPort, rst);
+		}
+		return true;
+	}
+
+	/**
+	 * Take a host out of rotation because it could not be reached.
+	 * @param backend the host
+	 * @param reason why the host is unhealthy, for logging
+	 */
+	public void markUnhealthy(LoadBalancerBackend backend, String reason)
+	{
+		if (backend.isHealthy())
+		{
+			log.warn(String.format("Removing host %s from rotation: %s",
+					backend, reason));
+			backend.setHealthy(false);
+		}
+	}
+}
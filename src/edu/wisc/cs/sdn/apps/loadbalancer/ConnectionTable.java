@@ -0,0 +1,324 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+/**
+ * Connections handled by a load balancer instance, keyed by the client's IP
+ * and port and the virtual IP's port (the virtual IP and protocol are implied
+ * by the instance). Entries live in flat arrays using open addressing with
+ * linear probing, so the table holds millions of connections without
+ * allocating an object per connection.
+ */
+public class ConnectionTable
+{
+	/** Returned by lookups when there is no entry for a connection. */
+	public static final int NO_HOST = 0;
+
+	// Key marking an empty slot; no client connects from 0.0.0.0
+	private static final long EMPTY = 0;
+
+	private static final int MIN_CAPACITY = 16;
+
+	// Slots for connection keys and the data stored with each connection
+	private long[] keys;
+	private int[] hostIPs;
+	private long[] created;
+	private long[] lastSeen;
+
+	// Number of occupied slots
+	private int size;
+
+	// Number of occupied slots at which the table grows
+	private int threshold;
+
+	/**
+	 * Receives connections removed from the table by {@link #expire}.
+	 */
+	public interface ExpiryListener
+	{
+		/**
+		 * Called for each connection removed from the table.
+		 * @param key the connection's key
+		 * @param hostIP the host handling the connection
+		 */
+		public void connectionExpired(long key, int hostIP);
+	}
+
+	/**
+	 * Create a connection table.
+	 * @param initialCapacity number of connections the table can hold before
+	 *        it must grow
+	 */
+	public ConnectionTable(int initialCapacity)
+	{
+		int capacity = MIN_CAPACITY;
+		while (capacity * 3 / 4 < initialCapacity && capacity < (1 << 30))
+		{ capacity <<= 1; }
+		this.allocate(capacity);
+	}
+
+	/**
+	 * Build the key for a connection.
+	 * @param clientIP the client's IP address
+	 * @param clientPort the client's TCP port
+	 * @param virtualPort the TCP port on the virtual IP
+	 * @return the key
+	 */
+	public static long makeKey(int clientIP, short clientPort,
+			short virtualPort)
+	{
+		return (((long)clientIP) << 32) | ((clientPort & 0xFFFFL) << 16)
+				| (virtualPort & 0xFFFFL);
+	}
+
+	public static int getKeyClientIP(long key)
+	{ return (int)(key >>> 32); }
+
+	public static short getKeyClientPort(long key)
+	{ return (short)(key >>> 16); }
+
+	public static short getKeyVirtualPort(long key)
+	{ return (short)key; }
+
+	/**
+	 * Get the host handling a connection.
+	 * @param key the connection's key
+	 * @return the host's IP address, NO_HOST if the connection is unknown
+	 */
+	public synchronized int lookup(long key)
+	{
+		int slot = this.find(key);
+		return (slot < 0 ? NO_HOST : this.hostIPs[slot]);
+	}
+
+	/**
+	 * Get the time at which a connection was added to the table.
+	 * @param key the connection's key
+	 * @return the time in milliseconds, -1 if the connection is unknown
+	 */
+	public synchronized long getCreated(long key)
+	{
+		int slot = this.find(key);
+		return (slot < 0 ? -1 : this.created[slot]);
+	}
+
+	/**
+	 * Get the time at which a connection was last seen by the controller.
+	 * @param key the connection's key
+	 * @return the time in milliseconds, -1 if the connection is unknown
+	 */
+	public synchronized long getLastSeen(long key)
+	{
+		int slot = this.find(key);
+		return (slot < 0 ? -1 : this.lastSeen[slot]);
+	}
+
+	/**
+	 * Record the host handling a connection, replacing any existing entry.
+	 * @param key the connection's key
+	 * @param hostIP the host's IP address
+	 * @param now the current time in milliseconds
+	 */
+	public synchronized void put(long key, int hostIP, long now)
+	{
+		if (EMPTY == key)
+		{ throw new IllegalArgumentException("Connection key must be non-zero"); }
+
+		int slot = this.find(key);
+		if (slot >= 0)
+		{
+			this.hostIPs[slot] = hostIP;
+			this.lastSeen[slot] = now;
+			return;
+		}
+
+		if (this.size >= this.threshold)
+		{ this.allocate(this.keys.length << 1); }
+		this.insert(key, hostIP, now, now);
+	}
+
+	/**
+	 * Record that a connection was seen again.
+	 * @param key the connection's key
+	 * @param now the current time in milliseconds
+	 * @return true if the connection is in the table, otherwise false
+	 */
+	public synchronized boolean touch(long key, long now)
+	{
+		int slot = this.find(key);
+		if (slot < 0)
+		{ return false; }
+		this.lastSeen[slot] = now;
+		return true;
+	}
+
+	/**
+	 * Remove a connection.
+	 * @param key the connection's key
+	 * @return the IP address of the host that handled the connection, NO_HOST
+	 *         if the connection was unknown
+	 */
+	public synchronized int remove(long key)
+	{
+		int slot = this.find(key);
+		if (slot < 0)
+		{ return NO_HOST; }
+		int hostIP = this.hostIPs[slot];
+		this.delete(slot);
+		return hostIP;
+	}
+
+	/**
+	 * Remove all connections last seen before a cutoff.
+	 * @param cutoff time in milliseconds before which connections expire
+	 * @param listener notified of each removed connection; may be null
+	 * @return number of connections removed
+	 */
+	public synchronized int expire(long cutoff, ExpiryListener listener)
+	{
+		int removed = 0;
+		int slot = 0;
+		while (slot < this.keys.length)
+		{
+			if (this.keys[slot] != EMPTY && this.lastSeen[slot] < cutoff)
+			{
+				long key = this.keys[slot];
+				int hostIP = this.hostIPs[slot];
+				// Deleting shifts a later entry into this slot, so check the
+				// slot again before moving on
+				this.delete(slot);
+				removed++;
+				if (listener != null)
+				{ listener.connectionExpired(key, hostIP); }
+				continue;
+			}
+			slot++;
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove all connections handled by a host.
+	 * @param hostIP the host's IP address
+	 * @param listener notified of each removed connection; may be null
+	 * @return number of connections removed
+	 */
+	public synchronized int removeHost(int hostIP, ExpiryListener listener)
+	{
+		int removed = 0;
+		int slot = 0;
+		while (slot < this.keys.length)
+		{
+			if (this.keys[slot] != EMPTY && this.hostIPs[slot] == hostIP)
+			{
+				long key = this.keys[slot];
+				// Deleting shifts a later entry into this slot, so check the
+				// slot again before moving on
+				this.delete(slot);
+				removed++;
+				if (listener != null)
+				{ listener.connectionExpired(key, hostIP); }
+				continue;
+			}
+			slot++;
+		}
+		return removed;
+	}
+
+	/**
+	 * Get the number of connections in the table.
+	 */
+	public synchronized int size()
+	{ return this.size; }
+
+	private int find(long key)
+	{
+		int mask = this.keys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.keys[slot] != EMPTY)
+		{
+			if (this.keys[slot] == key)
+			{ return slot; }
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void insert(long key, int hostIP, long createdTime,
+			long lastSeenTime)
+	{
+		int mask = this.keys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.keys[slot] != EMPTY)
+		{ slot = (slot + 1) & mask; }
+		this.keys[slot] = key;
+		this.hostIPs[slot] = hostIP;
+		this.created[slot] = createdTime;
+		this.lastSeen[slot] = lastSeenTime;
+		this.size++;
+	}
+
+	/**
+	 * Empty a slot, shifting back later entries in the same probe sequence so
+	 * lookups never stop early at the hole.
+	 */
+	private void delete(int slot)
+	{
+		int mask = this.keys.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (this.keys[next] != EMPTY)
+		{
+			int home = hash(this.keys[next]) & mask;
+			// Move the entry if its home slot is not between the hole and
+			// its current slot (cyclically)
+			boolean movable = (hole <= next)
+					? (home <= hole || home > next)
+					: (home <= hole && home > next);
+			if (movable)
+			{
+				this.keys[hole] = this.keys[next];
+				this.hostIPs[hole] = this.hostIPs[next];
+				this.created[hole] = this.created[next];
+				this.lastSeen[hole] = this.lastSeen[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.keys[hole] = EMPTY;
+		this.size--;
+	}
+
+	private void allocate(int capacity)
+	{
+		long[] oldKeys = this.keys;
+		int[] oldHostIPs = this.hostIPs;
+		long[] oldCreated = this.created;
+		long[] oldLastSeen = this.lastSeen;
+
+		this.keys = new long[capacity];
+		this.hostIPs = new int[capacity];
+		this.created = new long[capacity];
+		this.lastSeen = new long[capacity];
+		this.threshold = capacity / 4 * 3;
+		this.size = 0;
+
+		if (null == oldKeys)
+		{ return; }
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldKeys[i] != EMPTY)
+			{ this.insert(oldKeys[i], oldHostIPs[i], oldCreated[i], oldLastSeen[i]); }
+		}
+	}
+
+	private static int hash(long key)
+	{
+		// Finalizer from MurmurHash3, so keys differing only in the client
+		// port spread across the table
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+}
@@ -0,0 +1,91 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Collection;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+public interface ILoadBalancerService extends IFloodlightService
+{
+	/**
+	 * Get the load balancer instances currently accepting connections.
+	 */
+	public Collection<LoadBalancerInstance> getInstances();
+
+	/**
+	 * Get the load balancer instance for a virtual IP.
+	 * @param virtualIP the virtual IP
+	 * @return the instance, null if the virtual IP is not load balanced
+	 */
+	public LoadBalancerInstance getInstance(int virtualIP);
+
+	/**
+	 * Start load balancing a virtual IP, and install its rules in every
+	 * connected switch.
+	 * @param instance the new load balancer instance
+	 * @return true if the instance was added, false if its virtual IP is
+	 *         already load balanced
+	 */
+	public boolean addInstance(LoadBalancerInstance instance);
+
+	/**
+	 * Stop load balancing a virtual IP. Its rules are withdrawn from every
+	 * switch, so new connections are refused, while existing connections
+	 * keep their rules until they go idle.
+	 * @param virtualIP the virtual IP
+	 * @return true if the instance was removed, false if the virtual IP is
+	 *         not load balanced
+	 */
+	public boolean removeInstance(int virtualIP);
+
+	/**
+	 * Add a host to a load balancer instance.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @param weight relative share of connections for the host
+	 * @return true if the host was added, false if the virtual IP is not
+	 *         load balanced or the host is already part of the instance
+	 */
+	public boolean addBackend(int virtualIP, int hostIP, int weight);
+
+	/**
+	 * Drain a host out of a load balancer instance. The host receives no new
+	 * connections, and is removed once its existing connections finish.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @return true if the host is draining, false if the virtual IP is not
+	 *         load balanced or the host is not part of the instance
+	 */
+	public boolean removeBackend(int virtualIP, int hostIP);
+
+	/**
+	 * Take a host out of rotation, e.g., for maintenance. The host receives
+	 * no new connections but stays part of the instance; its existing
+	 * connections keep their rules until they go idle or the deadline passes.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @param timeout seconds after which remaining connections are cut off,
+	 *        or 0 to let them finish in their own time
+	 * @return true if the host is draining, false if the virtual IP is not
+	 *         load balanced or the host is not part of the instance
+	 */
+	public boolean drainBackend(int virtualIP, int hostIP, int timeout);
+
+	/**
+	 * Put a drained or draining host back into rotation.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @return true if the host is back in rotation, false if the virtual IP
+	 *         is not load balanced or the host is not part of the instance
+	 */
+	public boolean restoreBackend(int virtualIP, int hostIP);
+
+	/**
+	 * Get the number of connections a host is still handling, e.g., to tell
+	 * when a draining host can be taken down.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @return the number of connections, -1 if the virtual IP is not load
+	 *         balanced or the host is not part of the instance
+	 */
+	public int getLiveConnections(int virtualIP, int hostIP);
+}
@@ -0,0 +1,159 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the idle timeout for a load balancer instance's connection rules
+ * so the instance holds about a target number of connections in each
+ * switch's flow table.
+ *
+ * By Little's law the number of connections with installed rules is the
+ * connection arrival rate times how long each connection's rules stay
+ * installed, which is the time the connection is active plus the idle
+ * timeout. The arrival rate is measured over each update interval, and the
+ * active time is learned from the durations reported when rules idle out.
+ * Both are smoothed with an exponentially weighted moving average.
+ *
+ * A connection that sends again after its rules idled out means the timeout
+ * was too short for it. When that happens to more than a small fraction of
+ * connections, the lowest timeout the estimator may choose is doubled; it
+ * decays back one second per quiet interval.
+ */
+public class IdleTimeoutEstimator
+{
+	// Weight of the newest sample in the moving averages
+	private static final double ALPHA = 0.25;
+
+	// Fraction of new connections that may be revived before the timeout
+	// floor is raised
+	private static final double REVIVAL_LIMIT = 0.01;
+
+	// Number of connections the instance should keep installed
+	private int targetRules;
+
+	// Bounds on the timeout, in seconds
+	private short minTimeout;
+	private short maxTimeout;
+
+	// Lowest timeout currently allowed, raised when connections are revived
+	private short floor;
+
+	// Smoothed arrivals per second and seconds each connection is active
+	private double arrivalRate;
+	private double activeSeconds;
+
+	// Events since the last update
+	private AtomicInteger arrivals;
+	private AtomicInteger revivals;
+
+	// Time of the last update, in milliseconds
+	private long lastUpdate;
+
+	// Timeout for new connection rules
+	private volatile short idleTimeout;
+
+	/**
+	 * Create an estimator.
+	 * @param targetRules connections the instance should keep installed
+	 * @param minTimeout lowest timeout to choose, in seconds
+	 * @param maxTimeout highest timeout to choose, in seconds
+	 * @param initialTimeout timeout to use until traffic has been measured
+	 */
+	public IdleTimeoutEstimator(int targetRules, short minTimeout,
+			short maxTimeout, short initialTimeout)
+	{
+		this.targetRules = targetRules;
+		this.minTimeout = (short)Math.max(1, minTimeout);
+		this.maxTimeout = (short)Math.max(this.minTimeout, maxTimeout);
+		this.floor = this.minTimeout;
+		this.arrivals = new AtomicInteger(0);
+		this.revivals = new AtomicInteger(0);
+		this.lastUpdate = System.currentTimeMillis();
+		this.idleTimeout = this.clamp(initialTimeout);
+	}
+
+	/**
+	 * Get the idle timeout to use for new connection rules, in seconds.
+	 */
+	public short getIdleTimeout()
+	{ return this.idleTimeout; }
+
+	/**
+	 * Get the lowest idle timeout to use, e.g., for a connection that is
+	 * closing.
+	 */
+	public short getMinTimeout()
+	{ return this.minTimeout; }
+
+	/**
+	 * Record that rules were installed for a new connection.
+	 */
+	public void connectionOpened()
+	{ this.arrivals.incrementAndGet(); }
+
+	/**
+	 * Record that a connection sent a packet after its rules idled out.
+	 */
+	public void connectionRevived()
+	{ this.revivals.incrementAndGet(); }
+
+	/**
+	 * Learn from a connection rule that idled out of a switch.
+	 * @param durationSeconds how long the rule was installed
+	 * @param idleTimeout the rule's idle timeout
+	 */
+	public synchronized void ruleExpired(int durationSeconds,
+			short idleTimeout)
+	{
+		double active = Math.max(0, durationSeconds - idleTimeout);
+		this.activeSeconds += ALPHA * (active - this.activeSeconds);
+	}
+
+	/**
+	 * Recompute the idle timeout from the traffic seen since the last update.
+	 * @param now the current time, in milliseconds
+	 */
+	public synchronized void update(long now)
+	{
+		double elapsed = (now - this.lastUpdate) / 1000.0;
+		if (elapsed <= 0)
+		{ return; }
+		this.lastUpdate = now;
+		int opened = this.arrivals.getAndSet(0);
+		int revived = this.revivals.getAndSet(0);
+		this.arrivalRate += ALPHA * (opened / elapsed - this.arrivalRate);
+
+		if (revived > REVIVAL_LIMIT * Math.max(1, opened))
+		{ this.floor = (short)Math.min(this.maxTimeout, this.floor * 2); }
+		else if (this.floor > this.minTimeout)
+		{ this.floor--; }
+
+		// With almost no arrivals any timeout meets the target
+		if (this.arrivalRate < 1e-3)
+		{
+			this.idleTimeout = this.maxTimeout;
+			return;
+		}
+		double timeout = this.targetRules / this.arrivalRate
+				- this.activeSeconds;
+		this.idleTimeout = this.clamp((int)Math.round(timeout));
+	}
+
+	private short clamp(int timeout)
+	{
+		return (short)Math.max(Math.max(this.minTimeout, this.floor),
+				Math.min(this.maxTimeout, timeout));
+	}
+
+	/**
+	 * Get the smoothed number of new connections per second.
+	 */
+	public synchronized double getArrivalRate()
+	{ return this.arrivalRate; }
+
+	/**
+	 * Get the smoothed number of seconds a connection is active.
+	 */
+	public synchronized double getActiveSeconds()
+	{ return this.activeSeconds; }
+}
@@ -1,6 +1,8 @@
 package edu.wisc.cs.sdn.apps.loadbalancer;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
@@ -8,10 +10,13 @@ import org.openflow.protocol.action.OFActionSetField;
 import org.openflow.protocol.instruction.OFInstruction;
 import org.openflow.protocol.instruction.OFInstructionApplyActions;
 import org.openflow.protocol.instruction.OFInstructionGotoTable;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFFlowRemoved;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.OFOXMField;
 import org.openflow.protocol.OFOXMFieldType;
@@ -19,11 +24,18 @@ import org.openflow.protocol.OFOXMFieldType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import edu.wisc.cs.sdn.apps.sps.InterfaceShortestPathSwitching;
-import edu.wisc.cs.sdn.apps.sps.ShortestPathSwitching;
-import edu.wisc.cs.sdn.apps.l3routing.IL3Routing;
 import edu.wisc.cs.sdn.apps.util.ArpServer;
+import edu.wisc.cs.sdn.apps.util.ControllerCluster;
+import edu.wisc.cs.sdn.apps.util.Host;
+import edu.wisc.cs.sdn.apps.util.IControllerClusterListener;
+import edu.wisc.cs.sdn.apps.util.IControllerClusterService;
+import edu.wisc.cs.sdn.apps.util.IFlowTableService;
+import edu.wisc.cs.sdn.apps.util.IHostIndexService;
+import edu.wisc.cs.sdn.apps.util.IPipelineService;
+import edu.wisc.cs.sdn.apps.util.IPortStatsService;
 import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+import edu.wisc.cs.sdn.apps.util.TcpPackets;
+import edu.wisc.cs.sdn.apps.util.TokenBucket;
 
 
 import net.floodlightcontroller.core.FloodlightContext;
@@ -37,24 +49,44 @@ import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
-import net.floodlightcontroller.devicemanager.IDevice;
-import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.core.util.SingletonTask;
 import net.floodlightcontroller.devicemanager.internal.DeviceManagerImpl;
 import net.floodlightcontroller.packet.Ethernet;
-import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.util.MACAddress;
 
 public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
-		IOFMessageListener
+		IOFMessageListener, ILoadBalancerService, IControllerClusterListener
 {
 	public static final String MODULE_NAME = LoadBalancer.class.getSimpleName();
 	
 	private static final byte TCP_FLAG_SYN = 0x02;
-	private static final byte TCP_FLAG_RST = 0x04;
 	private static final short HARD_TIMEOUT = 0;
 	private static final short IDLE_TIMEOUT = 20;
+	private static final short MIN_IDLE_TIMEOUT = 2;
+	private static final short MAX_IDLE_TIMEOUT = 60;
+	private static final int IDLE_TIMEOUT_INTERVAL = 10;
+	private static final int BYTE_RATE_INTERVAL = 5;
+	private static final double BYTE_RATE_SMOOTHING = 0.3;
+	private static final int DRAIN_CHECK_INTERVAL = 5;
+	private static final double MIN_LINK_HEADROOM = 0.01;
+	private static final int CONNECTION_EXPIRY = 300;
+	private static final int EXPIRY_INTERVAL = 60;
+	private static final int WORKER_QUEUE_CAPACITY = 1024;
+	private static final int PACKET_IN_RATE_PER_SWITCH = 1000;
+	private static final int SYN_RATE_PER_SOURCE = 50;
+	private static final int SYN_RATE_PER_VIP = 1000;
+	private static final short STALE_FLOW_TIMEOUT = 5;
+	private static final int STALE_RULE_RATE = 100;
+	private static final int RESET_RATE = 100;
+	private static final int AFFINITY_CAPACITY = 65536;
+	private static final int AFFINITY_TTL = 300;
+	
+	// Cookie of the rules dropping stale flows; its upper half is never a 
+	// virtual IP, so it cannot be mistaken for a connection rule's cookie
+	private static final long STALE_COOKIE = 0x5354414CL;
 
 	// Interface to the logging system
     private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
@@ -62,20 +94,108 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
     // Interface to Floodlight core for interacting with connected switches
     private IFloodlightProviderService floodlightProv;
     
-    // Interface to device manager service
-    private IDeviceService deviceProv;
+    // Interface to the index of host IP addresses
+    private IHostIndexService hostIndex;
+    
+    // Interface to thread pool service, used to schedule health checks
+    private IThreadPoolService threadPool;
+    
+    // Interface to port statistics, used to steer connections away from 
+    // busy links; null if the PortStats module is not loaded
+    private IPortStatsService portStats;
     
-    // Interface to L3Routing application
-	// replace with sps
-    // private IL3Routing l3RoutingApp;
+    // Interface to switch rule counts, used to hold off new connections at
+    // full switches; null if switches are assumed never to fill up
+    private IFlowTableService flowTables;
+    
+    // Interface to the controllers sharing the switches
+    private IControllerClusterService cluster;
+    
+	// Switch table of the routing application, to which packets go next
+	private byte routingTable;
 
-	private InterfaceShortestPathSwitching spsApp;
+    // Switch table holding the rules of established connections
+    private byte connectionTable;
 
-    // Switch table in which rules should be installed
-    private byte table;
+    // Switch table holding the rules that send new connections to virtual
+    // IPs to the controller
+    private byte vipTable;
+    
+    // Set of virtual IPs and the load balancer instances they correspond with;
+    // replaced, never modified, when instances are added or removed
+    private volatile Map<Integer,LoadBalancerInstance> instances;
+    
+    // Removed instances whose connections have not finished yet
+    private volatile Map<Integer,LoadBalancerInstance> drainingInstances;
+    
+    // How hosts are chosen for new connections
+    private SelectionPolicy policy;
+    
+    // Probes hosts and takes unresponsive ones out of rotation; null if
+    // health checking is disabled
+    private BackendHealthChecker healthChecker;
+    
+    // Seconds after which a connection the controller has not heard about
+    // is dropped from the connection tables
+    private int connectionExpiry;
+    
+    // Task which drops stale connections from the connection tables
+    private SingletonTask expiryTask;
+    
+    // Hands packet-ins to worker threads; null if packets are handled on
+    // Floodlight's I/O thread
+    private PacketInDispatcher dispatcher;
+    
+    // Rate limits packet-ins and SYNs before any rules are installed
+    private SynAdmissionControl admission;
+    
+    // Idle timeout for connection rules, in seconds, and the initial value
+    // when timeouts adapt to traffic
+    private short idleTimeout;
+    
+    // Connections each instance should keep installed when idle timeouts 
+    // adapt to traffic; 0 if idle timeouts are fixed
+    private int targetConnectionRules;
+    private short minIdleTimeout;
+    private short maxIdleTimeout;
+    
+    // Seconds a removed host's connections may take to finish before they
+    // are cut off; 0 if they may finish in their own time
+    private int drainTimeout;
+    
+    // Task which cuts off connections of hosts whose drain deadline passed
+    private SingletonTask drainTask;
+    
+    // How strongly link utilization counts against a host, as the exponent
+    // applied to the link's spare share
+    private double congestionWeight;
+    
+    // Task which copies edge link utilization into the hosts
+    private SingletonTask headroomTask;
+    
+    // Task which recomputes adaptive idle timeouts
+    private SingletonTask idleTimeoutTask;
+    
+    // Task which decays the byte rates of the hosts
+    private SingletonTask byteRateTask;
+    
+    // Seconds for which a stale flow's packets are dropped in the switch
+    private short staleFlowTimeout;
+    
+    // Limits how many stale flows get a drop rule; null if no drop rules 
+    // are installed
+    private TokenBucket staleRuleLimiter;
+    
+    // Limits how many stale segments are answered with a reset; null if
+    // resets are disabled
+    private TokenBucket resetLimiter;
     
-    // Set of virtual IPs and the load balancer instances they correspond with
-    private Map<Integer,LoadBalancerInstance> instances;
+    // Stale flows dropped in a switch, and resets sent for them
+    private AtomicLong staleFlows;
+    private AtomicLong resetsSent;
+    
+    // SYNs dropped because a switch had no room for the connection's rules
+    private AtomicLong deferredSyns;
 
 	private  static final boolean isLogging = true;
 
@@ -88,12 +208,17 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	{
 		log.info(String.format("Initializing %s...", MODULE_NAME));
 		
-		// Obtain table number from config
+		// Obtain table numbers from the pipeline
 		Map<String,String> config = context.getConfigParams(this);
-        this.table = Byte.parseByte(config.get("table"));
+		IPipelineService pipeline = context.getServiceImpl(
+				IPipelineService.class);
+        this.connectionTable = pipeline.getTable(IPipelineService.CONNECTIONS);
+        this.vipTable = pipeline.getTable(IPipelineService.VIPS);
+        this.routingTable = pipeline.getTable(IPipelineService.ROUTING);
         
         // Create instances from config
-        this.instances = new HashMap<Integer,LoadBalancerInstance>();
+        Map<Integer,LoadBalancerInstance> configInstances = 
+        		new HashMap<Integer,LoadBalancerInstance>();
         String[] instanceConfigs = config.get("instances").split(";");
         for (String instanceConfig : instanceConfigs)
         {
@@ -105,14 +230,134 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
         	}
         	LoadBalancerInstance instance = new LoadBalancerInstance(
         			configItems[0], configItems[1], configItems[2].split(","));
-            this.instances.put(instance.getVirtualIP(), instance);
+            configInstances.put(instance.getVirtualIP(), instance);
             log.info("Added load balancer instance: " + instance);
         }
         
+        // Obtain client affinity settings from config; affinity is a list of
+        // virtual IPs, or "all"
+        if (config.containsKey("affinity"))
+        {
+        	int capacity = parseConfigInt(config, "affinityCapacity", 
+        			AFFINITY_CAPACITY);
+        	int ttl = parseConfigInt(config, "affinityTtl", AFFINITY_TTL);
+        	String affinity = config.get("affinity").trim();
+        	for (LoadBalancerInstance instance : configInstances.values())
+        	{
+        		if (affinity.equals("all") || Arrays.asList(affinity.split(","))
+        				.contains(IPv4.fromIPv4Address(instance.getVirtualIP())))
+        		{
+        			instance.setAffinity(new AffinityTable(capacity, ttl));
+        			log.info("Enabled client affinity for " 
+        					+ IPv4.fromIPv4Address(instance.getVirtualIP()));
+        		}
+        	}
+        }
+        this.instances = Collections.unmodifiableMap(configInstances);
+        this.drainingInstances = Collections.emptyMap();
+        
+        // Obtain idle timeout settings from config; a target number of
+        // connection rules makes idle timeouts adapt to each instance's 
+        // traffic
+        this.idleTimeout = (short)parseConfigInt(config, "idleTimeout", 
+        		IDLE_TIMEOUT);
+        this.targetConnectionRules = parseConfigInt(config, 
+        		"targetConnectionRules", 0);
+        this.minIdleTimeout = (short)parseConfigInt(config, "minIdleTimeout",
+        		MIN_IDLE_TIMEOUT);
+        this.maxIdleTimeout = (short)parseConfigInt(config, "maxIdleTimeout",
+        		MAX_IDLE_TIMEOUT);
+        for (LoadBalancerInstance instance : this.instances.values())
+        { instance.setIdleTimeouts(this.newIdleTimeoutEstimator()); }
+        
+        this.drainTimeout = parseConfigInt(config, "drainTimeout", 0);
+        
+        // Obtain host selection policy from config
+        this.policy = SelectionPolicy.ROUND_ROBIN;
+        if (config.containsKey("policy"))
+        {
+        	SelectionPolicy configPolicy = 
+        			SelectionPolicy.fromConfig(config.get("policy"));
+        	if (null == configPolicy)
+        	{ log.error("Ignoring unknown policy: " + config.get("policy")); }
+        	else
+        	{ this.policy = configPolicy; }
+        }
+        log.info("Using host selection policy: " + this.policy);
+        
 		this.floodlightProv = context.getServiceImpl(
 				IFloodlightProviderService.class);
-        this.deviceProv = context.getServiceImpl(IDeviceService.class);
-        this.spsApp = context.getServiceImpl(InterfaceShortestPathSwitching.class);
+        this.hostIndex = context.getServiceImpl(IHostIndexService.class);
+        this.threadPool = context.getServiceImpl(IThreadPoolService.class);
+        this.portStats = context.getServiceImpl(IPortStatsService.class);
+        this.flowTables = context.getServiceImpl(IFlowTableService.class);
+        this.cluster = ControllerCluster.getService(context);
+        this.congestionWeight = (config.containsKey("congestionWeight") 
+        		? Double.parseDouble(config.get("congestionWeight").trim()) 
+        		: 1.0);
+        if (SelectionPolicy.LEAST_CONGESTED == this.policy 
+        		&& null == this.portStats)
+        {
+        	throw new FloodlightModuleException(
+        			"The congestion policy needs the PortStats module");
+        }
+        
+        this.connectionExpiry = parseConfigInt(config, "connectionExpiry", 
+        		CONNECTION_EXPIRY);
+        
+        // Obtain worker settings from config; 0 workers handles packets on
+        // Floodlight's I/O thread
+        int workers = parseConfigInt(config, "workers", 
+        		Runtime.getRuntime().availableProcessors());
+        if (workers > 0)
+        {
+        	this.dispatcher = new PacketInDispatcher(MODULE_NAME, workers, 
+        			parseConfigInt(config, "workerQueueCapacity", 
+        					WORKER_QUEUE_CAPACITY),
+        			new PacketInDispatcher.Handler() {
+        				@Override
+        				public void handlePacketIn(IOFSwitch sw, 
+        						OFPacketIn pktIn, Ethernet ethPkt)
+        				{ LoadBalancer.this.handlePacketIn(sw, pktIn, ethPkt); }
+        			});
+        }
+        
+        // Obtain rate limits from config; a rate of 0 disables the limit
+        this.admission = new SynAdmissionControl(
+        		parseConfigInt(config, "packetInRatePerSwitch", 
+        				PACKET_IN_RATE_PER_SWITCH),
+        		parseConfigInt(config, "synRatePerSource", SYN_RATE_PER_SOURCE),
+        		parseConfigInt(config, "synRatePerVip", SYN_RATE_PER_VIP));
+        
+        // Obtain stale flow handling settings from config
+        this.staleFlowTimeout = (short)parseConfigInt(config, 
+        		"staleFlowTimeout", STALE_FLOW_TIMEOUT);
+        int staleRuleRate = parseConfigInt(config, "staleRuleRate", 
+        		STALE_RULE_RATE);
+        if (staleRuleRate > 0)
+        { 
+        	this.staleRuleLimiter = new TokenBucket(staleRuleRate, 
+        			staleRuleRate); 
+        }
+        int resetRate = parseConfigInt(config, "resetRate", RESET_RATE);
+        if (resetRate > 0)
+        { this.resetLimiter = new TokenBucket(resetRate, resetRate); }
+        this.staleFlows = new AtomicLong(0);
+        this.resetsSent = new AtomicLong(0);
+        this.deferredSyns = new AtomicLong(0);
+        
+        // Obtain health check settings from config; an interval of 0 (the 
+        // default) disables health checks
+        int healthCheckInterval = parseConfigInt(config, 
+        		"healthCheckInterval", 0);
+        if (healthCheckInterval > 0)
+        {
+        	this.healthChecker = new BackendHealthChecker(this.floodlightProv,
+        			this.hostIndex, this, 
+        			(short)parseConfigInt(config, "healthCheckPort", 80),
+        			healthCheckInterval, 
+        			parseConfigInt(config, "healthCheckFailures", 1));
+        }
         
         /*********************************************************************/
         /* TODO: Initialize other class variables, if necessary              */
@@ -128,8 +373,104 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 			throws FloodlightModuleException 
 	{
 		log.info(String.format("Starting %s...", MODULE_NAME));
+		
 		this.floodlightProv.addOFSwitchListener(this);
 		this.floodlightProv.addOFMessageListener(OFType.PACKET_IN, this);
+		this.floodlightProv.addOFMessageListener(OFType.FLOW_REMOVED, this);
+		this.cluster.addListener(this);
+		if (this.dispatcher != null)
+		{ this.dispatcher.start(); }
+		
+		// Let ARP requests for the virtual IPs be answered like any host's
+		for (LoadBalancerInstance instance : this.instances.values())
+		{ this.addVirtualHost(instance); }
+		if (this.healthChecker != null)
+		{ this.healthChecker.start(this.threadPool.getScheduledExecutor()); }
+		
+		this.expiryTask = new SingletonTask(
+				this.threadPool.getScheduledExecutor(), new Runnable() {
+					@Override
+					public void run()
+					{
+						try
+						{ expireConnections(); }
+						finally
+						{ expiryTask.reschedule(EXPIRY_INTERVAL, TimeUnit.SECONDS); }
+					}
+				});
+		this.expiryTask.reschedule(EXPIRY_INTERVAL, TimeUnit.SECONDS);
+		
+		this.drainTask = new SingletonTask(
+				this.threadPool.getScheduledExecutor(), new Runnable() {
+					@Override
+					public void run()
+					{
+						try
+						{ enforceDrainDeadlines(); }
+						finally
+						{ drainTask.reschedule(DRAIN_CHECK_INTERVAL, TimeUnit.SECONDS); }
+					}
+				});
+		this.drainTask.reschedule(DRAIN_CHECK_INTERVAL, TimeUnit.SECONDS);
+		
+		if (SelectionPolicy.LEAST_CONGESTED == this.policy)
+		{
+			this.headroomTask = new SingletonTask(
+					this.threadPool.getScheduledExecutor(), new Runnable() {
+						@Override
+						public void run()
+						{
+							try
+							{ updateLinkHeadroom(); }
+							finally
+							{
+								headroomTask.reschedule(portStats.getInterval(), 
+										TimeUnit.SECONDS);
+							}
+						}
+					});
+			this.headroomTask.reschedule(this.portStats.getInterval(), 
+					TimeUnit.SECONDS);
+		}
+		
+		if (SelectionPolicy.LEAST_BYTES == this.policy)
+		{
+			this.byteRateTask = new SingletonTask(
+					this.threadPool.getScheduledExecutor(), new Runnable() {
+						@Override
+						public void run()
+						{
+							try
+							{ updateByteRates(); }
+							finally
+							{
+								byteRateTask.reschedule(BYTE_RATE_INTERVAL, 
+										TimeUnit.SECONDS);
+							}
+						}
+					});
+			this.byteRateTask.reschedule(BYTE_RATE_INTERVAL, TimeUnit.SECONDS);
+		}
+		
+		if (this.targetConnectionRules > 0)
+		{
+			this.idleTimeoutTask = new SingletonTask(
+					this.threadPool.getScheduledExecutor(), new Runnable() {
+						@Override
+						public void run()
+						{
+							try
+							{ updateIdleTimeouts(); }
+							finally
+							{
+								idleTimeoutTask.reschedule(IDLE_TIMEOUT_INTERVAL,
+										TimeUnit.SECONDS);
+							}
+						}
+					});
+			this.idleTimeoutTask.reschedule(IDLE_TIMEOUT_INTERVAL, 
+					TimeUnit.SECONDS);
+		}
 		
 		/*********************************************************************/
 		/* TODO: Perform other tasks, if necessary                           */
@@ -145,6 +486,8 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	public void switchAdded(long switchId) 
 	{
 		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+		if (null == sw || !this.cluster.isLocal(switchId))
+		{ return; }
 		log.info(String.format("Switch s%d added", switchId));
 		
 		/*********************************************************************/
@@ -154,54 +497,64 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		/*       (2) ARP packets to the controller, and                      */
 		/*       (3) all other packets to the next rule table in the switch  */
 		for (int vIP: instances.keySet()) {
-			// (1): packets from new connections to each virtual loadbalancer ip to controller
-			OFMatch vipMatch = new OFMatch()
-					.setDataLayerType(OFMatch.ETH_TYPE_IPV4)
-					.setNetworkProtocol(OFMatch.IP_PROTO_TCP)
-					.setNetworkDestination(OFMatch.ETH_TYPE_IPV4, vIP);
-
-			OFAction vipAction = new OFActionOutput(OFPort.OFPP_CONTROLLER);
-			OFInstruction vipInstruction = new OFInstructionApplyActions(Arrays.asList(vipAction));
-			OFInstructionGotoTable gotoTable = new OFInstructionGotoTable(ShortestPathSwitching.table);
-			SwitchCommands.installRule(
-					sw,
-					table,
-					(short)(SwitchCommands.DEFAULT_PRIORITY + 1),
-					vipMatch,
-					Arrays.asList(vipInstruction)
-			);
-
-			// (2): arp to controller
-			OFMatch arpMatch = new OFMatch()
-					.setDataLayerType(OFMatch.ETH_TYPE_ARP)
-					.setNetworkDestination(OFMatch.ETH_TYPE_IPV4, vIP);
-
-			OFAction arpAction = new OFActionOutput(OFPort.OFPP_CONTROLLER);
-			OFInstruction arpInstruction = new OFInstructionApplyActions(Arrays.asList(arpAction));
-			SwitchCommands.installRule(
-					sw,
-					table,
-					SwitchCommands.DEFAULT_PRIORITY,
-					arpMatch,
-					Arrays.asList(arpInstruction)
-			);
+			this.installVirtualIPRule(sw, vIP);
 		}
 
-		// (3). other to next rule table
-//		OFMatch otherMatch = new OFMatch()
-//				.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-		OFInstruction otherInstruction = new OFInstructionGotoTable(ShortestPathSwitching.table);
+		// (3). other packets pass through the pipeline manager's chain of
+		// lowest-priority rules on to the routing table
+		/*********************************************************************/
+	}
+	
+	/**
+	 * Install the rule that sends new connections to a virtual IP to the
+	 * controller. ARP requests for it are answered by ArpServer.
+	 * @param sw the switch in which to install the rule
+	 * @param virtualIP the virtual IP
+	 */
+	private void installVirtualIPRule(IOFSwitch sw, int virtualIP)
+	{
+		// (1): packets from new connections to each virtual loadbalancer ip to controller
+		OFAction vipAction = new OFActionOutput(OFPort.OFPP_CONTROLLER);
+		OFInstruction vipInstruction = new OFInstructionApplyActions(Arrays.asList(vipAction));
 		SwitchCommands.installRule(
 				sw,
-				table,
-				SwitchCommands.DEFAULT_PRIORITY,
-				new OFMatch(),
-				Arrays.asList(otherInstruction)
+				this.vipTable,
+				(short)(SwitchCommands.DEFAULT_PRIORITY + 1),
+				getVirtualIPMatch(virtualIP),
+				Arrays.asList(vipInstruction)
 		);
-		// Installing rules for any other packets that needs to go to the next table;
-		OFInstructionGotoTable changeTableInst = new OFInstructionGotoTable(ShortestPathSwitching.table);
-		SwitchCommands.installRule(sw, table, SwitchCommands.DEFAULT_PRIORITY, new OFMatch(), Arrays.asList((OFInstruction) changeTableInst));
-		/*********************************************************************/
+	}
+	
+	/**
+	 * Remove the rule that sends new connections to a virtual IP to the
+	 * controller. Connection rules are left in place.
+	 * @param sw the switch from which to remove the rule
+	 * @param virtualIP the virtual IP
+	 */
+	private void removeVirtualIPRule(IOFSwitch sw, int virtualIP)
+	{
+		SwitchCommands.removeRule(sw, this.vipTable, 
+				(short)(SwitchCommands.DEFAULT_PRIORITY + 1), 
+				getVirtualIPMatch(virtualIP));
+	}
+	
+	/**
+	 * Record an instance's virtual IP in the host index, so ARP requests for
+	 * it are answered with the instance's virtual MAC.
+	 * @param instance the load balancer instance
+	 */
+	private void addVirtualHost(LoadBalancerInstance instance)
+	{
+		this.hostIndex.addVirtualHost(instance.getVirtualIP(), 
+				MACAddress.valueOf(instance.getVirtualMAC()).toLong());
+	}
+	
+	private static OFMatch getVirtualIPMatch(int virtualIP)
+	{
+		return new OFMatch()
+				.setDataLayerType(OFMatch.ETH_TYPE_IPV4)
+				.setNetworkProtocol(OFMatch.IP_PROTO_TCP)
+				.setNetworkDestination(OFMatch.ETH_TYPE_IPV4, virtualIP);
 	}
 	
 	/**
@@ -215,16 +568,94 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	public net.floodlightcontroller.core.IListener.Command receive(
 			IOFSwitch sw, OFMessage msg, FloodlightContext cntx) 
 	{
-		// We're only interested in packet-in messages
+		// Switches owned by another controller are its business
+		if (!this.cluster.isLocal(sw.getId()))
+		{ return Command.CONTINUE; }
+		
+		// Connection rules report back when they expire
+		if (msg.getType() == OFType.FLOW_REMOVED)
+		{ return this.handleFlowRemoved(sw, (OFFlowRemoved)msg); }
+		
+		// Otherwise, we're only interested in packet-in messages
 		if (msg.getType() != OFType.PACKET_IN)
 		{ return Command.CONTINUE; }
 		OFPacketIn pktIn = (OFPacketIn)msg;
 		
-		// Handle the packet
+		// Only packets for a virtual IP are ours
 		Ethernet ethPkt = new Ethernet();
 		ethPkt.deserialize(pktIn.getPacketData(), 0,
 				pktIn.getPacketData().length);
+		LoadBalancerInstance loadBalancer = this.getTargetInstance(ethPkt);
+		if (null == loadBalancer)
+		{ return Command.CONTINUE; }
 		
+		// Shed load before queueing, so a flood cannot delay legitimate SYNs;
+		// SYNs a source or virtual IP limit rejects are not charged to the
+		// switch, and replies to health checks are never shed, so a flood
+		// cannot take healthy hosts out of rotation
+		boolean probeReply = (this.healthChecker != null 
+				&& this.healthChecker.isReply(loadBalancer, ethPkt));
+		if (!probeReply)
+		{
+			if (isSyn(ethPkt))
+			{
+				IPv4 ipPkt = (IPv4)ethPkt.getPayload();
+				if (!this.admission.admitSyn(ipPkt.getSourceAddress(), 
+						loadBalancer.getVirtualIP()))
+				{ return Command.STOP; }
+			}
+			if (!this.admission.admitPacketIn(sw.getId()))
+			{ return Command.STOP; }
+		}
+		
+		// Handle the packet, on a worker thread if there are any
+		if (this.dispatcher != null)
+		{ this.dispatcher.dispatch(sw, pktIn, ethPkt); }
+		else
+		{ this.handlePacketIn(sw, pktIn, ethPkt); }
+		return Command.CONTINUE;
+	}
+	
+	/**
+	 * Get the load balancer instance to which a packet is addressed.
+	 * @param ethPkt the packet
+	 * @return the instance for a TCP segment sent to a virtual IP, otherwise
+	 *         null
+	 */
+	private LoadBalancerInstance getTargetInstance(Ethernet ethPkt)
+	{
+		if (ethPkt.getEtherType() != Ethernet.TYPE_IPv4)
+		{ return null; }
+		IPv4 ipPkt = (IPv4)ethPkt.getPayload();
+		if (ipPkt.getProtocol() != IPv4.PROTOCOL_TCP)
+		{ return null; }
+		return this.instances.get(ipPkt.getDestinationAddress());
+	}
+	
+	/**
+	 * Checks whether a packet is a TCP SYN that opens a connection.
+	 * @param ethPkt the packet
+	 * @return true if the packet is a TCP segment with only SYN set
+	 */
+	private static boolean isSyn(Ethernet ethPkt)
+	{
+		if (ethPkt.getEtherType() != Ethernet.TYPE_IPv4)
+		{ return false; }
+		IPv4 ipPkt = (IPv4)ethPkt.getPayload();
+		if (ipPkt.getProtocol() != IPv4.PROTOCOL_TCP)
+		{ return false; }
+		return (((TCP)ipPkt.getPayload()).getFlags() == TCP_FLAG_SYN);
+	}
+	
+	/**
+	 * Handle a packet sent to a virtual IP.
+	 * @param sw switch on which the packet was received
+	 * @param pktIn the packet-in message
+	 * @param ethPkt the deserialized packet
+	 */
+	private void handlePacketIn(IOFSwitch sw, OFPacketIn pktIn, 
+			Ethernet ethPkt)
+	{
 		/*********************************************************************/
 		/* TODO: Send an ARP reply for ARP requests for virtual IPs; for TCP */
 		/*       SYNs sent to a virtual IP, select a host and install        */
@@ -233,145 +664,977 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		/*       reset; ignore all other packets                             */
 
 		/*********************************************************************/
+		// ARP requests for virtual IPs are answered by ArpServer
 		short ethernetType = ethPkt.getEtherType();
-		if (ethernetType == Ethernet.TYPE_ARP) {
-			ARP arpPkt = (ARP) ethPkt.getPayload();
-
-			// return if not an ARP for IPv4 addr
-			if (arpPkt.getOpCode() != ARP.OP_REQUEST || arpPkt.getProtocolType() != ARP.PROTO_TYPE_IP) {
-				return Command.CONTINUE;
+		if (ethernetType == Ethernet.TYPE_IPv4) {
+			IPv4 ipPkt = (IPv4) ethPkt.getPayload();
+			if (ipPkt.getProtocol() != IPv4.PROTOCOL_TCP) {
+				return;
 			}
 
-			int vIP = IPv4.toIPv4Address(arpPkt.getTargetProtocolAddress());
-			LoadBalancerInstance loadBalancer = this.instances.get(vIP);
+			LoadBalancerInstance loadBalancer = instances.get(ipPkt.getDestinationAddress());
 			if (loadBalancer == null) {
-				return Command.CONTINUE;
+				return;
 			}
 
-			if (isLogging)
-				log.info(String.format("Received ARP request for virtual IP %s from %s",
-						IPv4.fromIPv4Address(vIP),
-						MACAddress.valueOf(arpPkt.getSenderHardwareAddress())));
-
-			if (loadBalancer == null) {
-				return Command.CONTINUE;
-			}
-
-			ARP replyARP = new ARP()
-					.setHardwareType(ARP.HW_TYPE_ETHERNET)
-					.setProtocolType(ARP.PROTO_TYPE_IP)
-					.setHardwareAddressLength(arpPkt.getHardwareAddressLength())
-					.setProtocolAddressLength(arpPkt.getProtocolAddressLength())
-					.setOpCode(ARP.OP_REPLY)
-					.setSenderProtocolAddress(vIP)
-					.setSenderHardwareAddress(loadBalancer.getVirtualMAC())
-					.setTargetHardwareAddress(arpPkt.getSenderHardwareAddress())
-					.setTargetProtocolAddress(arpPkt.getSenderProtocolAddress());
-
-			Ethernet replyEther = (Ethernet) new Ethernet()
-					.setEtherType(Ethernet.TYPE_ARP)
-					.setDestinationMACAddress(ethPkt.getSourceMACAddress())
-					.setSourceMACAddress(loadBalancer.getVirtualMAC())
-					.setPayload(replyARP);
-
-			if (isLogging)
-				log.info(String.format("Sending ARP reply %s -> %s",
-						IPv4.fromIPv4Address(vIP),
-						MACAddress.valueOf(loadBalancer.getVirtualMAC())));
-
-			SwitchCommands.sendPacket(sw, (short) pktIn.getInPort(), replyEther);
-		} else if (ethernetType == Ethernet.TYPE_IPv4) {
-			IPv4 ipPkt = (IPv4) ethPkt.getPayload();
-			if (ipPkt.getProtocol() != IPv4.PROTOCOL_TCP) {
-				return Command.CONTINUE;
+			// replies to health check probes are addressed to the virtual IP
+			if (this.healthChecker != null && this.healthChecker.handleReply(
+					sw, (short) pktIn.getInPort(), loadBalancer, ethPkt)) {
+				return;
 			}
 
 			TCP tcpPkt = (TCP) ipPkt.getPayload();
 			if (tcpPkt.getFlags() == TCP_FLAG_SYN) {
 				if (isLogging)
 					log.info("TCP_FLAG_SYN Rule");
-
-				LoadBalancerInstance loadBalancer = instances.get(ipPkt.getDestinationAddress());
-				int hostIP = loadBalancer.getNextHostIP();
-				byte[] hostMAC = this.getHostMACAddress(hostIP);
-
-				// client to servers
-				OFMatch csMatch = new OFMatch()
-						.setDataLayerType(OFMatch.ETH_TYPE_IPV4)
-						.setNetworkProtocol(OFMatch.IP_PROTO_TCP)
-						.setNetworkSource(ipPkt.getSourceAddress())
-						.setNetworkDestination(ipPkt.getDestinationAddress())
-						.setTransportSource(tcpPkt.getSourcePort())
-						.setTransportDestination(tcpPkt.getDestinationPort());
-
-				OFInstruction defaultInstruction = new OFInstructionGotoTable(ShortestPathSwitching.table);
-
-				List<OFAction> csActions = new ArrayList<OFAction>();
-				csActions.add(new OFActionSetField(
-						OFOXMFieldType.ETH_DST,
-						hostMAC
-				));
-				csActions.add(new OFActionSetField(
-						OFOXMFieldType.IPV4_DST,
-						hostIP
-				));
-				OFInstruction csInstruction = new OFInstructionApplyActions(csActions);
-
-				SwitchCommands.installRule(
-						sw,
-						table,
-						(short) (SwitchCommands.DEFAULT_PRIORITY + 2),
-						csMatch,
-						Arrays.asList(csInstruction, defaultInstruction),
-						SwitchCommands.NO_TIMEOUT,
-						IDLE_TIMEOUT
-				);
-
-				// servers to client
-				OFMatch scMatch = new OFMatch()
-						.setDataLayerType(OFMatch.ETH_TYPE_IPV4)
-						.setNetworkProtocol(OFMatch.IP_PROTO_TCP)
-						.setNetworkSource(hostIP)
-						.setNetworkDestination(ipPkt.getSourceAddress())
-						.setTransportSource(tcpPkt.getDestinationPort())
-						.setTransportDestination(tcpPkt.getSourcePort());
-
-				List<OFAction> scActions = new ArrayList<OFAction>();
-				scActions.add(new OFActionSetField(
-						OFOXMFieldType.IPV4_SRC,
-						ipPkt.getDestinationAddress()
-				));
-
-				scActions.add(new OFActionSetField(
-						OFOXMFieldType.ETH_SRC,
-						instances.get(ipPkt.getDestinationAddress()).getVirtualMAC()
-				));
-
-				OFInstruction scInstruction = new OFInstructionApplyActions(scActions);
-
-				SwitchCommands.installRule(
-						sw,
-						table,
-						(short) (SwitchCommands.DEFAULT_PRIORITY + 2),
-						scMatch,
-						Arrays.asList(scInstruction, defaultInstruction),
-						SwitchCommands.NO_TIMEOUT,
-						IDLE_TIMEOUT
-				);
+				this.handleSyn(sw, loadBalancer, ipPkt, tcpPkt);
 			} else {
-				// for other TCPs
-				if (isLogging)
-					log.info("Other TCP Rule");
-
-				ipPkt.setFlags(TCP_FLAG_RST);
-				ipPkt.setDestinationAddress(ipPkt.getSourceAddress());
-				ipPkt.setSourceAddress(ipPkt.getDestinationAddress());
-				ethPkt.setDestinationMACAddress(ethPkt.getSourceMACAddress());
-				ethPkt.setSourceMACAddress(ethPkt.getSourceMACAddress());
-				SwitchCommands.sendPacket(sw, (short) pktIn.getInPort(), ethPkt);
+				this.handleStaleSegment(sw, (short) pktIn.getInPort(), loadBalancer, ethPkt);
 			}
 		}
-		return Command.CONTINUE;
+	}
+	
+	/**
+	 * Choose a host for a new connection and install its rewrite rules.
+	 * @param sw switch on which the SYN was received
+	 * @param loadBalancer the load balancer instance the SYN was sent to
+	 * @param ipPkt the SYN's IP header
+	 * @param tcpPkt the SYN's TCP header
+	 */
+	private void handleSyn(IOFSwitch sw, LoadBalancerInstance loadBalancer,
+			IPv4 ipPkt, TCP tcpPkt)
+	{
+		// A retransmitted SYN keeps the host chosen for the first one
+		ConnectionTable connections = loadBalancer.getConnections();
+		long connectionKey = ConnectionTable.makeKey(ipPkt.getSourceAddress(),
+				tcpPkt.getSourcePort(), tcpPkt.getDestinationPort());
+		long now = System.currentTimeMillis();
+		LoadBalancerBackend backend = null;
+		byte[] hostMAC = null;
+		boolean newConnection = true;
+		int knownHostIP = connections.lookup(connectionKey);
+		if (knownHostIP != ConnectionTable.NO_HOST)
+		{
+			backend = loadBalancer.getBackend(knownHostIP);
+			if (backend != null)
+			{ hostMAC = this.getHostMACAddress(knownHostIP); }
+			newConnection = (null == hostMAC);
+		}
+
+		// Otherwise send a returning client to the host it used last time
+		AffinityTable affinity = loadBalancer.getAffinity();
+		int clientIP = ipPkt.getSourceAddress();
+		if (null == hostMAC && affinity != null)
+		{
+			int affinityHostIP = affinity.lookup(clientIP, now);
+			if (affinityHostIP != ConnectionTable.NO_HOST)
+			{
+				backend = loadBalancer.getBackend(affinityHostIP);
+				if (backend != null && backend.isAvailable())
+				{ hostMAC = this.getHostMACAddress(affinityHostIP); }
+				else
+				{ affinity.remove(clientIP); }
+			}
+		}
+
+		// Otherwise choose an available host whose MAC address we know
+		for (int i = 0; i < loadBalancer.getBackends().size() 
+				&& null == hostMAC; i++)
+		{
+			backend = loadBalancer.selectBackend(this.policy);
+			if (null == backend)
+			{ break; }
+			hostMAC = this.getHostMACAddress(backend.getHostIP());
+			// The health checker brings the host back once it reappears
+			if (null == hostMAC && this.healthChecker != null)
+			{ this.healthChecker.markUnhealthy(backend, "MAC address unknown"); }
+		}
+		if (null == hostMAC)
+		{
+			log.error(String.format("No available host for virtual IP %s",
+					IPv4.fromIPv4Address(loadBalancer.getVirtualIP())));
+			return;
+		}
+
+		int hostIP = backend.getHostIP();
+		
+		// Rules a full switch refuses would leave the connection dead; drop
+		// the SYN instead, and the client retries once rules are evicted
+		if (this.flowTables != null && newConnection 
+				&& (!this.flowTables.hasRoom(sw.getId()) 
+					|| !this.flowTables.hasRoom(
+							this.getHostSwitch(hostIP, sw).getId())))
+		{
+			this.deferredSyns.incrementAndGet();
+			log.debug(String.format("No room for a connection to %s at s%d",
+					IPv4.fromIPv4Address(loadBalancer.getVirtualIP()), 
+					sw.getId()));
+			return;
+		}
+		
+		this.installConnectionRules(sw, loadBalancer, ipPkt.getSourceAddress(),
+				tcpPkt.getSourcePort(), tcpPkt.getDestinationPort(), hostIP, 
+				hostMAC, this.getIdleTimeout(loadBalancer));
+		if (affinity != null)
+		{ affinity.put(clientIP, hostIP, now); }
+		if (newConnection)
+		{
+			if (knownHostIP != ConnectionTable.NO_HOST)
+			{ this.connectionClosed(loadBalancer, knownHostIP); }
+			connections.put(connectionKey, hostIP, now);
+			backend.connectionOpened();
+			if (loadBalancer.getIdleTimeouts() != null)
+			{ loadBalancer.getIdleTimeouts().connectionOpened(); }
+		}
+		else
+		{ connections.touch(connectionKey, now); }
+	}
+	
+	/**
+	 * Install the rules that rewrite a connection's packets between the 
+	 * virtual IP and the host handling the connection. The client-to-server
+	 * rewrite goes in the client's ingress switch and the server-to-client
+	 * rewrite in the switch the host is attached to; switches in between only
+	 * see real host addresses and forward on their normal routes.
+	 * @param sw the client's ingress switch, where the SYN was received
+	 * @param loadBalancer the load balancer instance handling the connection
+	 * @param clientIP the client's IP address
+	 * @param clientPort the client's TCP port
+	 * @param virtualPort the TCP port on the virtual IP
+	 * @param hostIP the IP address of the host handling the connection
+	 * @param hostMAC the MAC address of the host handling the connection
+	 * @param idleTimeout idle timeout for the rules, in seconds
+	 */
+	private void installConnectionRules(IOFSwitch sw, 
+			LoadBalancerInstance loadBalancer, int clientIP, short clientPort, 
+			short virtualPort, int hostIP, byte[] hostMAC, short idleTimeout)
+	{
+		int virtualIP = loadBalancer.getVirtualIP();
+		long cookie = makeCookie(virtualIP, hostIP);
+		OFInstruction defaultInstruction = 
+				new OFInstructionGotoTable(this.routingTable);
+
+		IOFSwitch hostSw = this.getHostSwitch(hostIP, sw);
+
+		// servers to client, installed first so the host's first reply 
+		// never misses it
+		OFMatch scMatch = getServerToClientMatch(clientIP, clientPort, 
+				virtualPort, hostIP);
+
+		List<OFAction> scActions = new ArrayList<OFAction>();
+		scActions.add(new OFActionSetField(OFOXMFieldType.IPV4_SRC, virtualIP));
+		scActions.add(new OFActionSetField(OFOXMFieldType.ETH_SRC, 
+				loadBalancer.getVirtualMAC()));
+		OFInstruction scInstruction = new OFInstructionApplyActions(scActions);
+
+		SwitchCommands.installRule(hostSw, this.connectionTable, 
+				(short)(SwitchCommands.DEFAULT_PRIORITY + 2), scMatch,
+				Arrays.asList(scInstruction, defaultInstruction),
+				SwitchCommands.NO_TIMEOUT, idleTimeout, 
+				OFPacketOut.BUFFER_ID_NONE, cookie, 
+				OFFlowMod.OFPFF_SEND_FLOW_REM);
+
+		// client to servers
+		OFMatch csMatch = getClientToServerMatch(clientIP, clientPort, 
+				virtualIP, virtualPort);
+
+		List<OFAction> csActions = new ArrayList<OFAction>();
+		csActions.add(new OFActionSetField(OFOXMFieldType.ETH_DST, hostMAC));
+		csActions.add(new OFActionSetField(OFOXMFieldType.IPV4_DST, hostIP));
+		OFInstruction csInstruction = new OFInstructionApplyActions(csActions);
+
+		SwitchCommands.installRule(sw, this.connectionTable, 
+				(short)(SwitchCommands.DEFAULT_PRIORITY + 2), csMatch,
+				Arrays.asList(csInstruction, defaultInstruction),
+				SwitchCommands.NO_TIMEOUT, idleTimeout, 
+				OFPacketOut.BUFFER_ID_NONE, cookie, 
+				OFFlowMod.OFPFF_SEND_FLOW_REM);
+	}
+	
+	/**
+	 * Get the switch a host is attached to. Falls back to the client's 
+	 * ingress switch if the host's edge is not known or is owned by another
+	 * controller; the ingress switch is the client's edge, so the reply is
+	 * rewritten there on its last hop instead of its first.
+	 * @param hostIP the host's IP address
+	 * @param ingressSw the client's ingress switch
+	 * @return the switch in which the host's rewrite rule belongs
+	 */
+	private IOFSwitch getHostSwitch(int hostIP, IOFSwitch ingressSw)
+	{
+		IOFSwitch hostSw = null;
+		long hostSwitchId = this.hostIndex.getSwitch(hostIP);
+		if (hostSwitchId != IHostIndexService.UNKNOWN 
+				&& this.cluster.isLocal(hostSwitchId))
+		{ hostSw = this.floodlightProv.getSwitch(hostSwitchId); }
+		return (null == hostSw ? ingressSw : hostSw);
+	}
+	
+	private static OFMatch getClientToServerMatch(int clientIP, 
+			short clientPort, int virtualIP, short virtualPort)
+	{
+		return new OFMatch()
+				.setDataLayerType(OFMatch.ETH_TYPE_IPV4)
+				.setNetworkProtocol(OFMatch.IP_PROTO_TCP)
+				.setNetworkSource(clientIP)
+				.setNetworkDestination(virtualIP)
+				.setTransportSource(clientPort)
+				.setTransportDestination(virtualPort);
+	}
+	
+	private static OFMatch getServerToClientMatch(int clientIP, 
+			short clientPort, short virtualPort, int hostIP)
+	{
+		return new OFMatch()
+				.setDataLayerType(OFMatch.ETH_TYPE_IPV4)
+				.setNetworkProtocol(OFMatch.IP_PROTO_TCP)
+				.setNetworkSource(hostIP)
+				.setNetworkDestination(clientIP)
+				.setTransportSource(virtualPort)
+				.setTransportDestination(clientPort);
+	}
+	
+	/**
+	 * Get the idle timeout for a new connection's rules.
+	 * @param loadBalancer the load balancer instance handling the connection
+	 * @return the timeout, in seconds
+	 */
+	private short getIdleTimeout(LoadBalancerInstance loadBalancer)
+	{
+		IdleTimeoutEstimator idleTimeouts = loadBalancer.getIdleTimeouts();
+		return (null == idleTimeouts ? this.idleTimeout 
+				: idleTimeouts.getIdleTimeout());
+	}
+	
+	/**
+	 * Create the estimator choosing an instance's idle timeouts.
+	 * @return the estimator, null if idle timeouts are fixed
+	 */
+	private IdleTimeoutEstimator newIdleTimeoutEstimator()
+	{
+		if (this.targetConnectionRules <= 0)
+		{ return null; }
+		return new IdleTimeoutEstimator(this.targetConnectionRules,
+				this.minIdleTimeout, this.maxIdleTimeout, this.idleTimeout);
+	}
+	
+	/**
+	 * Handle a non-SYN segment sent to a virtual IP that matched no connection
+	 * rule. A connection the controller still knows about gets its rules back.
+	 * Otherwise the rest of the flow is dropped in the switch for a while, and
+	 * only a rate-limited sample of such segments is answered with a reset.
+	 * Drop rules are rate-limited too, so a flood of stale segments cannot
+	 * fill the switch with them.
+	 * @param sw switch on which the segment was received
+	 * @param inPort port on which the segment was received
+	 * @param loadBalancer the load balancer instance the segment was sent to
+	 * @param ethPkt the segment
+	 */
+	private void handleStaleSegment(IOFSwitch sw, short inPort,
+			LoadBalancerInstance loadBalancer, Ethernet ethPkt)
+	{
+		IPv4 ipPkt = (IPv4)ethPkt.getPayload();
+		TCP tcpPkt = (TCP)ipPkt.getPayload();
+		int clientIP = ipPkt.getSourceAddress();
+
+		// The connection's rules may have idled out while the host still has
+		// it open
+		long connectionKey = ConnectionTable.makeKey(clientIP, 
+				tcpPkt.getSourcePort(), tcpPkt.getDestinationPort());
+		ConnectionTable connections = loadBalancer.getConnections();
+		int hostIP = connections.lookup(connectionKey);
+		boolean revived = false;
+		if (ConnectionTable.NO_HOST == hostIP)
+		{
+			hostIP = loadBalancer.getIdledConnections().remove(connectionKey);
+			revived = (hostIP != ConnectionTable.NO_HOST);
+		}
+		LoadBalancerBackend backend = (ConnectionTable.NO_HOST == hostIP ? null
+				: loadBalancer.getBackend(hostIP));
+		byte[] hostMAC = (null == backend ? null 
+				: this.getHostMACAddress(hostIP));
+		if (backend != null && backend.isHealthy() && hostMAC != null)
+		{
+			short flags = tcpPkt.getFlags();
+			IdleTimeoutEstimator idleTimeouts = loadBalancer.getIdleTimeouts();
+			long now = System.currentTimeMillis();
+			
+			// A reset ends the connection, so forget it rather than bring
+			// its rules back
+			if (0 != (flags & TcpPackets.FLAG_RST))
+			{
+				if (!revived && connections.remove(connectionKey) 
+						!= ConnectionTable.NO_HOST)
+				{ this.connectionClosed(loadBalancer, hostIP); }
+				SwitchCommands.removeRule(this.getHostSwitch(hostIP, sw), 
+						this.connectionTable, (short)(SwitchCommands.DEFAULT_PRIORITY + 2),
+						getServerToClientMatch(clientIP, tcpPkt.getSourcePort(),
+								tcpPkt.getDestinationPort(), hostIP));
+				return;
+			}
+			
+			// A closing connection only needs its rules briefly
+			short idleTimeout = this.getIdleTimeout(loadBalancer);
+			if (0 != (flags & TcpPackets.FLAG_FIN))
+			{
+				idleTimeout = (null == idleTimeouts ? idleTimeout 
+						: idleTimeouts.getMinTimeout());
+			}
+			this.installConnectionRules(sw, loadBalancer, clientIP, 
+					tcpPkt.getSourcePort(), tcpPkt.getDestinationPort(), 
+					hostIP, hostMAC, idleTimeout);
+			if (revived)
+			{
+				connections.put(connectionKey, hostIP, now);
+				backend.connectionOpened();
+				if (idleTimeouts != null)
+				{ idleTimeouts.connectionRevived(); }
+			}
+			else
+			{ connections.touch(connectionKey, now); }
+			return;
+		}
+
+		// Drop the rest of the stale flow in the switch; OpenFlow 1.3 cannot
+		// match TCP flags, so the rule covers the flow's 5-tuple, and a rule
+		// covering more would also drop the client's new connections
+		if (this.staleRuleLimiter != null && this.staleRuleLimiter.tryAcquire())
+		{
+			OFMatch staleMatch = new OFMatch()
+					.setDataLayerType(OFMatch.ETH_TYPE_IPV4)
+					.setNetworkProtocol(OFMatch.IP_PROTO_TCP)
+					.setNetworkSource(clientIP)
+					.setNetworkDestination(ipPkt.getDestinationAddress())
+					.setTransportSource(tcpPkt.getSourcePort())
+					.setTransportDestination(tcpPkt.getDestinationPort());
+			SwitchCommands.installRule(sw, this.connectionTable, 
+					(short)(SwitchCommands.DEFAULT_PRIORITY + 2), staleMatch,
+					new ArrayList<OFInstruction>(), this.staleFlowTimeout, 
+					SwitchCommands.NO_TIMEOUT, OFPacketOut.BUFFER_ID_NONE, 
+					STALE_COOKIE, (short)0);
+			this.staleFlows.incrementAndGet();
+		}
+
+		// Answer only a sample, so a burst does not turn into a reset storm
+		if (null == this.resetLimiter || !this.resetLimiter.tryAcquire())
+		{ return; }
+		Ethernet rst = TcpPackets.buildReset(ethPkt);
+		if (null == rst)
+		{ return; }
+		SwitchCommands.sendPacket(sw, inPort, rst);
+		this.resetsSent.incrementAndGet();
+		if (isLogging)
+			log.info(String.format("Sent reset to %s:%d for stale flow to %s:%d",
+					IPv4.fromIPv4Address(clientIP), 
+					tcpPkt.getSourcePort() & 0xFFFF,
+					IPv4.fromIPv4Address(ipPkt.getDestinationAddress()),
+					tcpPkt.getDestinationPort() & 0xFFFF));
+	}
+	
+	/**
+	 * Update per-host counters when a connection rule is removed from a switch.
+	 * A connection that loses either of its rules to eviction loses the other
+	 * one too, and is revived by its next packet.
+	 * @param sw switch from which the rule was removed
+	 * @param flowRemoved the removal message sent by the switch
+	 * @return indication whether another module should also process the message
+	 */
+	private Command handleFlowRemoved(IOFSwitch sw, OFFlowRemoved flowRemoved)
+	{
+		// Only connection rules carry a cookie naming a virtual IP
+		long cookie = flowRemoved.getCookie();
+		LoadBalancerInstance loadBalancer = 
+				this.findInstance(getCookieVirtualIP(cookie));
+		if (0 == cookie || STALE_COOKIE == cookie || null == loadBalancer)
+		{ return Command.CONTINUE; }
+		
+		LoadBalancerBackend backend = 
+				loadBalancer.getBackend(getCookieHostIP(cookie));
+		if (null == backend)
+		{ return Command.STOP; }
+		
+		backend.addTraffic(flowRemoved.getByteCount(), 
+				flowRemoved.getPacketCount());
+		
+		// The connection is over once its client-to-server rule (which 
+		// matches on the virtual IP) goes away, or either of its rules is
+		// evicted; our own deletes drop the connection from the table first
+		OFMatch match = flowRemoved.getMatch();
+		boolean clientToServer = 
+				(match.getNetworkDestination() == loadBalancer.getVirtualIP());
+		boolean quiet = (OFFlowRemoved.OFFlowRemovedReason.OFPRR_IDLE_TIMEOUT 
+				== flowRemoved.getReason());
+		boolean evicted = (OFFlowRemoved.OFFlowRemovedReason.OFPRR_DELETE
+				== flowRemoved.getReason());
+		if (clientToServer || evicted)
+		{
+			int clientIP = (clientToServer ? match.getNetworkSource() 
+					: match.getNetworkDestination());
+			short clientPort = (clientToServer ? match.getTransportSource() 
+					: match.getTransportDestination());
+			short virtualPort = (clientToServer ? match.getTransportDestination()
+					: match.getTransportSource());
+			long connectionKey = ConnectionTable.makeKey(clientIP, clientPort,
+					virtualPort);
+			int hostIP = loadBalancer.getConnections().remove(connectionKey);
+			if (hostIP != ConnectionTable.NO_HOST)
+			{ this.connectionClosed(loadBalancer, hostIP); }
+			
+			// A connection left with one rule would send replies from the 
+			// host's own address, or requests to the virtual IP nobody 
+			// rewrites; the client-to-server rule is in the client's 
+			// ingress switch, which the reply side does not know
+			if (evicted && hostIP != ConnectionTable.NO_HOST)
+			{
+				if (clientToServer)
+				{
+					SwitchCommands.removeRule(this.getHostSwitch(hostIP, sw), 
+							this.connectionTable, 
+							(short)(SwitchCommands.DEFAULT_PRIORITY + 2),
+							getServerToClientMatch(clientIP, clientPort, 
+									virtualPort, hostIP));
+				}
+				else
+				{
+					OFMatch csMatch = getClientToServerMatch(clientIP, 
+							clientPort, loadBalancer.getVirtualIP(), 
+							virtualPort);
+					for (IOFSwitch otherSw : this.getLocalSwitches())
+					{
+						SwitchCommands.removeRule(otherSw, this.connectionTable, 
+								(short)(SwitchCommands.DEFAULT_PRIORITY + 2),
+								csMatch);
+					}
+				}
+			}
+			
+			// Remember connections that merely went quiet, or whose rules
+			// were evicted from a full switch, so their next packet brings 
+			// them back instead of drawing a reset
+			if ((quiet || evicted) && hostIP != ConnectionTable.NO_HOST)
+			{
+				loadBalancer.getIdledConnections().put(connectionKey, hostIP,
+						System.currentTimeMillis());
+				IdleTimeoutEstimator idleTimeouts = 
+						loadBalancer.getIdleTimeouts();
+				if (quiet && idleTimeouts != null)
+				{
+					idleTimeouts.ruleExpired(flowRemoved.getDurationSeconds(),
+							flowRemoved.getIdleTimeout());
+				}
+			}
+		}
+		
+		if (isLogging)
+			log.info(String.format("Connection rule for %s removed, %d live connections",
+					backend, backend.getLiveConnections()));
+		
+		return Command.STOP;
+	}
+	
+	/**
+	 * Update a host's counters for a connection that was removed from the
+	 * connection table.
+	 * @param loadBalancer the load balancer instance handling the connection
+	 * @param hostIP the host handling the connection
+	 */
+	private void connectionClosed(LoadBalancerInstance loadBalancer, int hostIP)
+	{
+		LoadBalancerBackend backend = loadBalancer.getBackend(hostIP);
+		if (backend != null)
+		{
+			backend.connectionClosed();
+			this.reapDrained(loadBalancer, backend);
+		}
+	}
+	
+	/**
+	 * Finish removing a draining host, or a removed instance, once it has no
+	 * connections left.
+	 * @param loadBalancer the load balancer instance
+	 * @param backend a host of the instance, or null to check only the 
+	 *        instance
+	 */
+	private void reapDrained(LoadBalancerInstance loadBalancer, 
+			LoadBalancerBackend backend)
+	{
+		if (backend != null && backend.isDraining() 
+				&& backend.isRemoveWhenDrained()
+				&& 0 == backend.getLiveConnections()
+				&& loadBalancer.removeBackend(backend.getHostIP()) != null)
+		{
+			log.info(String.format("Host %s drained from %s", backend,
+					IPv4.fromIPv4Address(loadBalancer.getVirtualIP())));
+		}
+		
+		if (0 == loadBalancer.getConnections().size() 
+				&& this.drainingInstances.get(loadBalancer.getVirtualIP()) 
+						== loadBalancer)
+		{
+			synchronized (this)
+			{
+				Map<Integer,LoadBalancerInstance> updated = 
+						new HashMap<Integer,LoadBalancerInstance>(
+								this.drainingInstances);
+				if (updated.remove(loadBalancer.getVirtualIP()) != null)
+				{
+					this.drainingInstances = 
+							Collections.unmodifiableMap(updated);
+					log.info(String.format("Instance %s drained",
+							IPv4.fromIPv4Address(loadBalancer.getVirtualIP())));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Get the instance, active or draining, for a virtual IP.
+	 * @param virtualIP the virtual IP
+	 * @return the instance, null if there is none
+	 */
+	private LoadBalancerInstance findInstance(int virtualIP)
+	{
+		LoadBalancerInstance loadBalancer = this.instances.get(virtualIP);
+		if (null == loadBalancer)
+		{ loadBalancer = this.drainingInstances.get(virtualIP); }
+		return loadBalancer;
+	}
+	
+	/**
+	 * Remove connections the controller has not heard about for a long time,
+	 * in case the switch never reported their rules' removal.
+	 */
+	private void expireConnections()
+	{
+		long cutoff = System.currentTimeMillis() 
+				- this.connectionExpiry * 1000L;
+		List<LoadBalancerInstance> all = new ArrayList<LoadBalancerInstance>(
+				this.instances.values());
+		all.addAll(this.drainingInstances.values());
+		for (final LoadBalancerInstance loadBalancer : all)
+		{
+			int expired = loadBalancer.getConnections().expire(cutoff,
+					new ConnectionTable.ExpiryListener() {
+						@Override
+						public void connectionExpired(long key, int hostIP)
+						{ connectionClosed(loadBalancer, hostIP); }
+					});
+			if (expired > 0)
+			{
+				log.info(String.format("Expired %d connections for %s", 
+						expired, 
+						IPv4.fromIPv4Address(loadBalancer.getVirtualIP())));
+			}
+
+			loadBalancer.getIdledConnections().expire(cutoff, null);
+
+			for (LoadBalancerBackend backend : loadBalancer.getBackends())
+			{ this.reapDrained(loadBalancer, backend); }
+			this.reapDrained(loadBalancer, null);
+		}
+	}
+
+	/**
+	 * Fold the bytes each host carried since the last update into its 
+	 * smoothed byte rate, for the least-bytes selection policy.
+	 */
+	private void updateByteRates()
+	{
+		for (LoadBalancerInstance loadBalancer : this.instances.values())
+		{
+			for (LoadBalancerBackend backend : loadBalancer.getBackends())
+			{ backend.updateByteRate(BYTE_RATE_INTERVAL, BYTE_RATE_SMOOTHING); }
+		}
+	}
+
+	/**
+	 * Copy the utilization of each host's edge link into the host, for the
+	 * congestion-aware selection policy.
+	 */
+	private void updateLinkHeadroom()
+	{
+		for (LoadBalancerInstance loadBalancer : this.instances.values())
+		{
+			for (LoadBalancerBackend backend : loadBalancer.getBackends())
+			{
+				int hostIP = backend.getHostIP();
+				long switchId = this.hostIndex.getSwitch(hostIP);
+				if (IHostIndexService.UNKNOWN == switchId)
+				{
+					backend.setLinkHeadroom(1);
+					continue;
+				}
+				double utilization = this.portStats.getUtilization(switchId,
+						(int)this.hostIndex.getPort(hostIP));
+				backend.setLinkHeadroom(Math.pow(
+						Math.max(MIN_LINK_HEADROOM, 1 - utilization), 
+						this.congestionWeight));
+			}
+		}
+	}
+	
+	/**
+	 * Cut off the remaining connections of draining hosts whose deadline has
+	 * passed, by deleting their rules from every switch.
+	 */
+	private void enforceDrainDeadlines()
+	{
+		long now = System.currentTimeMillis();
+		List<LoadBalancerInstance> all = new ArrayList<LoadBalancerInstance>(
+				this.instances.values());
+		all.addAll(this.drainingInstances.values());
+		for (final LoadBalancerInstance loadBalancer : all)
+		{
+			for (LoadBalancerBackend backend : loadBalancer.getBackends())
+			{
+				long deadline = backend.getDrainDeadline();
+				if (!backend.isDraining() || 0 == deadline || now < deadline)
+				{ continue; }
+				
+				// Forget the connections before deleting their rules, so the
+				// deletes are not taken for evictions
+				int hostIP = backend.getHostIP();
+				loadBalancer.getIdledConnections().removeHost(hostIP, null);
+				int cut = loadBalancer.getConnections().removeHost(hostIP, 
+						new ConnectionTable.ExpiryListener() {
+							@Override
+							public void connectionExpired(long key, int host)
+							{ connectionClosed(loadBalancer, host); }
+						});
+				
+				// Each connection rule's cookie names the virtual IP and host
+				for (IOFSwitch sw : this.getLocalSwitches())
+				{
+					SwitchCommands.removeRules(sw, this.connectionTable, 
+							makeCookie(loadBalancer.getVirtualIP(), hostIP), 
+							-1L);
+				}
+				// Keep the host out of rotation, but cut it off only once
+				backend.drain(0, backend.isRemoveWhenDrained());
+				if (cut > 0)
+				{
+					log.warn(String.format("Drain deadline passed for %s of %s; cut off %d connections",
+							backend, 
+							IPv4.fromIPv4Address(loadBalancer.getVirtualIP()),
+							cut));
+				}
+				this.reapDrained(loadBalancer, backend);
+			}
+			this.reapDrained(loadBalancer, null);
+		}
+	}
+	
+	/**
+	 * Recompute each instance's idle timeout from its recent traffic.
+	 */
+	private void updateIdleTimeouts()
+	{
+		long now = System.currentTimeMillis();
+		for (LoadBalancerInstance loadBalancer : this.instances.values())
+		{
+			IdleTimeoutEstimator idleTimeouts = loadBalancer.getIdleTimeouts();
+			if (null == idleTimeouts)
+			{ continue; }
+			short previous = idleTimeouts.getIdleTimeout();
+			idleTimeouts.update(now);
+			if (isLogging && idleTimeouts.getIdleTimeout() != previous)
+				log.info(String.format("Idle timeout for %s now %ds (%.1f connections/s, %.1fs active)",
+						IPv4.fromIPv4Address(loadBalancer.getVirtualIP()),
+						idleTimeouts.getIdleTimeout(), 
+						idleTimeouts.getArrivalRate(),
+						idleTimeouts.getActiveSeconds()));
+		}
+	}
+	
+	/**
+	 * Get the packet-in dispatcher, whose counters show queued, handled and
+	 * dropped packets.
+	 * @return the dispatcher, null if packets are handled on Floodlight's I/O
+	 *         thread
+	 */
+	public PacketInDispatcher getDispatcher()
+	{ return this.dispatcher; }
+	
+	/**
+	 * Get the admission control stage, whose counters show how many packets
+	 * each rate limit rejected.
+	 */
+	public SynAdmissionControl getAdmissionControl()
+	{ return this.admission; }
+	
+	/**
+	 * Get the number of stale flows whose packets were dropped in a switch.
+	 */
+	public long getStaleFlows()
+	{ return this.staleFlows.get(); }
+	
+	/**
+	 * Get the number of resets sent for stale flows.
+	 */
+	public long getResetsSent()
+	{ return this.resetsSent.get(); }
+	
+	/**
+	 * Get the number of SYNs dropped because a switch had no room for the
+	 * connection's rules.
+	 */
+	public long getDeferredSyns()
+	{ return this.deferredSyns.get(); }
+	
+	/**
+	 * Get the host handling a connection to a virtual IP.
+	 * @param virtualIP the virtual IP
+	 * @param clientIP the client's IP address
+	 * @param clientPort the client's TCP port
+	 * @param virtualPort the TCP port on the virtual IP
+	 * @return the host's IP address, ConnectionTable.NO_HOST if the 
+	 *         connection is unknown
+	 */
+	public int getConnectionHost(int virtualIP, int clientIP, 
+			short clientPort, short virtualPort)
+	{
+		LoadBalancerInstance loadBalancer = this.instances.get(virtualIP);
+		if (null == loadBalancer)
+		{ return ConnectionTable.NO_HOST; }
+		return loadBalancer.getConnections().lookup(ConnectionTable.makeKey(
+				clientIP, clientPort, virtualPort));
+	}
+	
+	/**
+	 * Get the load balancer instances currently accepting connections.
+	 */
+	@Override
+	public Collection<LoadBalancerInstance> getInstances()
+	{ return this.instances.values(); }
+	
+	/**
+	 * Get the load balancer instance for a virtual IP.
+	 * @param virtualIP the virtual IP
+	 * @return the instance, null if the virtual IP is not load balanced
+	 */
+	@Override
+	public LoadBalancerInstance getInstance(int virtualIP)
+	{ return this.instances.get(virtualIP); }
+	
+	/**
+	 * Start load balancing a virtual IP, and install its rules in every
+	 * connected switch.
+	 * @param instance the new load balancer instance
+	 * @return true if the instance was added, false if its virtual IP is
+	 *         already load balanced
+	 */
+	@Override
+	public synchronized boolean addInstance(LoadBalancerInstance instance)
+	{
+		int virtualIP = instance.getVirtualIP();
+		if (this.instances.containsKey(virtualIP))
+		{ return false; }
+		
+		// A draining instance for the same virtual IP is superseded; its
+		// remaining connections are no longer tracked
+		if (this.drainingInstances.containsKey(virtualIP))
+		{
+			Map<Integer,LoadBalancerInstance> draining = 
+					new HashMap<Integer,LoadBalancerInstance>(
+							this.drainingInstances);
+			draining.remove(virtualIP);
+			this.drainingInstances = Collections.unmodifiableMap(draining);
+		}
+		
+		if (null == instance.getIdleTimeouts())
+		{ instance.setIdleTimeouts(this.newIdleTimeoutEstimator()); }
+		
+		Map<Integer,LoadBalancerInstance> updated = 
+				new HashMap<Integer,LoadBalancerInstance>(this.instances);
+		updated.put(virtualIP, instance);
+		this.instances = Collections.unmodifiableMap(updated);
+		
+		for (IOFSwitch sw : this.getLocalSwitches())
+		{ this.installVirtualIPRule(sw, virtualIP); }
+		this.addVirtualHost(instance);
+		log.info("Added load balancer instance: " + instance);
+		return true;
+	}
+	
+	/**
+	 * Stop load balancing a virtual IP. Its rules are withdrawn from every
+	 * switch, so new connections are refused, while existing connections
+	 * keep their rules until they go idle.
+	 * @param virtualIP the virtual IP
+	 * @return true if the instance was removed, false if the virtual IP is
+	 *         not load balanced
+	 */
+	@Override
+	public synchronized boolean removeInstance(int virtualIP)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		if (null == instance)
+		{ return false; }
+		
+		Map<Integer,LoadBalancerInstance> updated = 
+				new HashMap<Integer,LoadBalancerInstance>(this.instances);
+		updated.remove(virtualIP);
+		this.instances = Collections.unmodifiableMap(updated);
+		
+		for (IOFSwitch sw : this.getLocalSwitches())
+		{ this.removeVirtualIPRule(sw, virtualIP); }
+		this.hostIndex.removeVirtualHost(virtualIP);
+		
+		if (instance.getConnections().size() > 0)
+		{
+			Map<Integer,LoadBalancerInstance> draining = 
+					new HashMap<Integer,LoadBalancerInstance>(
+							this.drainingInstances);
+			draining.put(virtualIP, instance);
+			this.drainingInstances = Collections.unmodifiableMap(draining);
+		}
+		log.info(String.format("Removed load balancer instance %s; %d connections draining",
+				IPv4.fromIPv4Address(virtualIP), 
+				instance.getConnections().size()));
+		return true;
+	}
+	
+	/**
+	 * Add a host to a load balancer instance.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @param weight relative share of connections for the host
+	 * @return true if the host was added, false if the virtual IP is not
+	 *         load balanced or the host is already part of the instance
+	 */
+	@Override
+	public boolean addBackend(int virtualIP, int hostIP, int weight)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		if (null == instance 
+				|| !instance.addBackend(new LoadBalancerBackend(hostIP, weight)))
+		{ return false; }
+		log.info(String.format("Added host %s to %s", 
+				IPv4.fromIPv4Address(hostIP), IPv4.fromIPv4Address(virtualIP)));
+		return true;
+	}
+	
+	/**
+	 * Drain a host out of a load balancer instance. The host receives no new
+	 * connections, and is removed once its existing connections finish.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @return true if the host is draining, false if the virtual IP is not
+	 *         load balanced or the host is not part of the instance
+	 */
+	@Override
+	public boolean removeBackend(int virtualIP, int hostIP)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		LoadBalancerBackend backend = (null == instance ? null 
+				: instance.getBackend(hostIP));
+		if (null == backend)
+		{ return false; }
+		backend.drain(getDrainDeadline(this.drainTimeout), true);
+		log.info(String.format("Draining host %s from %s; %d live connections",
+				backend, IPv4.fromIPv4Address(virtualIP), 
+				backend.getLiveConnections()));
+		this.reapDrained(instance, backend);
+		return true;
+	}
+	
+	/**
+	 * Take a host out of rotation, e.g., for maintenance. The host receives
+	 * no new connections but stays part of the instance; its existing
+	 * connections keep their rules until they go idle or the deadline passes.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @param timeout seconds after which remaining connections are cut off,
+	 *        or 0 to let them finish in their own time
+	 * @return true if the host is draining, false if the virtual IP is not
+	 *         load balanced or the host is not part of the instance
+	 */
+	@Override
+	public boolean drainBackend(int virtualIP, int hostIP, int timeout)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		LoadBalancerBackend backend = (null == instance ? null 
+				: instance.getBackend(hostIP));
+		if (null == backend)
+		{ return false; }
+		backend.drain(getDrainDeadline(timeout), false);
+		log.info(String.format("Draining host %s of %s; %d live connections",
+				backend, IPv4.fromIPv4Address(virtualIP), 
+				backend.getLiveConnections()));
+		return true;
+	}
+	
+	/**
+	 * Put a drained or draining host back into rotation.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @return true if the host is back in rotation, false if the virtual IP
+	 *         is not load balanced or the host is not part of the instance
+	 */
+	@Override
+	public boolean restoreBackend(int virtualIP, int hostIP)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		LoadBalancerBackend backend = (null == instance ? null 
+				: instance.getBackend(hostIP));
+		if (null == backend)
+		{ return false; }
+		backend.setDraining(false);
+		log.info(String.format("Host %s of %s back in rotation", backend,
+				IPv4.fromIPv4Address(virtualIP)));
+		return true;
+	}
+	
+	/**
+	 * Get the number of connections a host is still handling, e.g., to tell
+	 * when a draining host can be taken down.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @return the number of connections, -1 if the virtual IP is not load
+	 *         balanced or the host is not part of the instance
+	 */
+	@Override
+	public int getLiveConnections(int virtualIP, int hostIP)
+	{
+		LoadBalancerInstance instance = this.findInstance(virtualIP);
+		LoadBalancerBackend backend = (null == instance ? null 
+				: instance.getBackend(hostIP));
+		return (null == backend ? -1 : backend.getLiveConnections());
+	}
+	
+	private static long getDrainDeadline(int timeout)
+	{ return (timeout > 0 ? System.currentTimeMillis() + timeout * 1000L : 0); }
+	
+	/**
+	 * Build the cookie for a connection's rules. The cookie identifies the 
+	 * virtual IP (upper 32 bits) and the chosen host (lower 32 bits).
+	 * @param virtualIP the virtual IP of the load balancer instance
+	 * @param hostIP the IP of the host handling the connection
+	 * @return the cookie
+	 */
+	private static long makeCookie(int virtualIP, int hostIP)
+	{ return (((long)virtualIP) << 32) | (hostIP & 0xFFFFFFFFL); }
+	
+	private static int getCookieVirtualIP(long cookie)
+	{ return (int)(cookie >>> 32); }
+	
+	private static int getCookieHostIP(long cookie)
+	{ return (int)cookie; }
+	
+	/**
+	 * Read an integer option from the module's configuration.
+	 * @param config the module's configuration
+	 * @param key name of the option
+	 * @param defaultValue value to use if the option is absent
+	 * @return the option's value
+	 */
+	private static int parseConfigInt(Map<String,String> config, String key,
+			int defaultValue)
+	{
+		String value = config.get(key);
+		if (null == value)
+		{ return defaultValue; }
+		return Integer.parseInt(value.trim());
 	}
 	
 	/**
@@ -381,12 +1644,10 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	 */
 	private byte[] getHostMACAddress(int hostIPAddress)
 	{
-		Iterator<? extends IDevice> iterator = this.deviceProv.queryDevices(
-				null, null, hostIPAddress, null, null);
-		if (!iterator.hasNext())
+		long mac = this.hostIndex.getMACAddress(hostIPAddress);
+		if (IHostIndexService.UNKNOWN == mac)
 		{ return null; }
-		IDevice device = iterator.next();
-		return MACAddress.valueOf(device.getMACAddress()).toBytes();
+		return MACAddress.valueOf(mac).toBytes();
 	}
 
 	/**
@@ -403,7 +1664,56 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	 */
 	@Override
 	public void switchActivated(long switchId)
-	{ /* Nothing we need to do, since we're not switching controller roles */ }
+	{ this.switchAdded(switchId); }
+	
+	/**
+	 * Get the connected switches this controller owns.
+	 */
+	private Collection<IOFSwitch> getLocalSwitches()
+	{
+		List<IOFSwitch> switches = new ArrayList<IOFSwitch>();
+		for (IOFSwitch sw : this.floodlightProv.getAllSwitchMap().values())
+		{
+			if (this.cluster.isLocal(sw.getId()))
+			{ switches.add(sw); }
+		}
+		return switches;
+	}
+	
+	/**
+	 * Event handler called when switches may have changed owner; switches
+	 * this controller took over need the virtual IP rules.
+	 */
+	@Override
+	public void ownershipChanged()
+	{
+		for (IOFSwitch sw : this.getLocalSwitches())
+		{ this.switchAdded(sw.getId()); }
+	}
+	
+	/**
+	 * Event handler called when another controller reports a host.
+	 * @param host the host's current snapshot
+	 */
+	@Override
+	public void remoteHostUpdated(Host host)
+	{ /* Nothing we need to do, since hosts are looked up in HostIndex */ }
+	
+	/**
+	 * Event handler called when another controller no longer reports a host.
+	 * @param host the host's last snapshot
+	 */
+	@Override
+	public void remoteHostRemoved(Host host)
+	{ /* Nothing we need to do, since hosts are looked up in HostIndex */ }
+	
+	/**
+	 * Event handler called when the links reported by other controllers 
+	 * changed.
+	 */
+	@Override
+	public void remoteLinksChanged()
+	{ /* Nothing we need to do, since load balancer rules are path-agnostic */ }
 
 	/**
 	 * Event handler called when a port on a switch goes up or down, or is
@@ -430,7 +1740,12 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
      */
 	@Override
 	public Collection<Class<? extends IFloodlightService>> getModuleServices() 
-	{ return null; }
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(ILoadBalancerService.class);
+		return services;
+	}
 
 	/**
      * Tell the module system which services we implement.
@@ -438,7 +1753,14 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public Map<Class<? extends IFloodlightService>, IFloodlightService> 
 			getServiceImpls() 
-	{ return null; }
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> services =
+				new HashMap<Class<? extends IFloodlightService>, 
+						IFloodlightService>();
+		// We are the class that implements the service
+		services.put(ILoadBalancerService.class, this);
+		return services;
+	}
 
 	/**
      * Tell the module system which modules we depend on.
@@ -450,7 +1772,9 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		Collection<Class<? extends IFloodlightService >> floodlightService =
 	            new ArrayList<Class<? extends IFloodlightService>>();
         floodlightService.add(IFloodlightProviderService.class);
-        floodlightService.add(IDeviceService.class);
+        floodlightService.add(IThreadPoolService.class);
+        floodlightService.add(IHostIndexService.class);
+        floodlightService.add(IPipelineService.class);
         return floodlightService;
 	}
 
@@ -0,0 +1,235 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.packet.IPv4;
+
+public class LoadBalancerBackend
+{
+	// IP address of the host to which flows are sent
+	private int hostIP;
+
+	// Relative share of connections this host should receive
+	private int weight;
+
+	// Number of connections whose rules are still installed
+	private AtomicInteger liveConnections;
+
+	// Bytes and packets carried by connections that have finished
+	private AtomicLong byteCount;
+	private AtomicLong packetCount;
+
+	// Bytes carried by connections that finished since the byte rate was
+	// last updated, and the smoothed rate in bytes per second
+	private AtomicLong recentBytes;
+	private volatile double byteRate;
+
+	// Share of the host's edge link left over, weighted for selection; 1 if
+	// the link is idle or not measured
+	private volatile double linkHeadroom;
+
+	// Whether the host passed its most recent health check
+	private volatile boolean healthy;
+
+	// Whether the host is being taken out of its instance, so it receives no
+	// new connections while its existing ones finish
+	private volatile boolean draining;
+
+	// Time in milliseconds at which a draining host's remaining connections
+	// are cut off; 0 if they may finish in their own time
+	private volatile long drainDeadline;
+
+	// Whether a draining host leaves its instance once its connections end
+	private volatile boolean removeWhenDrained;
+
+	/**
+	 * Create a backend for a load balancer instance.
+	 * @param hostIP IP address of the host
+	 * @param weight relative share of connections for the host; at least 1
+	 */
+	public LoadBalancerBackend(int hostIP, int weight)
+	{
+		this.hostIP = hostIP;
+		this.weight = Math.max(1, weight);
+		this.liveConnections = new AtomicInteger(0);
+		this.byteCount = new AtomicLong(0);
+		this.packetCount = new AtomicLong(0);
+		this.recentBytes = new AtomicLong(0);
+		this.healthy = true;
+		this.linkHeadroom = 1;
+	}
+
+	/**
+	 * Get the IP address of the host.
+	 */
+	public int getHostIP()
+	{ return this.hostIP; }
+
+	/**
+	 * Get the relative share of connections for the host.
+	 */
+	public int getWeight()
+	{ return this.weight; }
+
+	/**
+	 * Get the number of connections whose rules are still installed.
+	 */
+	public int getLiveConnections()
+	{ return this.liveConnections.get(); }
+
+	/**
+	 * Get the number of bytes carried by finished connections.
+	 */
+	public long getByteCount()
+	{ return this.byteCount.get(); }
+
+	/**
+	 * Get the number of packets carried by finished connections.
+	 */
+	public long getPacketCount()
+	{ return this.packetCount.get(); }
+
+	/**
+	 * Get the smoothed rate, in bytes per second, at which the host's 
+	 * connections have recently carried traffic.
+	 */
+	public double getByteRate()
+	{ return this.byteRate; }
+
+	/**
+	 * Fold the bytes carried since the last update into the smoothed byte
+	 * rate, so traffic from long ago stops counting against the host.
+	 * @param seconds time since the last update
+	 * @param smoothing weight of the latest interval, between 0 and 1
+	 */
+	public void updateByteRate(double seconds, double smoothing)
+	{
+		double rate = this.recentBytes.getAndSet(0) / seconds;
+		this.byteRate = smoothing * rate + (1 - smoothing) * this.byteRate;
+	}
+
+	/**
+	 * Get the weighted share of the host's edge link left over, between 0
+	 * (saturated) and 1 (idle).
+	 */
+	public double getLinkHeadroom()
+	{ return this.linkHeadroom; }
+
+	/**
+	 * Record how much of the host's edge link is left over.
+	 * @param linkHeadroom weighted spare share of the link, between 0 and 1
+	 */
+	public void setLinkHeadroom(double linkHeadroom)
+	{ this.linkHeadroom = linkHeadroom; }
+
+	/**
+	 * Checks whether the host passed its most recent health check.
+	 */
+	public boolean isHealthy()
+	{ return this.healthy; }
+
+	/**
+	 * Record the outcome of a health check.
+	 * @param healthy true if the host responded, otherwise false
+	 */
+	public void setHealthy(boolean healthy)
+	{ this.healthy = healthy; }
+
+	/**
+	 * Checks whether the host is being taken out of its instance.
+	 */
+	public boolean isDraining()
+	{ return this.draining; }
+
+	/**
+	 * Start or stop draining the host.
+	 * @param draining true if the host should receive no new connections
+	 */
+	public void setDraining(boolean draining)
+	{
+		if (!draining)
+		{
+			this.drainDeadline = 0;
+			this.removeWhenDrained = false;
+		}
+		this.draining = draining;
+	}
+
+	/**
+	 * Stop sending new connections to the host.
+	 * @param deadline time in milliseconds at which remaining connections
+	 *        are cut off, or 0 to let them finish in their own time
+	 * @param remove true if the host should leave its instance once its
+	 *        connections end
+	 */
+	public void drain(long deadline, boolean remove)
+	{
+		this.drainDeadline = deadline;
+		this.removeWhenDrained = remove;
+		this.draining = true;
+	}
+
+	/**
+	 * Get the time in milliseconds at which a draining host's remaining
+	 * connections are cut off; 0 if there is no deadline.
+	 */
+	public long getDrainDeadline()
+	{ return this.drainDeadline; }
+
+	/**
+	 * Checks whether a draining host leaves its instance once its
+	 * connections end.
+	 */
+	public boolean isRemoveWhenDrained()
+	{ return this.removeWhenDrained; }
+
+	/**
+	 * Checks whether new connections may be sent to the host.
+	 */
+	public boolean isAvailable()
+	{ return this.healthy && !this.draining; }
+
+	/**
+	 * Record that connection rules were installed for this host.
+	 */
+	public void connectionOpened()
+	{ this.liveConnections.incrementAndGet(); }
+
+	/**
+	 * Record that the client-to-server rule for a connection was removed.
+	 */
+	public void connectionClosed()
+	{
+		// Never go negative if a removal is reported for a rule installed
+		// before the counters were reset
+		int current;
+		do
+		{
+			current = this.liveConnections.get();
+			if (current <= 0)
+			{ return; }
+		} while (!this.liveConnections.compareAndSet(current, current - 1));
+	}
+
+	/**
+	 * Add the counters from a removed connection rule.
+	 * @param bytes number of bytes matched by the rule
+	 * @param packets number of packets matched by the rule
+	 */
+	public void addTraffic(long bytes, long packets)
+	{
+		this.byteCount.addAndGet(bytes);
+		this.packetCount.addAndGet(packets);
+		this.recentBytes.addAndGet(bytes);
+	}
+
+	@Override
+	public String toString()
+	{
+		String result = IPv4.fromIPv4Address(this.hostIP);
+		if (this.weight != 1)
+		{ result += ":" + this.weight; }
+		return result;
+	}
+}
@@ -1,6 +1,7 @@
 package edu.wisc.cs.sdn.apps.loadbalancer;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import net.floodlightcontroller.packet.IPv4;
@@ -8,18 +9,35 @@ import net.floodlightcontroller.util.MACAddress;
 
 public class LoadBalancerInstance 
 {
+	// Number of connections the connection table holds before it first grows
+	private static final int INITIAL_CONNECTIONS = 1024;
+	
 	// Virtual IP for this load balancer instance
 	private int virtualIP;
 	
 	// Virtual MAC address for this load balancer instance
 	private byte[] virtualMAC;
 	
-	// IPs for the hosts to which a flow could be sent
-	private List<Integer> hostIPs;
+	// Hosts to which a flow could be sent; replaced, never modified, when
+	// hosts are added or removed
+	private volatile List<LoadBalancerBackend> backends;
 	
 	// The index for the last host to which a flow was sent;
 	private int lastHost;
 	
+	// Connections handled by this instance and the host chosen for each
+	private ConnectionTable connections;
+	
+	// Connections whose rules idled out recently, in case they send again
+	private ConnectionTable idledConnections;
+	
+	// Chooses idle timeouts for connection rules; null if the timeout is 
+	// fixed
+	private volatile IdleTimeoutEstimator idleTimeouts;
+	
+	// Host each client was last sent to; null if clients have no affinity
+	private volatile AffinityTable affinity;
+	
 	/**
 	 * Create a load balancer instance.
 	 * @param virtualIP virtual IP address for the load balancer instance
@@ -31,25 +49,39 @@ public class LoadBalancerInstance
 	{
 		this.virtualIP = virtualIP;
 		this.virtualMAC = virtualMAC;
-		this.hostIPs = hostIPs;
+		this.backends = new ArrayList<LoadBalancerBackend>();
+		for (Integer hostIP : hostIPs)
+		{ this.backends.add(new LoadBalancerBackend(hostIP, 1)); }
+		this.backends = Collections.unmodifiableList(this.backends);
 		this.lastHost = -1;
+		this.connections = new ConnectionTable(INITIAL_CONNECTIONS);
+		this.idledConnections = new ConnectionTable(INITIAL_CONNECTIONS);
 	}
 	
 	/**
 	 * Create a load balancer instance.
 	 * @param virtualIP virtual IP address for the load balancer instance
 	 * @param virtualMAC virtual MAC address for the load balancer instances
-	 * @param hostIPs IPs for hosts to which requests should be balanced 
+	 * @param hostIPs IPs for hosts to which requests should be balanced, each
+	 *        optionally followed by a colon and a weight (e.g., 10.0.0.2:3)
 	 */
 	public LoadBalancerInstance(String virtualIP, String virtualMAC,
 			String[] hostIPs)
 	{
 		this.virtualIP = IPv4.toIPv4Address(virtualIP);
 		this.virtualMAC = MACAddress.valueOf(virtualMAC).toBytes();
-		this.hostIPs = new ArrayList<Integer>();
+		this.backends = new ArrayList<LoadBalancerBackend>();
 		for (String hostIP : hostIPs)
-		{ this.hostIPs.add(IPv4.toIPv4Address(hostIP)); }
+		{
+			String[] parts = hostIP.split(":");
+			int weight = (parts.length > 1 ? Integer.parseInt(parts[1]) : 1);
+			this.backends.add(new LoadBalancerBackend(
+					IPv4.toIPv4Address(parts[0]), weight));
+		}
+		this.backends = Collections.unmodifiableList(this.backends);
 		this.lastHost = -1;
+		this.connections = new ConnectionTable(INITIAL_CONNECTIONS);
+		this.idledConnections = new ConnectionTable(INITIAL_CONNECTIONS);
 	}
 	
 	/**
@@ -70,10 +102,133 @@ public class LoadBalancerInstance
 	 */
 	public int getNextHostIP()
 	{
+		LoadBalancerBackend backend = 
+				this.selectBackend(SelectionPolicy.ROUND_ROBIN);
+		return (null == backend ? 0 : backend.getHostIP());
+	}
+	
+	/**
+	 * Choose the host for a new connection from the hosts that are available.
+	 * @param policy how to choose between hosts
+	 * @return the chosen host, null if no host is available
+	 */
+	public synchronized LoadBalancerBackend selectBackend(
+			SelectionPolicy policy)
+	{
+		List<LoadBalancerBackend> current = this.backends;
+		if (current.isEmpty())
+		{ return null; }
 		lastHost++;
-		if (lastHost >= hostIPs.size())
+		if (lastHost >= current.size())
 		{ lastHost = 0; }
-		return hostIPs.get(lastHost);
+		int chosen = policy.select(current, lastHost);
+		return (chosen < 0 ? null : current.get(chosen));
+	}
+	
+	/**
+	 * Get the connections handled by this instance.
+	 */
+	public ConnectionTable getConnections()
+	{ return this.connections; }
+	
+	/**
+	 * Get the connections whose rules idled out recently. A connection that
+	 * sends again is moved back to the connections handled by this instance.
+	 */
+	public ConnectionTable getIdledConnections()
+	{ return this.idledConnections; }
+	
+	/**
+	 * Get the estimator choosing idle timeouts for connection rules.
+	 * @return the estimator, null if the idle timeout is fixed
+	 */
+	public IdleTimeoutEstimator getIdleTimeouts()
+	{ return this.idleTimeouts; }
+	
+	/**
+	 * Adapt the idle timeout of connection rules to this instance's traffic.
+	 * @param idleTimeouts the estimator, or null to use a fixed timeout
+	 */
+	public void setIdleTimeouts(IdleTimeoutEstimator idleTimeouts)
+	{ this.idleTimeouts = idleTimeouts; }
+	
+	/**
+	 * Get the table of hosts clients were last sent to.
+	 * @return the table, null if clients have no affinity to a host
+	 */
+	public AffinityTable getAffinity()
+	{ return this.affinity; }
+	
+	/**
+	 * Make returning clients go to the same host.
+	 * @param affinity table of hosts clients were last sent to, or null to
+	 *        choose a host for every connection independently
+	 */
+	public void setAffinity(AffinityTable affinity)
+	{ this.affinity = affinity; }
+	
+	/**
+	 * Get the hosts to which flows can be sent. The list is a snapshot; it
+	 * does not change when hosts are added or removed.
+	 */
+	public List<LoadBalancerBackend> getBackends()
+	{ return this.backends; }
+	
+	/**
+	 * Get the host with a particular IP address.
+	 * @param hostIP the host's IP address
+	 * @return the host, null if the host is not part of this instance
+	 */
+	public LoadBalancerBackend getBackend(int hostIP)
+	{
+		for (LoadBalancerBackend backend : this.backends)
+		{
+			if (backend.getHostIP() == hostIP)
+			{ return backend; }
+		}
+		return null;
+	}
+	
+	/**
+	 * Add a host to this instance. A host that is being drained is put back
+	 * into rotation instead.
+	 * @param backend the host to add
+	 * @return true if the host was added or stopped draining, false if the
+	 *         instance already has an active host with the same IP address
+	 */
+	public synchronized boolean addBackend(LoadBalancerBackend backend)
+	{
+		LoadBalancerBackend existing = this.getBackend(backend.getHostIP());
+		if (existing != null)
+		{
+			if (!existing.isDraining())
+			{ return false; }
+			existing.setDraining(false);
+			return true;
+		}
+		List<LoadBalancerBackend> updated = 
+				new ArrayList<LoadBalancerBackend>(this.backends);
+		updated.add(backend);
+		this.backends = Collections.unmodifiableList(updated);
+		return true;
+	}
+	
+	/**
+	 * Remove a host from this instance immediately. Connections still open to
+	 * the host are no longer attributed to it.
+	 * @param hostIP the host's IP address
+	 * @return the removed host, null if the host is not part of this instance
+	 */
+	public synchronized LoadBalancerBackend removeBackend(int hostIP)
+	{
+		LoadBalancerBackend existing = this.getBackend(hostIP);
+		if (null == existing)
+		{ return null; }
+		List<LoadBalancerBackend> updated = 
+				new ArrayList<LoadBalancerBackend>(this.backends);
+		updated.remove(existing);
+		this.backends = Collections.unmodifiableList(updated);
+		return existing;
 	}
 	
 	@Override
@@ -81,8 +236,8 @@ public class LoadBalancerInstance
 	{
 		String result = IPv4.fromIPv4Address(this.virtualIP);
 		result += " " + MACAddress.valueOf(this.virtualMAC).toString() + " ";
-		for (Integer hostIP : this.hostIPs)
-		{ result += IPv4.fromIPv4Address(hostIP) + ","; }
+		for (LoadBalancerBackend backend : this.backends)
+		{ result += backend + ","; }
 		if (',' == result.charAt(result.length()-1))
 		{ result = result.substring(0, result.length()-1); }
 		return result;
@@ -0,0 +1,192 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFPacketIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * Hands packet-ins off from Floodlight's I/O thread to a pool of workers.
+ * Packets are sharded by switch DPID, so packets from one switch are handled
+ * in the order they arrived while different switches proceed in parallel.
+ * Each worker has a bounded queue; packets arriving at a full queue are
+ * dropped and counted rather than stalling the I/O thread.
+ */
+public class PacketInDispatcher
+{
+	// Interface to the logging system
+	private static Logger log = LoggerFactory.getLogger(
+			PacketInDispatcher.class.getSimpleName());
+
+	// Log a warning for the first drop and then once per this many drops
+	private static final long DROP_LOG_INTERVAL = 1000;
+
+	/**
+	 * Processes packets taken off a worker's queue.
+	 */
+	public interface Handler
+	{
+		/**
+		 * Handle a packet sent to the controller.
+		 * @param sw switch on which the packet was received
+		 * @param pktIn the packet-in message
+		 * @param ethPkt the deserialized packet
+		 */
+		public void handlePacketIn(IOFSwitch sw, OFPacketIn pktIn,
+				Ethernet ethPkt);
+	}
+
+	private static class Task
+	{
+		final IOFSwitch sw;
+		final OFPacketIn pktIn;
+		final Ethernet ethPkt;
+
+		Task(IOFSwitch sw, OFPacketIn pktIn, Ethernet ethPkt)
+		{
+			this.sw = sw;
+			this.pktIn = pktIn;
+			this.ethPkt = ethPkt;
+		}
+	}
+
+	// Queue of pending packets for each worker
+	private BlockingQueue<Task>[] queues;
+
+	// Threads that drain the queues
+	private Thread[] workers;
+
+	private Handler handler;
+
+	// Packets accepted, handled, and dropped because a queue was full
+	private AtomicLong dispatched;
+	private AtomicLong processed;
+	private AtomicLong dropped;
+
+	/**
+	 * Create a dispatcher.
+	 * @param name prefix for worker thread names
+	 * @param workerCount number of worker threads
+	 * @param queueCapacity maximum number of pending packets per worker
+	 * @param handler processes each packet
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public PacketInDispatcher(String name, int workerCount, int queueCapacity,
+			Handler handler)
+	{
+		this.handler = handler;
+		this.dispatched = new AtomicLong(0);
+		this.processed = new AtomicLong(0);
+		this.dropped = new AtomicLong(0);
+
+		this.queues = new BlockingQueue[workerCount];
+		this.workers = new Thread[workerCount];
+		for (int i = 0; i < workerCount; i++)
+		{
+			final BlockingQueue<Task> queue =
+					new ArrayBlockingQueue<Task>(queueCapacity);
+			this.queues[i] = queue;
+			this.workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{ drain(queue); }
+			}, name + "-worker-" + i);
+			this.workers[i].setDaemon(true);
+		}
+	}
+
+	/**
+	 * Start the worker threads.
+	 */
+	public void start()
+	{
+		for (Thread worker : this.workers)
+		{ worker.start(); }
+		log.info(String.format("Started %d packet-in workers",
+				this.workers.length));
+	}
+
+	/**
+	 * Queue a packet for the worker responsible for the switch it came from.
+	 * @param sw switch on which the packet was received
+	 * @param pktIn the packet-in message
+	 * @param ethPkt the deserialized packet
+	 * @return true if the packet was queued, false if it was dropped
+	 */
+	public boolean dispatch(IOFSwitch sw, OFPacketIn pktIn, Ethernet ethPkt)
+	{
+		int shard = shardFor(sw.getId(), this.queues.length);
+		if (!this.queues[shard].offer(new Task(sw, pktIn, ethPkt)))
+		{
+			long drops = this.dropped.incrementAndGet();
+			if (1 == drops % DROP_LOG_INTERVAL)
+			{
+				log.warn(String.format("Packet-in queue %d is full; %d packets dropped so far",
+						shard, drops));
+			}
+			return false;
+		}
+		this.dispatched.incrementAndGet();
+		return true;
+	}
+
+	private void drain(BlockingQueue<Task> queue)
+	{
+		while (true)
+		{
+			Task task;
+			try
+			{ task = queue.take(); }
+			catch (InterruptedException e)
+			{ return; }
+
+			try
+			{ this.handler.handlePacketIn(task.sw, task.pktIn, task.ethPkt); }
+			catch (RuntimeException e)
+			{ log.error("Failed to handle packet-in", e); }
+			this.processed.incrementAndGet();
+		}
+	}
+
+	private static int shardFor(long dpid, int shards)
+	{
+		long mixed = dpid ^ (dpid >>> 32);
+		mixed ^= mixed >>> 16;
+		return (int)((mixed & 0x7FFFFFFFL) % shards);
+	}
+
+	/**
+	 * Get the number of packets queued for workers.
+	 */
+	public long getDispatched()
+	{ return this.dispatched.get(); }
+
+	/**
+	 * Get the number of packets workers have finished handling.
+	 */
+	public long getProcessed()
+	{ return this.processed.get(); }
+
+	/**
+	 * Get the number of packets dropped because a worker's queue was full.
+	 */
+	public long getDropped()
+	{ return this.dropped.get(); }
+
+	/**
+	 * Get the number of packets waiting in all queues.
+	 */
+	public int getBacklog()
+	{
+		int backlog = 0;
+		for (BlockingQueue<Task> queue : this.queues)
+		{ backlog += queue.size(); }
+		return backlog;
+	}
+}
@@ -0,0 +1,159 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.List;
+
+public enum SelectionPolicy
+{
+	/**
+	 * Hand out hosts in turn, ignoring load.
+	 */
+	ROUND_ROBIN("roundrobin")
+	{
+		@Override
+		public int select(List<LoadBalancerBackend> backends, int start)
+		{
+			int size = backends.size();
+			for (int i = 0; i < size; i++)
+			{
+				int index = (start + i) % size;
+				if (backends.get(index).isAvailable())
+				{ return index; }
+			}
+			return -1;
+		}
+	},
+
+	/**
+	 * Pick the host with the fewest live connections per unit of weight.
+	 */
+	WEIGHTED_LEAST_CONNECTIONS("wlc")
+	{
+		@Override
+		public int select(List<LoadBalancerBackend> backends, int start)
+		{
+			int size = backends.size();
+			int best = -1;
+			long bestLoad = 0;
+			long bestWeight = 1;
+			for (int i = 0; i < size; i++)
+			{
+				int index = (start + i) % size;
+				LoadBalancerBackend backend = backends.get(index);
+				if (!backend.isAvailable())
+				{ continue; }
+				long load = backend.getLiveConnections();
+				// Compare load/weight without dividing
+				if (best < 0 || load * bestWeight < bestLoad * backend.getWeight())
+				{
+					best = index;
+					bestLoad = load;
+					bestWeight = backend.getWeight();
+				}
+			}
+			return best;
+		}
+	},
+
+	/**
+	 * Pick the host whose connections recently carried the fewest bytes per
+	 * second per unit of weight; hosts with the same rate, such as hosts 
+	 * whose connections are all still open, are compared by live connections
+	 * per unit of weight.
+	 */
+	LEAST_BYTES("leastbytes")
+	{
+		@Override
+		public int select(List<LoadBalancerBackend> backends, int start)
+		{
+			int size = backends.size();
+			int best = -1;
+			double bestLoad = 0;
+			double bestConnections = 0;
+			for (int i = 0; i < size; i++)
+			{
+				int index = (start + i) % size;
+				LoadBalancerBackend backend = backends.get(index);
+				if (!backend.isAvailable())
+				{ continue; }
+				double load = backend.getByteRate() / backend.getWeight();
+				double connections = (double)backend.getLiveConnections() 
+						/ backend.getWeight();
+				if (best < 0 || load < bestLoad 
+						|| (load == bestLoad && connections < bestConnections))
+				{
+					best = index;
+					bestLoad = load;
+					bestConnections = connections;
+				}
+			}
+			return best;
+		}
+	},
+
+	/**
+	 * Pick the host with the fewest live connections per unit of weight and
+	 * of spare capacity on its edge link, so hosts behind a busy link get
+	 * fewer new connections.
+	 */
+	LEAST_CONGESTED("congestion")
+	{
+		@Override
+		public int select(List<LoadBalancerBackend> backends, int start)
+		{
+			int size = backends.size();
+			int best = -1;
+			double bestLoad = 0;
+			for (int i = 0; i < size; i++)
+			{
+				int index = (start + i) % size;
+				LoadBalancerBackend backend = backends.get(index);
+				if (!backend.isAvailable())
+				{ continue; }
+				// Count the new connection so idle hosts still compare by
+				// headroom
+				double load = (backend.getLiveConnections() + 1)
+						/ (backend.getWeight() * backend.getLinkHeadroom());
+				if (best < 0 || load < bestLoad)
+				{
+					best = index;
+					bestLoad = load;
+				}
+			}
+			return best;
+		}
+	};
+
+	// Name used for the policy in the configuration file
+	private String configName;
+
+	private SelectionPolicy(String configName)
+	{ this.configName = configName; }
+
+	/**
+	 * Choose a host for a new connection.
+	 * @param backends hosts to choose from; never empty
+	 * @param start index at which to begin scanning, used to rotate between
+	 *        hosts that are equally loaded
+	 * @return the index of the chosen host, -1 if no host is available
+	 */
+	public abstract int select(List<LoadBalancerBackend> backends, int start);
+
+	/**
+	 * Get the policy with a particular name in the configuration file.
+	 * @param configName name of the policy, case insensitive
+	 * @return the policy, null if there is no policy with that name
+	 */
+	public static SelectionPolicy fromConfig(String configName)
+	{
+		for (SelectionPolicy policy : values())
+		{
+			if (policy.configName.equalsIgnoreCase(configName.trim()))
+			{ return policy; }
+		}
+		return null;
+	}
+
+	@Override
+	public String toString()
+	{ return this.configName; }
+}
@@ -0,0 +1,182 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wisc.cs.sdn.apps.util.TokenBucket;
+
+/**
+ * Decides which packets sent to virtual IPs the controller acts on, so a SYN
+ * flood cannot fill switch tables or starve legitimate connection setup.
+ * Three token buckets are checked in turn: for SYNs one per source IP and one
+ * per virtual IP, then one per switch for all packet-ins that got that far.
+ *
+ * Source buckets live in a fixed array indexed by a hash of the source IP.
+ * Spoofed floods from millions of addresses therefore use constant memory;
+ * the cost is that a client sharing a slot with an attacker shares its rate.
+ */
+public class SynAdmissionControl
+{
+	// Number of source buckets; a power of two
+	private static final int SOURCE_SLOTS = 1 << 16;
+
+	// Number of locks guarding the source buckets
+	private static final int SOURCE_STRIPES = 64;
+
+	// Rates (events per second) and bursts; a rate of 0 disables the check
+	private double switchRate;
+	private double sourceRate;
+	private double virtualIPRate;
+
+	// Per-switch buckets for all packet-ins
+	private Map<Long,TokenBucket> switchBuckets;
+
+	// Per-virtual IP buckets for SYNs
+	private Map<Integer,TokenBucket> virtualIPBuckets;
+
+	// Hashed per-source buckets for SYNs, stored as flat arrays
+	private double[] sourceTokens;
+	private long[] sourceRefill;
+	private Object[] sourceLocks;
+
+	// Packets rejected by each check
+	private AtomicLong switchRejects;
+	private AtomicLong sourceRejects;
+	private AtomicLong virtualIPRejects;
+
+	/**
+	 * Create an admission control stage.
+	 * @param switchRate packet-ins per second admitted from each switch
+	 * @param sourceRate SYNs per second admitted from each source IP
+	 * @param virtualIPRate SYNs per second admitted for each virtual IP
+	 */
+	public SynAdmissionControl(double switchRate, double sourceRate,
+			double virtualIPRate)
+	{
+		this.switchRate = switchRate;
+		this.sourceRate = sourceRate;
+		this.virtualIPRate = virtualIPRate;
+		this.switchBuckets = new ConcurrentHashMap<Long,TokenBucket>();
+		this.virtualIPBuckets = new ConcurrentHashMap<Integer,TokenBucket>();
+
+		this.sourceTokens = new double[SOURCE_SLOTS];
+		this.sourceRefill = new long[SOURCE_SLOTS];
+		this.sourceLocks = new Object[SOURCE_STRIPES];
+		for (int i = 0; i < SOURCE_STRIPES; i++)
+		{ this.sourceLocks[i] = new Object(); }
+		Arrays.fill(this.sourceTokens, burstFor(sourceRate));
+		Arrays.fill(this.sourceRefill, System.nanoTime());
+
+		this.switchRejects = new AtomicLong(0);
+		this.sourceRejects = new AtomicLong(0);
+		this.virtualIPRejects = new AtomicLong(0);
+	}
+
+	/**
+	 * Check whether the controller should process a packet-in from a switch.
+	 * @param switchId DPID of the switch that sent the packet
+	 * @return true if the packet is admitted, otherwise false
+	 */
+	public boolean admitPacketIn(long switchId)
+	{
+		if (this.switchRate <= 0)
+		{ return true; }
+		TokenBucket bucket = this.switchBuckets.get(switchId);
+		if (null == bucket)
+		{
+			bucket = new TokenBucket(this.switchRate,
+					burstFor(this.switchRate));
+			this.switchBuckets.put(switchId, bucket);
+		}
+		if (bucket.tryAcquire())
+		{ return true; }
+		this.switchRejects.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Check whether the controller should install rules for a SYN.
+	 * @param sourceIP the client's IP address
+	 * @param virtualIP the virtual IP the SYN was sent to
+	 * @return true if the SYN is admitted, otherwise false
+	 */
+	public boolean admitSyn(int sourceIP, int virtualIP)
+	{
+		if (!this.acquireSource(sourceIP))
+		{
+			this.sourceRejects.incrementAndGet();
+			return false;
+		}
+
+		if (this.virtualIPRate <= 0)
+		{ return true; }
+		TokenBucket bucket = this.virtualIPBuckets.get(virtualIP);
+		if (null == bucket)
+		{
+			bucket = new TokenBucket(this.virtualIPRate,
+					burstFor(this.virtualIPRate));
+			this.virtualIPBuckets.put(virtualIP, bucket);
+		}
+		if (bucket.tryAcquire())
+		{ return true; }
+		this.virtualIPRejects.incrementAndGet();
+		return false;
+	}
+
+	private boolean acquireSource(int sourceIP)
+	{
+		if (this.sourceRate <= 0)
+		{ return true; }
+
+		int slot = hash(sourceIP) & (SOURCE_SLOTS - 1);
+		synchronized (this.sourceLocks[slot & (SOURCE_STRIPES - 1)])
+		{
+			long now = System.nanoTime();
+			double tokens = Math.min(burstFor(this.sourceRate),
+					this.sourceTokens[slot]
+					+ (now - this.sourceRefill[slot]) * this.sourceRate / 1e9);
+			this.sourceRefill[slot] = now;
+			if (tokens < 1)
+			{
+				this.sourceTokens[slot] = tokens;
+				return false;
+			}
+			this.sourceTokens[slot] = tokens - 1;
+			return true;
+		}
+	}
+
+	/**
+	 * Allow bursts of twice the per-second rate.
+	 */
+	private static double burstFor(double rate)
+	{ return Math.max(1, rate * 2); }
+
+	private static int hash(int key)
+	{
+		key ^= key >>> 16;
+		key *= 0x85ebca6b;
+		key ^= key >>> 13;
+		return key;
+	}
+
+	/**
+	 * Get the number of packet-ins rejected by the per-switch limit.
+	 */
+	public long getSwitchRejects()
+	{ return this.switchRejects.get(); }
+
+	/**
+	 * Get the number of SYNs rejected by the per-source limit.
+	 */
+	public long getSourceRejects()
+	{ return this.sourceRejects.get(); }
+
+	/**
+	 * Get the number of SYNs rejected by the per-virtual IP limit.
+	 */
+	public long getVirtualIPRejects()
+	{ return this.virtualIPRejects.get(); }
+}
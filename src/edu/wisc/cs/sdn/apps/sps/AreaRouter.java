@@ -0,0 +1,334 @@
+package edu.wisc.cs.sdn.apps.sps;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import edu.wisc.cs.sdn.apps.util.Host;
+import edu.wisc.cs.sdn.apps.util.Prefix;
+import edu.wisc.cs.sdn.apps.util.PrefixRouteTable;
+import edu.wisc.cs.sdn.apps.util.ShortestPaths;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Computes routes hierarchically, with switches partitioned into areas.
+ * Paths inside an area use only the area's own links, and are recomputed
+ * only when a switch or link in that area changes. Between areas, routes
+ * follow a shortest path in the graph whose nodes are areas and whose edges
+ * are links between areas; each area leaves toward each other area through
+ * one border switch. The hosts of each area are summarized by the largest
+ * prefixes that contain no host of another area, so a switch holds a rule
+ * per host in its own area plus a rule per summary of every other area.
+ */
+public class AreaRouter
+{
+	/** Area of switches that are not assigned to any area. */
+	public static final int DEFAULT_AREA = 0;
+
+	/**
+	 * Where an area sends traffic for another area: a border switch in the
+	 * area and the port of the link leading out of the area.
+	 */
+	private static class Exit
+	{
+		final long border;
+		final int port;
+
+		Exit(long border, int port)
+		{
+			this.border = border;
+			this.port = port;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Exit))
+			{ return false; }
+			Exit other = (Exit)obj;
+			return (other.border == this.border && other.port == this.port);
+		}
+
+		@Override
+		public int hashCode()
+		{ return (int)(this.border ^ (this.border >>> 32)) * 31 + this.port; }
+	}
+
+	// Configured switch DPID -> area
+	private Map<Long,Integer> configuredAreas;
+
+	// Switches per area when areas are derived from DPIDs, 0 otherwise
+	private int areaSize;
+
+	// Shortest prefix used to summarize an area
+	private int minPrefixLength;
+
+	// Area -> connected switches in the area
+	private Map<Integer,Set<Long>> members;
+
+	// Area -> switch -> destination switch in the area -> port
+	private Map<Integer,Map<Long,Map<Long,Integer>>> intraHops;
+
+	// Area -> destination area -> exit
+	private Map<Integer,Map<Integer,Exit>> exits;
+
+	// Summary prefix -> area whose hosts it covers
+	private Map<Prefix,Long> summaries;
+
+	/**
+	 * Create an area router.
+	 * @param areas either "auto:N", which puts switches 1..N in area 1,
+	 *        N+1..2N in area 2, and so on; or a list of areas separated by
+	 *        semicolons, each a comma-separated list of switch DPIDs, which
+	 *        are numbered 1, 2, ... in order; unlisted switches are in
+	 *        DEFAULT_AREA
+	 * @param minPrefixLength shortest prefix used to summarize an area
+	 */
+	public AreaRouter(String areas, int minPrefixLength)
+	{
+		this.configuredAreas = new HashMap<Long,Integer>();
+		this.areaSize = 0;
+		areas = areas.trim();
+		if (areas.startsWith("auto:"))
+		{
+			this.areaSize = Integer.parseInt(areas.substring(5).trim());
+			if (this.areaSize <= 0)
+			{ throw new IllegalArgumentException("Bad area size: " + areas); }
+		}
+		else
+		{
+			String[] groups = areas.split(";");
+			for (int i = 0; i < groups.length; i++)
+			{
+				for (String dpid : groups[i].split(","))
+				{
+					if (dpid.trim().length() > 0)
+					{ this.configuredAreas.put(Long.parseLong(dpid.trim()), i + 1); }
+				}
+			}
+		}
+		this.minPrefixLength = minPrefixLength;
+		this.members = new HashMap<Integer,Set<Long>>();
+		this.intraHops = new HashMap<Integer,Map<Long,Map<Long,Integer>>>();
+		this.exits = new HashMap<Integer,Map<Integer,Exit>>();
+		this.summaries = new HashMap<Prefix,Long>();
+	}
+
+	/**
+	 * Get the area a switch belongs to.
+	 * @param switchId DPID of the switch
+	 * @return the area
+	 */
+	public int getArea(long switchId)
+	{
+		if (this.areaSize > 0)
+		{ return (int)(Math.max(0, switchId - 1) / this.areaSize) + 1; }
+		Integer area = this.configuredAreas.get(switchId);
+		return (null == area ? DEFAULT_AREA : area);
+	}
+
+	/**
+	 * Get the areas that currently have connected switches.
+	 */
+	public synchronized Set<Integer> getAreas()
+	{ return new HashSet<Integer>(this.members.keySet()); }
+
+	/**
+	 * Recompute paths after switches or links changed.
+	 * @param switches DPIDs of the connected switches
+	 * @param links links between switches
+	 * @param changed areas in which a switch or link changed
+	 * @return areas whose switches need their routes updated
+	 */
+	public synchronized Set<Integer> updateTopology(Set<Long> switches,
+			Collection<Link> links, Set<Integer> changed)
+	{
+		Map<Integer,Set<Long>> members = new HashMap<Integer,Set<Long>>();
+		for (long sw : switches)
+		{
+			int area = this.getArea(sw);
+			Set<Long> areaSwitches = members.get(area);
+			if (null == areaSwitches)
+			{
+				areaSwitches = new HashSet<Long>();
+				members.put(area, areaSwitches);
+			}
+			areaSwitches.add(sw);
+		}
+		this.members = members;
+
+		// Only the areas that changed get their paths recomputed
+		Set<Integer> dirty = new HashSet<Integer>(changed);
+		this.intraHops.keySet().retainAll(members.keySet());
+		for (Map.Entry<Integer,Set<Long>> area : members.entrySet())
+		{
+			if (changed.contains(area.getKey())
+					|| !this.intraHops.containsKey(area.getKey()))
+			{
+				this.intraHops.put(area.getKey(),
+						ShortestPaths.computeNextHops(area.getValue(), links));
+				dirty.add(area.getKey());
+			}
+		}
+
+		// The area graph is small, so it is always recomputed; if any exit
+		// moved, every area may route differently
+		Map<Integer,Map<Integer,Exit>> exits = this.computeExits(links);
+		if (!exits.equals(this.exits))
+		{ dirty.addAll(members.keySet()); }
+		this.exits = exits;
+		return dirty;
+	}
+
+	/**
+	 * Choose, for every pair of areas, the border switch through which the
+	 * first sends traffic toward the second.
+	 */
+	private Map<Integer,Map<Integer,Exit>> computeExits(Collection<Link> links)
+	{
+		// Area -> links leaving the area, as (border, port, neighbor area)
+		Map<Integer,Map<Exit,Integer>> leaving =
+				new HashMap<Integer,Map<Exit,Integer>>();
+		for (int area : this.members.keySet())
+		{ leaving.put(area, new HashMap<Exit,Integer>()); }
+		for (Link link : links)
+		{
+			int srcArea = this.getArea(link.getSrc());
+			int dstArea = this.getArea(link.getDst());
+			if (srcArea == dstArea || !leaving.containsKey(srcArea)
+					|| !leaving.containsKey(dstArea)
+					|| !this.members.get(srcArea).contains(link.getSrc())
+					|| !this.members.get(dstArea).contains(link.getDst()))
+			{ continue; }
+			leaving.get(srcArea).put(
+					new Exit(link.getSrc(), link.getSrcPort()), dstArea);
+			leaving.get(dstArea).put(
+					new Exit(link.getDst(), link.getDstPort()), srcArea);
+		}
+
+		Map<Integer,Map<Integer,Exit>> exits =
+				new HashMap<Integer,Map<Integer,Exit>>();
+		for (int area : this.members.keySet())
+		{ exits.put(area, new HashMap<Integer,Exit>()); }
+		for (int dst : this.members.keySet())
+		{
+			// Hops from each area to the destination area
+			Map<Integer,Integer> distance = new HashMap<Integer,Integer>();
+			Queue<Integer> queue = new LinkedList<Integer>();
+			distance.put(dst, 0);
+			queue.add(dst);
+			while (!queue.isEmpty())
+			{
+				int current = queue.remove();
+				for (int neighbor : leaving.get(current).values())
+				{
+					if (!distance.containsKey(neighbor))
+					{
+						distance.put(neighbor, distance.get(current) + 1);
+						queue.add(neighbor);
+					}
+				}
+			}
+
+			// Leave through the lowest-numbered border switch and port that
+			// leads one area closer
+			for (int area : this.members.keySet())
+			{
+				if (area == dst || !distance.containsKey(area))
+				{ continue; }
+				Exit best = null;
+				for (Map.Entry<Exit,Integer> candidate :
+						leaving.get(area).entrySet())
+				{
+					Integer next = distance.get(candidate.getValue());
+					if (null == next || next != distance.get(area) - 1)
+					{ continue; }
+					Exit exit = candidate.getKey();
+					if (null == best || exit.border < best.border
+							|| (exit.border == best.border
+								&& exit.port < best.port))
+					{ best = exit; }
+				}
+				if (best != null)
+				{ exits.get(area).put(dst, best); }
+			}
+		}
+		return exits;
+	}
+
+	/**
+	 * Recompute the prefixes summarizing each area's hosts.
+	 * @param hosts the hosts to route to
+	 * @return true if the summaries changed, otherwise false
+	 */
+	public synchronized boolean updateHosts(Collection<Host> hosts)
+	{
+		Map<Long,Long> owners = new HashMap<Long,Long>();
+		for (Host host : hosts)
+		{
+			for (Integer ip : host.getIPv4Addresses())
+			{
+				long address = ip & 0xFFFFFFFFL;
+				if (!owners.containsKey(address))
+				{ owners.put(address, (long)this.getArea(host.getSwitchId())); }
+			}
+		}
+		Map<Prefix,Long> summaries = PrefixRouteTable.assignPrefixes(owners,
+				this.minPrefixLength);
+		if (summaries.equals(this.summaries))
+		{ return false; }
+		this.summaries = summaries;
+		return true;
+	}
+
+	/**
+	 * Compute the routes a switch should hold.
+	 * @param switchId DPID of the switch
+	 * @param hosts the hosts to route to
+	 * @return prefix -> output port
+	 */
+	public synchronized Map<Prefix,Integer> getRoutes(long switchId,
+			Collection<Host> hosts)
+	{
+		Map<Prefix,Integer> routes = new HashMap<Prefix,Integer>();
+		int area = this.getArea(switchId);
+		Map<Long,Map<Long,Integer>> areaHops = this.intraHops.get(area);
+		Map<Long,Integer> hops = (null == areaHops ? null
+				: areaHops.get(switchId));
+		if (null == hops)
+		{ return routes; }
+
+		// A route per host in the same area
+		for (Host host : hosts)
+		{
+			if (this.getArea(host.getSwitchId()) != area)
+			{ continue; }
+			Integer port = (host.getSwitchId() == switchId ? host.getPort()
+					: hops.get(host.getSwitchId()));
+			if (null == port)
+			{ continue; }
+			for (Integer ip : host.getIPv4Addresses())
+			{ routes.put(new Prefix(ip, 32), port); }
+		}
+
+		// A route per summary of every other area, toward the area's exit
+		Map<Integer,Exit> areaExits = this.exits.get(area);
+		for (Map.Entry<Prefix,Long> summary : this.summaries.entrySet())
+		{
+			int dstArea = (int)(long)summary.getValue();
+			Exit exit = (null == areaExits ? null : areaExits.get(dstArea));
+			if (dstArea == area || null == exit)
+			{ continue; }
+			Integer port = (exit.border == switchId ? (Integer)exit.port
+					: hops.get(exit.border));
+			if (port != null)
+			{ routes.put(summary.getKey(), port); }
+		}
+		return routes;
+	}
+}
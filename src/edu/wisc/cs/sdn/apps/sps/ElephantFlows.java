@@ -0,0 +1,908 @@
+package edu.wisc.cs.sdn.apps.sps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFFlowRemoved;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
+import org.openflow.protocol.instruction.OFInstructionGotoTable;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.wisc.cs.sdn.apps.util.ControllerCluster;
+import edu.wisc.cs.sdn.apps.util.Host;
+import edu.wisc.cs.sdn.apps.util.IControllerClusterListener;
+import edu.wisc.cs.sdn.apps.util.IControllerClusterService;
+import edu.wisc.cs.sdn.apps.util.IFlowTableService;
+import edu.wisc.cs.sdn.apps.util.IHostIndexListener;
+import edu.wisc.cs.sdn.apps.util.IHostIndexService;
+import edu.wisc.cs.sdn.apps.util.IPipelineService;
+import edu.wisc.cs.sdn.apps.util.IPortStatsService;
+import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IOFSwitch.PortChangeType;
+import net.floodlightcontroller.core.IOFSwitchListener;
+import net.floodlightcontroller.core.ImmutablePort;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.devicemanager.internal.DeviceManagerImpl;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+/**
+ * Finds elephant flows, the few large transfers that carry most of the
+ * bytes, and steers each onto the least-loaded of the shortest paths to its
+ * destination, while the other flows stay on SPS's per-destination routes.
+ *
+ * Every TCP flow a host sends gets a counting rule in the elephants stage's
+ * table, just before SPS's table: the host's first packet reaches the
+ * controller through a sampling rule at the host's port, and later packets
+ * only bump the counting rule's byte count. The counting rules are polled,
+ * and a flow whose rate exceeds a threshold gets 5-tuple rules in SPS's
+ * table, above SPS's own rules, along its new path. When the flow ends its
+ * counting rule idles out, and its path rules are removed with it.
+ */
+public class ElephantFlows implements IFloodlightModule, IOFSwitchListener,
+		IOFMessageListener, IHostIndexListener, IControllerClusterListener
+{
+	public static final String MODULE_NAME = ElephantFlows.class.getSimpleName();
+
+	private static final int RATE_THRESHOLD_MBPS = 100;
+	private static final int POLL_INTERVAL = 2;
+	private static final short FLOW_IDLE_TIMEOUT = 10;
+
+	// Marks counting rules and path rules, so their statistics and removal
+	// messages can be told apart from other modules' rules
+	private static final long COUNTING_COOKIE = 0xE1E0000000000001L;
+	private static final long PATH_COOKIE = 0xE1E0000000000002L;
+
+	// Path rules outrank every SPS rule, including host routes in
+	// hierarchical mode, whose priority grows with prefix length
+	private static final short PATH_PRIORITY =
+			(short)(SwitchCommands.DEFAULT_PRIORITY + 33);
+
+	// Interface to the logging system
+    private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+
+    // Interface to Floodlight core for interacting with connected switches
+    private IFloodlightProviderService floodlightProv;
+
+    // Interface to SPS, which routes every flow that is not steered
+    private InterfaceShortestPathSwitching spsApp;
+
+    // Interface to the index of hosts' addresses and attachment points
+    private IHostIndexService hostIndex;
+
+    // Interface to thread pool service, used to schedule polls
+    private IThreadPoolService threadPool;
+
+    // Interface to port statistics, used to weigh paths by their load; null
+    // if only steered elephants count as load
+    private IPortStatsService portStats;
+
+    // Interface to switch rule counts, used to skip steering at full
+    // switches; null if switches are assumed never to fill up
+    private IFlowTableService flowTables;
+
+    // Interface to the controllers sharing the switches
+    private IControllerClusterService cluster;
+
+    // Switch table holding sampling and counting rules
+    private byte table;
+
+    // Switch table of SPS, to which packets go next
+    private byte routingTable;
+
+    // Rate above which a flow is an elephant, in bits per second
+    private double rateThreshold;
+
+    // Seconds between polls of the counting rules
+    private int pollInterval;
+
+    // Seconds a flow may be silent before its rules expire
+    private short flowIdleTimeout;
+
+    // Host IP -> port where the host's flows are sampled
+    private Map<Integer,EdgePort> sampledHosts;
+
+    // Flow -> measurements and path
+    private Map<FlowKey,FlowRecord> flows;
+
+    // Number of flows steered as elephants
+    private long elephants;
+
+    // Task which polls the counting rules
+    private SingletonTask pollTask;
+
+	private static final boolean isLogging = true;
+
+	private static class EdgePort
+	{
+		final long switchId;
+		final int port;
+
+		EdgePort(long switchId, int port)
+		{
+			this.switchId = switchId;
+			this.port = port;
+		}
+	}
+
+	private static final class FlowKey
+	{
+		final int srcIP, dstIP;
+		final short srcPort, dstPort;
+
+		FlowKey(int srcIP, int dstIP, short srcPort, short dstPort)
+		{
+			this.srcIP = srcIP;
+			this.dstIP = dstIP;
+			this.srcPort = srcPort;
+			this.dstPort = dstPort;
+		}
+
+		FlowKey(OFMatch match)
+		{
+			this(match.getNetworkSource(), match.getNetworkDestination(),
+					match.getTransportSource(), match.getTransportDestination());
+		}
+
+		OFMatch getMatch()
+		{
+			return new OFMatch()
+					.setDataLayerType(OFMatch.ETH_TYPE_IPV4)
+					.setNetworkProtocol(OFMatch.IP_PROTO_TCP)
+					.setNetworkSource(this.srcIP)
+					.setNetworkDestination(this.dstIP)
+					.setTransportSource(this.srcPort)
+					.setTransportDestination(this.dstPort);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof FlowKey))
+			{ return false; }
+			FlowKey other = (FlowKey)obj;
+			return (other.srcIP == this.srcIP && other.dstIP == this.dstIP
+					&& other.srcPort == this.srcPort
+					&& other.dstPort == this.dstPort);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int hash = this.srcIP;
+			hash = 31 * hash + this.dstIP;
+			hash = 31 * hash + this.srcPort;
+			return 31 * hash + this.dstPort;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%s:%d -> %s:%d",
+					IPv4.fromIPv4Address(this.srcIP), this.srcPort & 0xFFFF,
+					IPv4.fromIPv4Address(this.dstIP), this.dstPort & 0xFFFF);
+		}
+	}
+
+	private static class FlowRecord
+	{
+		// Switch holding the counting rule, where the flow enters the network
+		long switchId;
+
+		// Byte count and time of the previous poll
+		long lastBytes;
+		long lastTime;
+
+		// Latest rate in bits per second
+		double rate;
+
+		// Switch DPID -> port on the flow's path; null until the flow is
+		// found to be an elephant, empty if it had no alternative path
+		Map<Long,Integer> path;
+	}
+
+	/**
+     * Loads dependencies and initializes data structures.
+     */
+	@Override
+	public void init(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Initializing %s...", MODULE_NAME));
+		Map<String,String> config = context.getConfigParams(this);
+		IPipelineService pipeline = context.getServiceImpl(
+				IPipelineService.class);
+        this.table = pipeline.getTable(IPipelineService.ELEPHANTS);
+        this.routingTable = pipeline.getTable(IPipelineService.ROUTING);
+
+		this.floodlightProv = context.getServiceImpl(
+				IFloodlightProviderService.class);
+		this.spsApp = context.getServiceImpl(
+				InterfaceShortestPathSwitching.class);
+        this.hostIndex = context.getServiceImpl(IHostIndexService.class);
+        this.threadPool = context.getServiceImpl(IThreadPoolService.class);
+        this.portStats = context.getServiceImpl(IPortStatsService.class);
+        this.flowTables = context.getServiceImpl(IFlowTableService.class);
+        this.cluster = ControllerCluster.getService(context);
+
+        // Obtain detection settings from config
+        this.rateThreshold = (config.containsKey("rateThresholdMbps")
+        		? Double.parseDouble(config.get("rateThresholdMbps").trim())
+        		: RATE_THRESHOLD_MBPS) * 1e6;
+        this.pollInterval = (config.containsKey("pollInterval")
+        		? Integer.parseInt(config.get("pollInterval").trim())
+        		: POLL_INTERVAL);
+        this.flowIdleTimeout = (config.containsKey("flowIdleTimeout")
+        		? Short.parseShort(config.get("flowIdleTimeout").trim())
+        		: FLOW_IDLE_TIMEOUT);
+
+        this.sampledHosts = new ConcurrentHashMap<Integer,EdgePort>();
+        this.flows = new ConcurrentHashMap<FlowKey,FlowRecord>();
+	}
+
+	/**
+     * Subscribes to events and performs other startup tasks.
+     */
+	@Override
+	public void startUp(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Starting %s...", MODULE_NAME));
+
+		this.floodlightProv.addOFSwitchListener(this);
+		this.floodlightProv.addOFMessageListener(OFType.PACKET_IN, this);
+		this.floodlightProv.addOFMessageListener(OFType.FLOW_REMOVED, this);
+		this.hostIndex.addListener(this);
+		this.cluster.addListener(this);
+
+		this.pollTask = new SingletonTask(
+				this.threadPool.getScheduledExecutor(), new Runnable() {
+					@Override
+					public void run()
+					{
+						try
+						{ poll(); }
+						catch (RuntimeException e)
+						{ log.error("Flow statistics poll failed", e); }
+						finally
+						{ pollTask.reschedule(pollInterval, TimeUnit.SECONDS); }
+					}
+				});
+		this.pollTask.reschedule(this.pollInterval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Get the number of flows steered as elephants.
+	 */
+	public synchronized long getElephants()
+	{ return this.elephants; }
+
+    /**
+     * Event handler called when a switch joins the network.
+     * @param DPID for the switch
+     */
+	@Override
+	public void switchAdded(long switchId)
+	{
+		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+		if (null == sw || !this.cluster.isLocal(switchId))
+		{ return; }
+		log.info(String.format("Switch s%d added", switchId));
+
+		// Packets not sampled or counted go on to SPS through the pipeline
+		// manager's chain of lowest-priority rules
+		for (int ip : this.hostIndex.getIPAddresses())
+		{
+			if (this.hostIndex.getSwitch(ip) == switchId)
+			{ this.hostUpdated(ip); }
+		}
+	}
+
+	/**
+	 * Event handler called when a switch leaves the network.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchRemoved(long switchId)
+	{
+		// Flows counted at the switch are gone with its rules
+		synchronized (this)
+		{
+			for (Iterator<FlowRecord> it = this.flows.values().iterator();
+					it.hasNext(); )
+			{
+				if (it.next().switchId == switchId)
+				{ it.remove(); }
+			}
+		}
+		for (Iterator<EdgePort> it = this.sampledHosts.values().iterator();
+				it.hasNext(); )
+		{
+			if (it.next().switchId == switchId)
+			{ it.remove(); }
+		}
+	}
+
+	/**
+	 * Event handler called when the controller becomes the master for a switch.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchActivated(long switchId)
+	{ this.switchAdded(switchId); }
+
+	/**
+	 * Event handler called when a port on a switch goes up or down, or is
+	 * added or removed.
+	 * @param DPID for the switch
+	 * @param port the port on the switch whose status changed
+	 * @param type the type of status change (up, down, add, remove)
+	 */
+	@Override
+	public void switchPortChanged(long switchId, ImmutablePort port,
+			PortChangeType type)
+	{ /* Nothing we need to do, since hosts are tracked by the host index */ }
+
+	/**
+	 * Event handler called when some attribute of a switch changes.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchChanged(long switchId)
+	{ /* Nothing we need to do */ }
+
+	/**
+	 * Event handler called when a host's address or attachment point
+	 * changes; its flows are sampled at its new port.
+	 * @param ip the host's IP address
+	 */
+	@Override
+	public void hostUpdated(int ip)
+	{
+		long switchId = this.hostIndex.getSwitch(ip);
+		long port = this.hostIndex.getPort(ip);
+		EdgePort old = this.sampledHosts.get(ip);
+		if (old != null && (old.switchId != switchId || old.port != port))
+		{ this.hostRemoved(ip); }
+		if (IHostIndexService.UNKNOWN == switchId
+				|| IHostIndexService.UNKNOWN == port || !this.cluster.isLocal(switchId))
+		{ return; }
+		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+		if (null == sw)
+		{ return; }
+
+		// A copy of each packet goes to the controller, until the flow's
+		// counting rule takes over
+		OFAction sampleAction = new OFActionOutput(OFPort.OFPP_CONTROLLER);
+		OFInstruction sampleInstruction =
+				new OFInstructionApplyActions(Arrays.asList(sampleAction));
+		OFInstruction nextInstruction =
+				new OFInstructionGotoTable(this.routingTable);
+		SwitchCommands.installRule(sw, this.table,
+				SwitchCommands.DEFAULT_PRIORITY, getSamplingMatch(ip, (int)port),
+				Arrays.asList(sampleInstruction, nextInstruction));
+		this.sampledHosts.put(ip, new EdgePort(switchId, (int)port));
+	}
+
+	/**
+	 * Event handler called when a host leaves; its flows are no longer
+	 * sampled.
+	 * @param ip the host's IP address
+	 */
+	@Override
+	public void hostRemoved(int ip)
+	{
+		EdgePort edge = this.sampledHosts.remove(ip);
+		if (null == edge)
+		{ return; }
+		IOFSwitch sw = this.floodlightProv.getSwitch(edge.switchId);
+		if (sw != null)
+		{
+			SwitchCommands.removeRule(sw, this.table,
+					SwitchCommands.DEFAULT_PRIORITY,
+					getSamplingMatch(ip, edge.port));
+		}
+	}
+
+	private static OFMatch getSamplingMatch(int ip, int port)
+	{
+		return new OFMatch()
+				.setInputPort(port)
+				.setDataLayerType(OFMatch.ETH_TYPE_IPV4)
+				.setNetworkProtocol(OFMatch.IP_PROTO_TCP)
+				.setNetworkSource(ip);
+	}
+
+	/**
+	 * Handle incoming packets and rule removals.
+	 * @param sw switch on which the message was received
+	 * @param msg message from the switch
+	 * @param cntx the Floodlight context in which the message should be handled
+	 * @return indication whether another module should also process the message
+	 */
+	@Override
+	public net.floodlightcontroller.core.IListener.Command receive(
+			IOFSwitch sw, OFMessage msg, FloodlightContext cntx)
+	{
+		if (msg.getType() == OFType.FLOW_REMOVED)
+		{ return this.handleFlowRemoved(sw, (OFFlowRemoved)msg); }
+
+		// Only packets sampled from our table are ours
+		if (msg.getType() != OFType.PACKET_IN)
+		{ return Command.CONTINUE; }
+		OFPacketIn pktIn = (OFPacketIn)msg;
+		if (pktIn.getTableId() != this.table || !this.cluster.isLocal(sw.getId()))
+		{ return Command.CONTINUE; }
+
+		Ethernet ethPkt = new Ethernet();
+		ethPkt.deserialize(pktIn.getPacketData(), 0,
+				pktIn.getPacketData().length);
+		if (ethPkt.getEtherType() != Ethernet.TYPE_IPv4)
+		{ return Command.CONTINUE; }
+		IPv4 ipPkt = (IPv4)ethPkt.getPayload();
+		if (ipPkt.getProtocol() != IPv4.PROTOCOL_TCP)
+		{ return Command.CONTINUE; }
+		TCP tcpPkt = (TCP)ipPkt.getPayload();
+
+		// The packet itself was already forwarded by SPS's table
+		FlowKey key = new FlowKey(ipPkt.getSourceAddress(),
+				ipPkt.getDestinationAddress(), tcpPkt.getSourcePort(),
+				tcpPkt.getDestinationPort());
+		synchronized (this)
+		{
+			if (!this.flows.containsKey(key))
+			{
+				FlowRecord flow = new FlowRecord();
+				flow.switchId = sw.getId();
+				flow.lastTime = System.nanoTime();
+				this.flows.put(key, flow);
+			}
+		}
+		OFInstruction nextInstruction =
+				new OFInstructionGotoTable(this.routingTable);
+		SwitchCommands.installRule(sw, this.table,
+				(short)(SwitchCommands.DEFAULT_PRIORITY + 1), key.getMatch(),
+				Arrays.asList(nextInstruction), SwitchCommands.NO_TIMEOUT,
+				this.flowIdleTimeout, OFPacketOut.BUFFER_ID_NONE,
+				COUNTING_COOKIE, OFFlowMod.OFPFF_SEND_FLOW_REM);
+		return Command.STOP;
+	}
+
+	/**
+	 * Forget a flow once its counting rule is removed from its switch.
+	 * @param sw the switch that removed the rule
+	 * @param flowRemoved the removal message sent by the switch
+	 * @return indication whether another module should also process the message
+	 */
+	private Command handleFlowRemoved(IOFSwitch sw, OFFlowRemoved flowRemoved)
+	{
+		if (flowRemoved.getCookie() != COUNTING_COOKIE)
+		{ return Command.CONTINUE; }
+		this.flowEnded(new FlowKey(flowRemoved.getMatch()));
+		return Command.STOP;
+	}
+
+	/**
+	 * Forget a flow and remove its path rules.
+	 * @param key the flow
+	 */
+	private synchronized void flowEnded(FlowKey key)
+	{
+		FlowRecord flow = this.flows.remove(key);
+		if (null == flow || null == flow.path)
+		{ return; }
+		OFMatch match = key.getMatch();
+		for (long switchId : flow.path.keySet())
+		{
+			IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+			if (sw != null && this.cluster.isLocal(switchId))
+			{ SwitchCommands.removeRule(sw, this.routingTable, PATH_PRIORITY, match); }
+		}
+		if (isLogging && !flow.path.isEmpty())
+			log.info(String.format("Elephant flow %s ended", key));
+	}
+
+	/**
+	 * Request the counting rules from every switch, update each flow's rate,
+	 * and steer flows that became elephants.
+	 */
+	private void poll()
+	{
+		List<IOFSwitch> switches = new ArrayList<IOFSwitch>();
+		for (IOFSwitch sw : this.floodlightProv.getAllSwitchMap().values())
+		{
+			if (this.cluster.isLocal(sw.getId()))
+			{ switches.add(sw); }
+		}
+		Map<Long,List<OFStatistics>> replies = 
+				SwitchCommands.queryFlowStatistics(switches, this.table, 
+						this.pollInterval);
+
+		Map<Long,List<OFFlowStatisticsReply>> counts =
+				new HashMap<Long,List<OFFlowStatisticsReply>>();
+		for (Map.Entry<Long,List<OFStatistics>> reply : replies.entrySet())
+		{
+			List<OFFlowStatisticsReply> rules =
+					new ArrayList<OFFlowStatisticsReply>();
+			for (OFStatistics stat : reply.getValue())
+			{
+				if (stat instanceof OFFlowStatisticsReply
+						&& COUNTING_COOKIE == ((OFFlowStatisticsReply)stat).getCookie())
+				{ rules.add((OFFlowStatisticsReply)stat); }
+			}
+			counts.put(reply.getKey(), rules);
+		}
+
+		this.updateFlows(counts, System.nanoTime());
+	}
+
+	/**
+	 * Fold polled byte counts into the flows' rates and steer new elephants.
+	 * @param counts switch DPID -> statistics of its counting rules, for
+	 *        each switch that replied
+	 * @param now the current time in nanoseconds
+	 */
+	private synchronized void updateFlows(
+			Map<Long,List<OFFlowStatisticsReply>> counts, long now)
+	{
+		Set<FlowKey> counted = new HashSet<FlowKey>();
+		List<FlowKey> newElephants = new ArrayList<FlowKey>();
+		for (List<OFFlowStatisticsReply> rules : counts.values())
+		{
+			for (OFFlowStatisticsReply rule : rules)
+			{
+				FlowKey key = new FlowKey(rule.getMatch());
+				FlowRecord flow = this.flows.get(key);
+				if (null == flow)
+				{ continue; }
+				counted.add(key);
+				double seconds = (now - flow.lastTime) / 1e9;
+				if (seconds > 0)
+				{
+					flow.rate = Math.max(0, rule.getByteCount() - flow.lastBytes)
+							* 8 / seconds;
+				}
+				flow.lastBytes = rule.getByteCount();
+				flow.lastTime = now;
+				if (null == flow.path && flow.rate >= this.rateThreshold)
+				{ newElephants.add(key); }
+			}
+		}
+
+		// A counting rule missing from its switch's reply has expired, even
+		// if its removal message was lost
+		List<FlowKey> ended = new ArrayList<FlowKey>();
+		for (Map.Entry<FlowKey,FlowRecord> entry : this.flows.entrySet())
+		{
+			if (counts.containsKey(entry.getValue().switchId)
+					&& !counted.contains(entry.getKey()))
+			{ ended.add(entry.getKey()); }
+		}
+		for (FlowKey key : ended)
+		{ this.flowEnded(key); }
+
+		if (newElephants.isEmpty())
+		{ return; }
+
+		// Heaviest elephants pick their paths first
+		final Map<FlowKey,FlowRecord> flows = this.flows;
+		Collections.sort(newElephants, new Comparator<FlowKey>() {
+			@Override
+			public int compare(FlowKey a, FlowKey b)
+			{ return Double.compare(flows.get(b).rate, flows.get(a).rate); }
+		});
+		Map<Long,Map<Integer,Double>> loads = this.getLoads();
+		for (FlowKey key : newElephants)
+		{ this.steer(key, this.flows.get(key), loads); }
+	}
+
+	/**
+	 * Get the load on each switch port: its measured transmit rate, if port
+	 * statistics are available, plus the rates of elephants steered onto it.
+	 * @return switch DPID -> port -> bits per second
+	 */
+	private Map<Long,Map<Integer,Double>> getLoads()
+	{
+		Map<Long,Map<Integer,Double>> loads =
+				new HashMap<Long,Map<Integer,Double>>();
+		for (FlowRecord flow : this.flows.values())
+		{
+			if (null == flow.path)
+			{ continue; }
+			for (Map.Entry<Long,Integer> hop : flow.path.entrySet())
+			{ addLoad(loads, hop.getKey(), hop.getValue(), flow.rate); }
+		}
+		return loads;
+	}
+
+	private double getLoad(Map<Long,Map<Integer,Double>> loads, long switchId,
+			int port)
+	{
+		Map<Integer,Double> ports = loads.get(switchId);
+		Double steered = (null == ports ? null : ports.get(port));
+		return (null == steered ? 0 : steered) + (null == this.portStats ? 0
+				: this.portStats.getTransmitRate(switchId, port));
+	}
+
+	private static void addLoad(Map<Long,Map<Integer,Double>> loads,
+			long switchId, int port, double rate)
+	{
+		Map<Integer,Double> ports = loads.get(switchId);
+		if (null == ports)
+		{
+			ports = new HashMap<Integer,Double>();
+			loads.put(switchId, ports);
+		}
+		Double load = ports.get(port);
+		ports.put(port, (null == load ? 0 : load) + rate);
+	}
+
+	/**
+	 * Move an elephant onto the least-loaded shortest path to its
+	 * destination. At each switch the flow takes the least-loaded link among
+	 * those leading one hop closer, so the path stays as short as SPS's.
+	 * @param key the flow
+	 * @param flow the flow's measurements
+	 * @param loads switch DPID -> port -> load in bits per second; updated
+	 *        with the flow's rate along its new path
+	 */
+	private void steer(FlowKey key, FlowRecord flow,
+			Map<Long,Map<Integer,Double>> loads)
+	{
+		flow.path = new LinkedHashMap<Long,Integer>();
+		long dstSwitch = this.hostIndex.getSwitch(key.dstIP);
+		long dstPort = this.hostIndex.getPort(key.dstIP);
+		if (IHostIndexService.UNKNOWN == dstSwitch
+				|| IHostIndexService.UNKNOWN == dstPort)
+		{ return; }
+
+		// Switch DPID -> neighbor DPID -> port toward the neighbor
+		Map<Long,Map<Long,Integer>> neighbors =
+				new HashMap<Long,Map<Long,Integer>>();
+		for (Link link : this.spsApp.getLinks())
+		{
+			addNeighbor(neighbors, link.getSrc(), link.getDst(), link.getSrcPort());
+			addNeighbor(neighbors, link.getDst(), link.getSrc(), link.getDstPort());
+		}
+
+		// Hops from each switch to the destination, by breadth-first search
+		Map<Long,Integer> hops = new HashMap<Long,Integer>();
+		Queue<Long> queue = new LinkedList<Long>();
+		hops.put(dstSwitch, 0);
+		queue.add(dstSwitch);
+		while (!queue.isEmpty())
+		{
+			long current = queue.remove();
+			Map<Long,Integer> adjacent = neighbors.get(current);
+			if (null == adjacent)
+			{ continue; }
+			for (long neighbor : adjacent.keySet())
+			{
+				if (!hops.containsKey(neighbor))
+				{
+					hops.put(neighbor, hops.get(current) + 1);
+					queue.add(neighbor);
+				}
+			}
+		}
+		if (!hops.containsKey(flow.switchId))
+		{ return; }
+
+		Map<Long,Integer> path = new LinkedHashMap<Long,Integer>();
+		boolean choice = false;
+		long current = flow.switchId;
+		while (current != dstSwitch)
+		{
+			long next = 0;
+			int port = 0;
+			double least = Double.POSITIVE_INFINITY;
+			int candidates = 0;
+			for (Map.Entry<Long,Integer> neighbor :
+					neighbors.get(current).entrySet())
+			{
+				if (hops.get(neighbor.getKey()) != hops.get(current) - 1)
+				{ continue; }
+				candidates++;
+				double load = this.getLoad(loads, current, neighbor.getValue());
+				if (load < least || (load == least && neighbor.getValue() < port))
+				{
+					least = load;
+					next = neighbor.getKey();
+					port = neighbor.getValue();
+				}
+			}
+			choice |= (candidates > 1);
+			path.put(current, port);
+			current = next;
+		}
+		path.put(dstSwitch, (int)dstPort);
+
+		// With a single shortest path, SPS's route is already the only one
+		if (!choice)
+		{ return; }
+
+		// Steering only improves the path, so a switch short of room keeps
+		// the flow on SPS's route
+		if (this.flowTables != null)
+		{
+			for (long switchId : path.keySet())
+			{
+				if (!this.flowTables.hasRoom(switchId))
+				{
+					log.debug(String.format("No room to steer %s at s%d",
+							key, switchId));
+					return;
+				}
+			}
+		}
+
+		// Install from the destination back, so the flow never reaches a
+		// switch that has no rule for it
+		List<Long> switchIds = new ArrayList<Long>(path.keySet());
+		Collections.reverse(switchIds);
+		OFMatch match = key.getMatch();
+		for (long switchId : switchIds)
+		{
+			IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+			if (null == sw || !this.cluster.isLocal(switchId))
+			{ continue; }
+			OFAction action = new OFActionOutput(path.get(switchId));
+			OFInstruction instruction =
+					new OFInstructionApplyActions(Arrays.asList(action));
+			SwitchCommands.installRule(sw, this.routingTable, PATH_PRIORITY,
+					match, Arrays.asList(instruction), SwitchCommands.NO_TIMEOUT,
+					this.flowIdleTimeout, OFPacketOut.BUFFER_ID_NONE,
+					PATH_COOKIE, (short)0);
+			addLoad(loads, switchId, path.get(switchId), flow.rate);
+		}
+		flow.path = path;
+		this.elephants++;
+		log.info(String.format("Elephant flow %s at %.1f Mbps steered along %s",
+				key, flow.rate / 1e6, path));
+	}
+
+	private static void addNeighbor(Map<Long,Map<Long,Integer>> neighbors,
+			long switchId, long neighbor, int port)
+	{
+		Map<Long,Integer> adjacent = neighbors.get(switchId);
+		if (null == adjacent)
+		{
+			adjacent = new HashMap<Long,Integer>();
+			neighbors.put(switchId, adjacent);
+		}
+		adjacent.put(neighbor, port);
+	}
+
+	/**
+	 * Event handler called when another controller reports a host.
+	 * @param host the host's current snapshot
+	 */
+	@Override
+	public void remoteHostUpdated(Host host)
+	{ /* Nothing we need to do, since the host index tells us */ }
+
+	/**
+	 * Event handler called when another controller no longer reports a host.
+	 * @param host the host's last snapshot
+	 */
+	@Override
+	public void remoteHostRemoved(Host host)
+	{ /* Nothing we need to do, since the host index tells us */ }
+
+	/**
+	 * Event handler called when the links reported by other controllers
+	 * changed.
+	 */
+	@Override
+	public void remoteLinksChanged()
+	{ /* Nothing we need to do, since paths are computed when needed */ }
+
+	/**
+	 * Event handler called when switches may have changed owner; switches
+	 * this controller took over need their rules.
+	 */
+	@Override
+	public void ownershipChanged()
+	{
+		for (long switchId : this.floodlightProv.getAllSwitchMap().keySet())
+		{ this.switchAdded(switchId); }
+	}
+
+	/**
+	 * Gets a name for this module.
+	 * @return name for this module
+	 */
+	@Override
+	public String getName()
+	{ return MODULE_NAME; }
+
+	/**
+	 * Check if events must be passed to another module before this module is
+	 * notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPrereq(OFType type, String name)
+	{
+		return (OFType.PACKET_IN == type
+				&& name.equals(DeviceManagerImpl.MODULE_NAME));
+	}
+
+	/**
+	 * Check if events must be passed to another module after this module has
+	 * been notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPostreq(OFType type, String name)
+	{ return false; }
+
+    /**
+     * Tell the module system which services we provide.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>> getModuleServices()
+	{ return null; }
+
+	/**
+     * Tell the module system which services we implement.
+     */
+	@Override
+	public Map<Class<? extends IFloodlightService>, IFloodlightService>
+			getServiceImpls()
+	{ return null; }
+
+	/**
+     * Tell the module system which modules we depend on.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>>
+			getModuleDependencies()
+	{
+		Collection<Class<? extends IFloodlightService >> modules =
+	            new ArrayList<Class<? extends IFloodlightService>>();
+		modules.add(IFloodlightProviderService.class);
+		modules.add(InterfaceShortestPathSwitching.class);
+		modules.add(IHostIndexService.class);
+		modules.add(IThreadPoolService.class);
+		modules.add(IPipelineService.class);
+        return modules;
+	}
+}
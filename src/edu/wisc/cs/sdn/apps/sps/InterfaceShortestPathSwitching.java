@@ -1,6 +1,9 @@
 package edu.wisc.cs.sdn.apps.sps;
 
+import java.util.Collection;
+
 import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.routing.Link;
 
 public interface InterfaceShortestPathSwitching extends IFloodlightService
 {
@@ -8,4 +11,28 @@ public interface InterfaceShortestPathSwitching extends IFloodlightService
 	 * Get the table in which this application installs rules.
 	 */
 	public byte getTable();
+	
+	/**
+	 * Get the links this application routes over: every active link, 
+	 * including links reported by other controllers, except links 
+	 * suppressed for flapping.
+	 */
+	public Collection<Link> getLinks();
+	
+	/**
+	 * Get the links left out of routing because they flapped.
+	 * @return one direction of each suppressed link
+	 */
+	public Collection<Link> getSuppressedLinks();
+	
+	/**
+	 * Get the number of times any link was suppressed.
+	 */
+	public long getLinkSuppressions();
+	
+	/**
+	 * Get the number of link updates ignored because their link was 
+	 * suppressed.
+	 */
+	public long getAbsorbedLinkUpdates();
 }
@@ -1,13 +1,25 @@
 package edu.wisc.cs.sdn.apps.sps;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.wisc.cs.sdn.apps.util.ControllerCluster;
 import edu.wisc.cs.sdn.apps.util.Host;
+import edu.wisc.cs.sdn.apps.util.HostRegistry;
+import edu.wisc.cs.sdn.apps.util.IControllerClusterListener;
+import edu.wisc.cs.sdn.apps.util.IControllerClusterService;
+import edu.wisc.cs.sdn.apps.util.IFlowTableListener;
+import edu.wisc.cs.sdn.apps.util.IFlowTableService;
+import edu.wisc.cs.sdn.apps.util.IPipelineService;
+import edu.wisc.cs.sdn.apps.util.IPortStatsService;
+import edu.wisc.cs.sdn.apps.util.LinkDampener;
+import edu.wisc.cs.sdn.apps.util.PrefixRouteTable;
+import edu.wisc.cs.sdn.apps.util.SpanningTree;
 import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+import edu.wisc.cs.sdn.apps.util.TrafficGraph;
 
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.action.OFAction;
@@ -24,6 +36,7 @@ import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.core.util.SingletonTask;
 import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceListener;
 import net.floodlightcontroller.devicemanager.IDeviceService;
@@ -31,9 +44,11 @@ import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryListener;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 
 public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListener, 
-		ILinkDiscoveryListener, IDeviceListener, InterfaceShortestPathSwitching
+		ILinkDiscoveryListener, IDeviceListener, InterfaceShortestPathSwitching,
+		IControllerClusterListener, IFlowTableListener
 {
 	public static final String MODULE_NAME = ShortestPathSwitching.class.getSimpleName();
 	
@@ -49,13 +64,86 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
     // Interface to device manager service
     private IDeviceService deviceProv;
     
+    // Interface to the controllers sharing the switches
+    private IControllerClusterService cluster;
+    
+    // Interface to thread pool service, used to release dampened links and
+    // to reroute around busy links
+    private IThreadPoolService threadPool;
+    
+    // Interface to port statistics, used to weight links by utilization; 
+    // null if routing ignores traffic
+    private IPortStatsService portStats;
+    
+    // Interface to switch rule counts, which reports rules refused by full
+    // switches; null if switches are assumed never to fill up
+    private IFlowTableService flowTables;
+    
     // Switch table in which rules should be installed
-    public static byte table;
+    private byte table;
     
-    // Map of hosts to devices
-    private Map<IDevice,Host> knownHosts;
+    // Known hosts, indexed by MAC address, IP address and switch
+    private HostRegistry knownHosts;
 
 	private static final boolean isLogging = true;
+	
+	private static final int MIN_PREFIX_LENGTH = 16;
+	private static final int SUPPRESS_THRESHOLD = 2000;
+	private static final int REUSE_THRESHOLD = 750;
+	private static final int HALF_LIFE = 15;
+	private static final int MAX_SUPPRESS_TIME = 120;
+	private static final int DAMPING_INTERVAL = 1;
+	private static final double UTILIZATION_WEIGHT = 4.0;
+	private static final double REROUTE_HYSTERESIS = 0.1;
+	private static final int REROUTE_INTERVAL = 10;
+	
+	// Broadcasts arriving on a link off the flood tree are dropped, in case
+	// a neighbor still floods along an older tree
+	private static final short FLOOD_PRIORITY = SwitchCommands.DEFAULT_PRIORITY;
+	private static final short FLOOD_BLOCK_PRIORITY = 
+			(short)(SwitchCommands.DEFAULT_PRIORITY + 1);
+	private static final byte[] BROADCAST_MAC = new byte[] { (byte)0xFF, 
+			(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF };
+	
+	// Hierarchical route computation; null when the network is one flat area
+	private AreaRouter areaRouter;
+	
+	// Routes installed in each switch in hierarchical mode
+	private PrefixRouteTable routeTable;
+	
+	// Keeps flapping links out of the routing graph; null if disabled
+	private LinkDampener linkDampener;
+	
+	// Task which puts dampened links back into the routing graph
+	private SingletonTask dampingTask;
+	
+	// Links weighted by utilization, in traffic-aware mode
+	private TrafficGraph trafficGraph;
+	
+	// Host IP -> switch DPID -> port of the rule installed for the host, in
+	// traffic-aware mode
+	private Map<Integer, Map<Long, Integer>> installedPorts;
+	
+	// Cost of a saturated link, in hops, in traffic-aware mode
+	private double utilizationWeight;
+	
+	// Least change in utilization, and least relative gain in path cost, 
+	// for which paths move in traffic-aware mode
+	private double rerouteHysteresis;
+	
+	// Seconds between checks whether paths should move
+	private int rerouteInterval;
+	
+	// Task which moves paths away from busy links
+	private SingletonTask rerouteTask;
+	
+	// Switch DPID -> ports each switch floods broadcasts on, and ports on 
+	// which it drops them, as installed; null if broadcasts are not flooded
+	private Map<Long, Set<Integer>> floodPorts;
+	private Map<Long, Set<Integer>> blockedPorts;
+	
+	// Number of times the flood tree changed
+	private long floodEpoch;
 
 	/**
      * Loads dependencies and initializes data structures.
@@ -66,14 +154,79 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
 	{
 		log.info(String.format("Initializing %s...", MODULE_NAME));
 		Map<String,String> config = context.getConfigParams(this);
-        this.table = Byte.parseByte(config.get("table"));
+        this.table = context.getServiceImpl(IPipelineService.class).getTable(
+        		IPipelineService.ROUTING);
         
 		this.floodlightProv = context.getServiceImpl(
 				IFloodlightProviderService.class);
         this.linkDiscProv = context.getServiceImpl(ILinkDiscoveryService.class);
         this.deviceProv = context.getServiceImpl(IDeviceService.class);
+        this.cluster = ControllerCluster.getService(context);
+        this.threadPool = context.getServiceImpl(IThreadPoolService.class);
+        this.flowTables = context.getServiceImpl(IFlowTableService.class);
+        
+        this.knownHosts = new HostRegistry();
+        
+        // Obtain area settings from config; without areas every switch holds
+        // a rule per host
+        if (config.containsKey("areas"))
+        {
+        	int minPrefixLength = (config.containsKey("minPrefixLength")
+        			? Integer.parseInt(config.get("minPrefixLength").trim())
+        			: MIN_PREFIX_LENGTH);
+        	this.areaRouter = new AreaRouter(config.get("areas"), 
+        			minPrefixLength);
+        	this.routeTable = new PrefixRouteTable(this.table);
+        	log.info("Routing hierarchically with areas: " + config.get("areas"));
+        }
         
-        this.knownHosts = new ConcurrentHashMap<IDevice,Host>();
+        // Obtain link damping settings from config; thresholds are in units
+        // of the penalty for one flap (1000), times in seconds
+        if (!config.containsKey("dampening") 
+        		|| Boolean.parseBoolean(config.get("dampening").trim()))
+        {
+        	this.linkDampener = new LinkDampener(
+        			parseConfigInt(config, "suppressThreshold", 
+        					SUPPRESS_THRESHOLD),
+        			parseConfigInt(config, "reuseThreshold", REUSE_THRESHOLD),
+        			parseConfigInt(config, "halfLife", HALF_LIFE),
+        			parseConfigInt(config, "maxSuppressTime", 
+        					MAX_SUPPRESS_TIME));
+        }
+        
+        // Obtain traffic-aware routing settings from config; link utilization
+        // comes from the PortStats module, which must be loaded too
+        if (config.containsKey("trafficAware")
+        		&& Boolean.parseBoolean(config.get("trafficAware").trim()))
+        {
+        	this.portStats = context.getServiceImpl(IPortStatsService.class);
+        	if (null == this.portStats)
+        	{ log.error("Traffic-aware routing needs the PortStats module; routing by hop count"); }
+        	else if (this.areaRouter != null)
+        	{
+        		log.error("Traffic-aware routing is not supported with areas; routing by hop count");
+        		this.portStats = null;
+        	}
+        	else
+        	{
+        		this.utilizationWeight = parseConfigDouble(config, 
+        				"utilizationWeight", UTILIZATION_WEIGHT);
+        		this.rerouteHysteresis = parseConfigDouble(config, 
+        				"rerouteHysteresis", REROUTE_HYSTERESIS);
+        		this.rerouteInterval = parseConfigInt(config, "rerouteInterval",
+        				REROUTE_INTERVAL);
+        		this.installedPorts = new HashMap<Integer, Map<Long, Integer>>();
+        		log.info("Routing around busy links");
+        	}
+        }
+        
+        // Obtain flooding settings from config
+        if (!config.containsKey("floodTree") 
+        		|| Boolean.parseBoolean(config.get("floodTree").trim()))
+        {
+        	this.floodPorts = new HashMap<Long, Set<Integer>>();
+        	this.blockedPorts = new HashMap<Long, Set<Integer>>();
+        }
         
         /*********************************************************************/
         /* TODO: Initialize other class variables, if necessary              */
@@ -92,6 +245,41 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
 		this.floodlightProv.addOFSwitchListener(this);
 		this.linkDiscProv.addListener(this);
 		this.deviceProv.addListener(this);
+		this.cluster.addListener(this);
+		if (this.flowTables != null)
+		{ this.flowTables.addListener(this); }
+		
+		if (this.linkDampener != null)
+		{
+			this.dampingTask = new SingletonTask(
+					this.threadPool.getScheduledExecutor(), new Runnable() {
+						@Override
+						public void run()
+						{
+							try
+							{ releaseDampenedLinks(); }
+							finally
+							{ dampingTask.reschedule(DAMPING_INTERVAL, TimeUnit.SECONDS); }
+						}
+					});
+			this.dampingTask.reschedule(DAMPING_INTERVAL, TimeUnit.SECONDS);
+		}
+		
+		if (this.portStats != null)
+		{
+			this.rerouteTask = new SingletonTask(
+					this.threadPool.getScheduledExecutor(), new Runnable() {
+						@Override
+						public void run()
+						{
+							try
+							{ rerouteForTraffic(); }
+							finally
+							{ rerouteTask.reschedule(rerouteInterval, TimeUnit.SECONDS); }
+						}
+					});
+			this.rerouteTask.reschedule(this.rerouteInterval, TimeUnit.SECONDS);
+		}
 		
 		/*********************************************************************/
 		/* TODO: Perform other tasks, if necessary                           */
@@ -105,11 +293,48 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
 	public byte getTable()
 	{ return this.table; }
 	
+	/**
+	 * Get the links left out of routing because they flapped.
+	 */
+	public Collection<Link> getSuppressedLinks()
+	{
+		if (null == this.linkDampener)
+		{ return Collections.emptyList(); }
+		return this.linkDampener.getSuppressedLinks();
+	}
+	
+	/**
+	 * Get the number of times any link was suppressed.
+	 */
+	public long getLinkSuppressions()
+	{ return (null == this.linkDampener ? 0 : this.linkDampener.getSuppressions()); }
+	
+	/**
+	 * Get the number of link updates ignored because their link was 
+	 * suppressed.
+	 */
+	public long getAbsorbedLinkUpdates()
+	{ return (null == this.linkDampener ? 0 : this.linkDampener.getAbsorbedUpdates()); }
+	
+	private static int parseConfigInt(Map<String,String> config, String key,
+			int defaultValue)
+	{
+		return (config.containsKey(key) 
+				? Integer.parseInt(config.get(key).trim()) : defaultValue);
+	}
+	
+	private static double parseConfigDouble(Map<String,String> config, 
+			String key, double defaultValue)
+	{
+		return (config.containsKey(key) 
+				? Double.parseDouble(config.get(key).trim()) : defaultValue);
+	}
+	
     /**
      * Get a list of all known hosts in the network.
      */
     private Collection<Host> getHosts()
-    { return this.knownHosts.values(); }
+    { return this.knownHosts.getHosts(); }
 	
     /**
      * Get a map of all active switches in the network. Switch DPID is used as
@@ -119,27 +344,80 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
     { return floodlightProv.getAllSwitchMap(); }
 	
     /**
-     * Get a list of all active links in the network.
+     * Get a list of all active links in the network, including links 
+     * reported by the controllers owning other switches, but not links 
+     * suppressed for flapping.
      */
-    private Collection<Link> getLinks()
-    { return linkDiscProv.getLinks().keySet(); }
-
+    public Collection<Link> getLinks()
+    {
+    	Collection<Link> links = getDiscoveredLinks();
+    	return (null == this.linkDampener ? links 
+    			: this.linkDampener.filter(links));
+    }
+    
+    /**
+     * Get a list of all active links in the network, including links 
+     * reported by the controllers owning other switches and links suppressed
+     * for flapping.
+     */
+    private Collection<Link> getDiscoveredLinks()
+    {
+    	Collection<Link> links = linkDiscProv.getLinks().keySet();
+    	Collection<Link> remoteLinks = this.cluster.getRemoteLinks();
+    	if (!remoteLinks.isEmpty())
+    	{
+    		links = new HashSet<Link>(links);
+    		links.addAll(remoteLinks);
+    	}
+    	return links;
+    }
+    
+    /**
+     * Get the DPIDs of all switches in the network: the switches connected
+     * to this controller and those at either end of a link.
+     */
+    private Set<Long> getSwitchIds(Collection<Link> links)
+    {
+    	Set<Long> switchIds = new HashSet<Long>(getSwitches().keySet());
+    	for (Link link : links)
+    	{
+    		switchIds.add(link.getSrc());
+    		switchIds.add(link.getDst());
+    	}
+    	return switchIds;
+    }
+    
     /**
      * Event handler called when a host joins the network.
      * @param device information about the host
      */
 	@Override
 	public void deviceAdded(IDevice device) 
+	{ this.hostAdded(new Host(device)); }
+	
+	/**
+	 * Route to a new host, or to a host whose IP address changed.
+	 * @param host the host's current snapshot
+	 */
+	private void hostAdded(Host host)
 	{
-		Host host = new Host(device, this.floodlightProv);
 		// We only care about a new host if we know its IP
 		if (host.getIPv4Address() != null)
 		{
 			log.info(String.format("Host %s added", host.getName()));
-			this.knownHosts.put(device, host);
+			Host old = this.knownHosts.put(host);
+			if (this.areaRouter != null)
+			{
+				this.updateAreaRoutes(getHostAreas(old, host), false);
+				return;
+			}
 			
 			/*****************************************************************/
 			/* TODO: Update routing: add rules to route to new host          */
+			// Rules for an address the host no longer has must go
+			if (old != null && old.getIPv4Address() != null
+					&& !old.getIPv4Address().equals(host.getIPv4Address()))
+			{ removeRules(old); }
 			updateRules(host);
 			/*****************************************************************/
 		}
@@ -151,20 +429,29 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
      */
 	@Override
 	public void deviceRemoved(IDevice device) 
+	{ this.hostRemoved(new Host(device)); }
+	
+	/**
+	 * Stop routing to a host.
+	 * @param departed the host's last snapshot, used if it is not known
+	 */
+	private void hostRemoved(Host departed)
 	{
-		Host host = this.knownHosts.get(device);
+		Host host = this.knownHosts.remove(departed.getMACAddress());
 		if (null == host)
-		{
-			host = new Host(device, this.floodlightProv);
-			this.knownHosts.put(device, host);
-		}
+		{ host = departed; }
 		
 		log.info(String.format("Host %s is no longer attached to a switch", 
 				host.getName()));
+		if (this.areaRouter != null)
+		{
+			this.updateAreaRoutes(getHostAreas(host, null), false);
+			return;
+		}
 		
 		/*********************************************************************/
 		/* TODO: Update routing: remove rules to route to host               */
-		updateRules(host);
+		removeRules(host);
 		/*********************************************************************/
 	}
 
@@ -174,25 +461,31 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
      */
 	@Override
 	public void deviceMoved(IDevice device) 
+	{ this.hostMoved(new Host(device)); }
+	
+	/**
+	 * Route to a host at its new attachment point.
+	 * @param host the host's current snapshot
+	 */
+	private void hostMoved(Host host)
 	{
-		Host host = this.knownHosts.get(device);
-		if (null == host)
-		{
-			host = new Host(device, this.floodlightProv);
-			this.knownHosts.put(device, host);
-		}
-		
 		if (!host.isAttachedToSwitch())
 		{
-			this.deviceRemoved(device);
+			this.hostRemoved(host);
 			return;
 		}
+		Host old = this.knownHosts.put(host);
 		log.info(String.format("Host %s moved to s%d:%d", host.getName(),
-				host.getSwitch().getId(), host.getPort()));
+				host.getSwitchId(), host.getPort()));
+		if (this.areaRouter != null)
+		{
+			this.updateAreaRoutes(getHostAreas(old, host), false);
+			return;
+		}
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change rules to route to host               */
-		removeRules(host);
+		removeRules(null == old ? host : old);
 		updateRules(host);
 		/*********************************************************************/
 	}
@@ -206,10 +499,19 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
 	{
 		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
 		log.info(String.format("Switch s%d added", switchId));
+		this.updateFloodRules();
+		if (this.areaRouter != null)
+		{
+			this.updateAreaRoutes(Collections.singleton(
+					this.areaRouter.getArea(switchId)), true);
+			return;
+		}
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change routing rules for all hosts          */
-		for (Host host : getHosts()) {
+		// A new switch has no links until link discovery reports them, which
+		// updates every host; until then only its own hosts can be reached
+		for (Host host : this.knownHosts.getBySwitch(switchId)) {
 			removeRules(host);
 			updateRules(host);
 		}
@@ -225,6 +527,13 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
 	{
 		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
 		log.info(String.format("Switch s%d removed", switchId));
+		this.updateFloodRules();
+		if (this.areaRouter != null)
+		{
+			this.updateAreaRoutes(Collections.singleton(
+					this.areaRouter.getArea(switchId)), true);
+			return;
+		}
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change routing rules for all hosts          */
@@ -260,6 +569,31 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
 			}
 		}
 		
+		// Updates of a suppressed link change nothing routing can see, so a
+		// flapping link costs no sweep until it is used again
+		boolean visible = this.isLinkChangeVisible(updateList);
+		this.updateFloodRules();
+		if (!visible)
+		{
+			if (isLogging)
+				log.info("Link updates absorbed by dampening");
+			return;
+		}
+		
+		if (this.areaRouter != null)
+		{
+			// Only the areas at either end of a changed link are affected
+			Set<Integer> areas = new HashSet<Integer>();
+			for (LDUpdate update : updateList)
+			{
+				areas.add(this.areaRouter.getArea(update.getSrc()));
+				if (update.getDst() != 0)
+				{ areas.add(this.areaRouter.getArea(update.getDst())); }
+			}
+			this.updateAreaRoutes(areas, true);
+			return;
+		}
+		
 		/*********************************************************************/
 		/* TODO: Update routing: change routing rules for all hosts          */
 		for (Host host : getHosts()) {
@@ -268,18 +602,132 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
 		}
 		/*********************************************************************/
 	}
+	
+	/**
+	 * Pass link updates through the dampener.
+	 * @param updateList information about the change in each link's state
+	 * @return true if some update changes the routing graph, otherwise false
+	 */
+	private boolean isLinkChangeVisible(List<LDUpdate> updateList)
+	{
+		if (null == this.linkDampener)
+		{ return true; }
+		long now = System.currentTimeMillis();
+		boolean visible = false;
+		for (LDUpdate update : updateList)
+		{
+			boolean down = (UpdateOperation.LINK_REMOVED == update.getOperation());
+			if (0 == update.getDst() 
+					|| (!down && UpdateOperation.LINK_UPDATED != update.getOperation()))
+			{
+				visible = true;
+				continue;
+			}
+			Link link = new Link(update.getSrc(), update.getSrcPort(), 
+					update.getDst(), update.getDstPort());
+			if (this.linkDampener.update(link, down, now))
+			{ visible = true; }
+			if (down && this.linkDampener.isSuppressed(link))
+			{
+				log.warn(String.format("Link s%d:%d -> s%d:%d suppressed for flapping",
+						update.getSrc(), update.getSrcPort(), 
+						update.getDst(), update.getDstPort()));
+			}
+		}
+		return visible;
+	}
+	
+	/**
+	 * Put links whose flap penalty has decayed back into the routing graph.
+	 */
+	private void releaseDampenedLinks()
+	{
+		List<Link> released = this.linkDampener.release(
+				System.currentTimeMillis());
+		if (released.isEmpty())
+		{ return; }
+		for (Link link : released)
+		{
+			log.info(String.format("Link s%d:%d -> s%d:%d no longer suppressed",
+					link.getSrc(), link.getSrcPort(), link.getDst(), 
+					link.getDstPort()));
+		}
+		this.updateAllRules();
+	}
+	
+	/**
+	 * Get the areas a host was or is in.
+	 * @param old the host's previous snapshot; may be null
+	 * @param host the host's current snapshot; may be null
+	 * @return the areas
+	 */
+	private Set<Integer> getHostAreas(Host old, Host host)
+	{
+		Set<Integer> areas = new HashSet<Integer>();
+		if (old != null && old.isAttachedToSwitch())
+		{ areas.add(this.areaRouter.getArea(old.getSwitchId())); }
+		if (host != null && host.isAttachedToSwitch())
+		{ areas.add(this.areaRouter.getArea(host.getSwitchId())); }
+		return areas;
+	}
+	
+	/**
+	 * Bring routes up to date in hierarchical mode. Only the switches in
+	 * affected areas are updated, unless the summary of some area or the 
+	 * paths between areas changed.
+	 * @param areas areas in which a host, switch or link changed
+	 * @param topology true if switches or links changed, false if only 
+	 *        hosts changed
+	 */
+	private synchronized void updateAreaRoutes(Set<Integer> areas, 
+			boolean topology)
+	{
+		Collection<Link> links = getLinks();
+		Set<Long> switchIds = getSwitchIds(links);
+		Set<Integer> dirty = new HashSet<Integer>(areas);
+		if (topology)
+		{ dirty.addAll(this.areaRouter.updateTopology(switchIds, links, 
+				areas)); }
+		
+		// Only hosts attached to known switches can be routed to
+		List<Host> hosts = new ArrayList<Host>();
+		for (Host host : getHosts())
+		{
+			if (host.isAttachedToSwitch() 
+					&& switchIds.contains(host.getSwitchId()))
+			{ hosts.add(host); }
+		}
+		if (this.areaRouter.updateHosts(hosts))
+		{ dirty.addAll(this.areaRouter.getAreas()); }
+		
+		// Rules go only in the switches this controller owns
+		Map<Long, IOFSwitch> switches = new HashMap<Long, IOFSwitch>();
+		for (IOFSwitch sw : getSwitches().values())
+		{
+			if (this.cluster.isLocal(sw.getId()))
+			{ switches.put(sw.getId(), sw); }
+		}
+		this.routeTable.retainSwitches(switches.keySet());
+		for (IOFSwitch sw : switches.values())
+		{
+			if (dirty.contains(this.areaRouter.getArea(sw.getId())))
+			{ this.routeTable.apply(sw, this.areaRouter.getRoutes(sw.getId(), hosts)); }
+		}
+		if (isLogging)
+			log.info(String.format("Routes updated in areas %s", dirty));
+	}
 
 	/**
 	 * use bellman-ford for shortest path in directed graph
 	 * */
-	public Map<Long, Integer> getShortestPaths(IOFSwitch srcSwitch, Collection<Link> links, Map<Long, IOFSwitch> switches) {
+	public Map<Long, Integer> getShortestPaths(long srcSwitch, Collection<Link> links, Set<Long> switches) {
 		int WEIGHT = 1;
 		Map<Long, Integer> distTo = new HashMap<Long, Integer>();	// dst -> distance
 		Map<Long, Integer> edgeTo = new HashMap<Long, Integer>();	// dst -> predecessor's port
-		for (long sId : switches.keySet()) {
+		for (long sId : switches) {
 			distTo.put(sId, Integer.MAX_VALUE - 1);
 		}
-		distTo.put(srcSwitch.getId(), 0);
+		distTo.put(srcSwitch, 0);
 		for (int v = 0; v < switches.size(); v++) {
 			// relax
 			for (Link link: links) {
@@ -300,57 +748,118 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
 		return edgeTo;
 	}
 
-	public void updateRules(Host host) {
-		if (!host.isAttachedToSwitch() || host.getIPv4Address() == null) {
+	public synchronized void updateRules(Host host) {
+		// the host's switch may be owned, and only known, by another controller
+		Collection<Link> links = getLinks();
+		Set<Long> switchIds = getSwitchIds(links);
+		if (!host.isAttachedToSwitch() || !switchIds.contains(host.getSwitchId())
+				|| host.getIPv4Address() == null) {
 			if (isLogging)
 				log.info(String.format("Host %s is not attached or doesnt get IP addr. [in updateRoutingTable()]", host.getName()));
 			return ;
 		}
 
 		if (isLogging)
-			log.info(String.format("Host %s, ip: %s, sw: %d, rules begin to updated.", host.getName(), host.getIPv4Address(), host.getSwitch().getId()));
+			log.info(String.format("Host %s, ip: %s, sw: %d, rules begin to updated.", host.getName(), host.getIPv4Address(), host.getSwitchId()));
 
-		// get the shortest path using bellman ford
+		// get the shortest path using bellman ford, or dijkstra over link utilization
 		// and have to connect the host to its default switch by put one entry in map
-		Map<Long, Integer> shortestPaths = getShortestPaths(host.getSwitch(), getLinks(), getSwitches());
-		shortestPaths.put(host.getSwitch().getId(), host.getPort());
+		Map<Long, Integer> shortestPaths;
+		if (this.portStats != null) {
+			this.trafficGraph = new TrafficGraph(switchIds, links, this.trafficGraph);
+			shortestPaths = this.trafficGraph.computeNextHops(host.getSwitchId(),
+					this.utilizationWeight, this.installedPorts.get(host.getIPv4Address()),
+					this.rerouteHysteresis);
+			this.installedPorts.put(host.getIPv4Address(), shortestPaths);
+		} else {
+			shortestPaths = getShortestPaths(host.getSwitchId(), links, switchIds);
+		}
+		shortestPaths.put(host.getSwitchId(), host.getPort());
 
 		if (isLogging)
 			log.info(String.format("Shortest path table for Host %s: %s.", host.getName(), shortestPaths.toString()));
 
+		// insert rules for each switch we own if its id contained in the SPs map.
+		for (IOFSwitch sw: getSwitches().values()) {
+			if (!shortestPaths.containsKey(sw.getId())
+					|| !this.cluster.isLocal(sw.getId())) {
+				continue;
+			}
+			installRule(sw, host, shortestPaths.get(sw.getId()));
+		}
+
+		if (isLogging)
+			log.info(String.format("Host %s rules update complete.", host.getName()));
+	}
+
+	private void installRule(IOFSwitch sw, Host host, int port) {
+		if (isLogging)
+			log.info(String.format("Adding sw %d rule for Host %s...", sw.getId(), host.getName()));
+
 		// set up matches, the dst is the host's ip addr
 		OFMatch match = new OFMatch()
 				.setDataLayerType(Ethernet.TYPE_IPv4)
 				.setNetworkDestination(OFMatch.ETH_TYPE_IPV4, host.getIPv4Address());
 
-		// insert rules for each switch if its id contained in the SPs map.
-		for (IOFSwitch sw: getSwitches().values()) {
-			if (!shortestPaths.containsKey(sw.getId())) {
+		OFAction action = new OFActionOutput(port);
+		OFInstruction instruction = new OFInstructionApplyActions(Arrays.asList(action));
+		SwitchCommands.installRule(
+				sw,
+				table,
+				SwitchCommands.DEFAULT_PRIORITY,
+				match,
+				Arrays.asList(instruction)
+		);
+	}
+
+	/**
+	 * Move paths away from busy links, in traffic-aware mode. Nothing moves
+	 * unless some link's utilization changed by more than the hysteresis, 
+	 * and then a switch's rule for a host is replaced only if its path is 
+	 * clearly more costly than the best one.
+	 */
+	private synchronized void rerouteForTraffic() {
+		Collection<Link> links = getLinks();
+		Set<Long> switchIds = getSwitchIds(links);
+		this.trafficGraph = new TrafficGraph(switchIds, links, this.trafficGraph);
+		if (!this.trafficGraph.updateUtilization(this.portStats, this.rerouteHysteresis)) {
+			return;
+		}
+
+		int moved = 0;
+		Map<Long, IOFSwitch> switches = getSwitches();
+		for (Host host : getHosts()) {
+			if (!host.isAttachedToSwitch() || !switchIds.contains(host.getSwitchId())
+					|| host.getIPv4Address() == null) {
 				continue;
 			}
 
-			if (isLogging)
-				log.info(String.format("Adding sw %d rule for Host %s...", sw.getId(), host.getName()));
-
-			OFAction action = new OFActionOutput(shortestPaths.get(sw.getId()));
-			OFInstruction instruction = new OFInstructionApplyActions(Arrays.asList(action));
-			SwitchCommands.installRule(
-					sw,
-					table,
-					SwitchCommands.DEFAULT_PRIORITY,
-					match,
-					Arrays.asList(instruction)
-			);
+			// a rule is replaced with a new one only where its port changed
+			Map<Long, Integer> installed = this.installedPorts.get(host.getIPv4Address());
+			Map<Long, Integer> shortestPaths = this.trafficGraph.computeNextHops(
+					host.getSwitchId(), this.utilizationWeight, installed,
+					this.rerouteHysteresis);
+			this.installedPorts.put(host.getIPv4Address(), shortestPaths);
+			for (Map.Entry<Long, Integer> entry : shortestPaths.entrySet()) {
+				IOFSwitch sw = switches.get(entry.getKey());
+				if (null == sw || !this.cluster.isLocal(sw.getId()) || (installed != null
+						&& entry.getValue().equals(installed.get(entry.getKey())))) {
+					continue;
+				}
+				installRule(sw, host, entry.getValue());
+				moved++;
+			}
 		}
 
-		if (isLogging)
-			log.info(String.format("Host %s rules update complete.", host.getName()));
+		if (moved > 0)
+			log.info(String.format("Rerouted %d rules away from busy links", moved));
 	}
 
-	private void removeRules(Host host) {
-		if (!host.isAttachedToSwitch() || host.getIPv4Address() == null) {
+	private synchronized void removeRules(Host host) {
+		// rules are removed from every switch, so the attachment point does not matter
+		if (host.getIPv4Address() == null) {
 			if (isLogging)
-				log.info(String.format("Host %s is not attached or doesnt get IP addr. [in clearRules()]",
+				log.info(String.format("Host %s doesnt get IP addr. [in clearRules()]",
 						host.getName()));
 			return ;
 		}
@@ -361,8 +870,11 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
 				.setNetworkDestination(OFMatch.ETH_TYPE_IPV4, host.getIPv4Address());
 
 		for (IOFSwitch sw: getSwitches().values()) {
-			SwitchCommands.removeRules(sw, table, match);
+			if (this.cluster.isLocal(sw.getId()))
+				SwitchCommands.removeRules(sw, table, match);
 		}
+		if (this.installedPorts != null)
+			this.installedPorts.remove(host.getIPv4Address());
 
 		if (isLogging)
 			log.info(String.format("Host %s rules are cleared",
@@ -399,7 +911,97 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
 	 */
 	@Override
 	public void switchActivated(long switchId) 
-	{ /* Nothing we need to do, since we're not switching controller roles */ }
+	{
+		// A switch this controller just became master for needs its rules
+		if (!this.cluster.isLocal(switchId))
+		{ return; }
+		log.info(String.format("Switch s%d activated", switchId));
+		this.updateAllRules();
+	}
+	
+	/**
+	 * Event handler called when another controller reports a host.
+	 * @param host the host's current snapshot
+	 */
+	@Override
+	public void remoteHostUpdated(Host host)
+	{ this.hostMoved(host); }
+	
+	/**
+	 * Event handler called when another controller no longer reports a host.
+	 * @param host the host's last snapshot
+	 */
+	@Override
+	public void remoteHostRemoved(Host host)
+	{ this.hostRemoved(host); }
+	
+	/**
+	 * Event handler called when the links reported by other controllers 
+	 * changed.
+	 */
+	@Override
+	public void remoteLinksChanged()
+	{ this.updateAllRules(); }
+	
+	/**
+	 * Event handler called when switches may have changed owner; switches
+	 * this controller took over need their rules.
+	 */
+	@Override
+	public void ownershipChanged()
+	{ this.updateAllRules(); }
+	
+	/**
+	 * Event handler called when a full switch refused rules, once rules were
+	 * evicted to make room; a refused route would black-hole its host, so
+	 * every rule of ours is installed again.
+	 * @param switchId DPID of the switch
+	 * @param table the table whose rules were refused
+	 */
+	@Override
+	public void rulesRejected(long switchId, byte table)
+	{
+		if (table != this.table || !this.cluster.isLocal(switchId))
+		{ return; }
+		log.warn(String.format("Switch s%d refused rules; reinstalling", 
+				switchId));
+		this.forgetInstalledRules(switchId);
+		this.updateAllRules();
+	}
+	
+	/**
+	 * Forget which flood and area rules a switch holds, so they are all 
+	 * installed again.
+	 * @param switchId DPID of the switch
+	 */
+	private synchronized void forgetInstalledRules(long switchId)
+	{
+		if (this.floodPorts != null)
+		{
+			this.floodPorts.remove(switchId);
+			this.blockedPorts.remove(switchId);
+		}
+		if (this.routeTable != null)
+		{ this.routeTable.forgetSwitch(switchId); }
+	}
+	
+	/**
+	 * Recompute the rules for every host in every switch this controller 
+	 * owns.
+	 */
+	private void updateAllRules()
+	{
+		this.updateFloodRules();
+		if (this.areaRouter != null)
+		{
+			this.updateAreaRoutes(this.areaRouter.getAreas(), true);
+			return;
+		}
+		for (Host host : getHosts()) {
+			removeRules(host);
+			updateRules(host);
+		}
+	}
 
 	/**
 	 * Event handler called when some attribute of a switch changes.
@@ -419,7 +1021,133 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
 	@Override
 	public void switchPortChanged(long switchId, ImmutablePort port,
 			PortChangeType type) 
-	{ /* Nothing we need to do, since we'll get a linkDiscoveryUpdate event */ }
+	{
+		// Routes wait for a linkDiscoveryUpdate event, but a host port going
+		// up or down changes where broadcasts go
+		this.updateFloodRules();
+	}
+	
+	/**
+	 * Bring broadcast flooding up to date. Each switch this controller owns 
+	 * floods broadcasts on its ports on the flood tree and its ports to 
+	 * hosts, and drops broadcasts arriving on other links, so broadcasts 
+	 * never loop and never reach the controller. Only switches whose ports 
+	 * changed are updated.
+	 */
+	private synchronized void updateFloodRules()
+	{
+		if (null == this.floodPorts)
+		{ return; }
+		Collection<Link> links = getLinks();
+		Map<Long, Set<Integer>> treePorts = SpanningTree.computeTreePorts(
+				getSwitchIds(links), links);
+		
+		// Suppressed links are off the tree, but still lead to a switch
+		Map<Long, Set<Integer>> linkPorts = new HashMap<Long, Set<Integer>>();
+		List<Link> allLinks = new ArrayList<Link>(getDiscoveredLinks());
+		allLinks.addAll(getSuppressedLinks());
+		for (Link link : allLinks)
+		{
+			addPort(linkPorts, link.getSrc(), link.getSrcPort());
+			addPort(linkPorts, link.getDst(), link.getDstPort());
+		}
+		
+		Map<Long, IOFSwitch> switches = getSwitches();
+		this.floodPorts.keySet().retainAll(switches.keySet());
+		this.blockedPorts.keySet().retainAll(switches.keySet());
+		int updated = 0;
+		for (IOFSwitch sw : switches.values())
+		{
+			if (!this.cluster.isLocal(sw.getId()))
+			{
+				// Rules are reinstalled if the switch comes back to us
+				this.floodPorts.remove(sw.getId());
+				this.blockedPorts.remove(sw.getId());
+				continue;
+			}
+			Set<Integer> onLinks = (linkPorts.containsKey(sw.getId()) 
+					? linkPorts.get(sw.getId()) : new HashSet<Integer>());
+			Set<Integer> flood = new TreeSet<Integer>();
+			Set<Integer> blocked = new TreeSet<Integer>(onLinks);
+			if (treePorts.containsKey(sw.getId()))
+			{
+				flood.addAll(treePorts.get(sw.getId()));
+				blocked.removeAll(treePorts.get(sw.getId()));
+			}
+			for (int port : sw.getEnabledPortNumbers())
+			{
+				// Only physical ports; reserved ports are negative as ints
+				if (port > 0 && !onLinks.contains(port))
+				{ flood.add(port); }
+			}
+			
+			boolean changed = false;
+			if (!flood.equals(this.floodPorts.get(sw.getId())))
+			{
+				List<OFAction> actions = new ArrayList<OFAction>();
+				for (int port : flood)
+				{ actions.add(new OFActionOutput(port)); }
+				OFInstruction instruction = new OFInstructionApplyActions(actions);
+				SwitchCommands.installRule(sw, table, FLOOD_PRIORITY, 
+						new OFMatch().setDataLayerDestination(BROADCAST_MAC),
+						Arrays.asList(instruction));
+				this.floodPorts.put(sw.getId(), flood);
+				changed = true;
+			}
+			Set<Integer> oldBlocked = this.blockedPorts.get(sw.getId());
+			if (!blocked.equals(oldBlocked))
+			{
+				for (int port : blocked)
+				{
+					if (null == oldBlocked || !oldBlocked.contains(port))
+					{
+						SwitchCommands.installRule(sw, table, 
+								FLOOD_BLOCK_PRIORITY, getBlockMatch(port), 
+								new ArrayList<OFInstruction>());
+					}
+				}
+				if (oldBlocked != null)
+				{
+					for (int port : oldBlocked)
+					{
+						if (!blocked.contains(port))
+						{ SwitchCommands.removeRule(sw, table, 
+								FLOOD_BLOCK_PRIORITY, getBlockMatch(port)); }
+					}
+				}
+				this.blockedPorts.put(sw.getId(), blocked);
+				changed = true;
+			}
+			if (changed)
+			{ updated++; }
+		}
+		
+		if (updated > 0)
+		{
+			this.floodEpoch++;
+			log.info(String.format("Flood tree epoch %d: updated %d switches",
+					this.floodEpoch, updated));
+		}
+	}
+	
+	private static OFMatch getBlockMatch(int port)
+	{
+		return new OFMatch()
+				.setInputPort(port)
+				.setDataLayerDestination(BROADCAST_MAC);
+	}
+	
+	private static void addPort(Map<Long, Set<Integer>> ports, long switchId,
+			int port)
+	{
+		Set<Integer> switchPorts = ports.get(switchId);
+		if (null == switchPorts)
+		{
+			switchPorts = new HashSet<Integer>();
+			ports.put(switchId, switchPorts);
+		}
+		switchPorts.add(port);
+	}
 
 	/**
 	 * Gets a name for this module.
@@ -484,6 +1212,8 @@ public class ShortestPathSwitching implements IFloodlightModule, IOFSwitchListen
 		modules.add(IFloodlightProviderService.class);
 		modules.add(ILinkDiscoveryService.class);
 		modules.add(IDeviceService.class);
+		modules.add(IThreadPoolService.class);
+		modules.add(IPipelineService.class);
         return modules;
 	}
 }
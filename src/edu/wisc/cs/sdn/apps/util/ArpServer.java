@@ -1,13 +1,27 @@
 package edu.wisc.cs.sdn.apps.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFOXMFieldType;
 import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.action.OFActionSetField;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,39 +29,113 @@ import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IOFSwitch.PortChangeType;
+import net.floodlightcontroller.core.IOFSwitchListener;
+import net.floodlightcontroller.core.ImmutablePort;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
-import net.floodlightcontroller.devicemanager.IDevice;
-import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.internal.DeviceManagerImpl;
 import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.util.MACAddress;
 
-public class ArpServer implements IFloodlightModule, IOFMessageListener
+/**
+ * Answers ARP requests for known hosts and virtual IPs. For every pair of
+ * known hosts, a responder rule in the requester's edge switch rewrites the
+ * request into a reply and sends it back out the port it arrived on, so
+ * most requests never reach the controller. Requests the rules do not cover
+ * are answered from packet-ins.
+ */
+public class ArpServer implements IFloodlightModule, IOFMessageListener,
+		IOFSwitchListener, IHostIndexListener, IControllerClusterListener
 {
 	public static final String MODULE_NAME = ArpServer.class.getSimpleName();
 	
+	// Upper half of the cookie of every responder rule; the lower half is
+	// the IP address being answered for
+	private static final long RESPONDER_COOKIE = 0x41525000L << 32;
+	private static final long RESPONDER_COOKIE_MASK = 0xFFFFFFFFL << 32;
+	
+	// Responder rules take precedence over the rule sending ARP requests to 
+	// the controller, which in turn keeps them from the broadcast flood rule
+	// of later tables
+	private static final short RESPONDER_PRIORITY = 
+			(short)(SwitchCommands.DEFAULT_PRIORITY + 1);
+	private static final short PUNT_PRIORITY = SwitchCommands.DEFAULT_PRIORITY;
+	
+	private static final int DEDUP_WINDOW = 500;
+	private static final int NEGATIVE_TTL = 5;
+	private static final int CACHE_CAPACITY = 4096;
+	private static final int RESPONDER_BUDGET = 1000;
+	
 	// Interface to the logging system
     private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
     
 	// Interface to Floodlight core for interacting with connected switches
     private IFloodlightProviderService floodlightProv;
     
-    // Interface to device manager service
-    private IDeviceService deviceProv;
+    // Interface to the index of host IP addresses
+    private IHostIndexService hostIndex;
+    
+    // Interface to the controllers sharing the switches
+    private IControllerClusterService cluster;
+    
+    // Switch table in which responder rules are installed; must be the 
+    // first table ARP requests reach
+    private byte table;
+    
+    // Whether responder rules are installed at all
+    private boolean responders;
+    
+    // Most responder rules installed in one switch; requests beyond that
+    // are answered by the controller
+    private int responderBudget;
+    
+    // (requester IP, target IP) pairs with a responder rule, for each switch
+    private Map<Long,Set<Long>> installedResponders;
+    
+    // Requests recently seen, keyed by sender and target IP address
+    private ExpiringKeyCache recentRequests;
+    
+    // Target IP addresses recently found not to be in the host index
+    private ExpiringKeyCache unknownTargets;
 
 	@Override
 	public void init(FloodlightModuleContext context)
 			throws FloodlightModuleException 
 	{
 		log.info(String.format("Initializing %s...", MODULE_NAME));       
+		Map<String,String> config = context.getConfigParams(this);
 		this.floodlightProv = context.getServiceImpl(
 				IFloodlightProviderService.class);
-		this.deviceProv = context.getServiceImpl(IDeviceService.class);
+		this.hostIndex = context.getServiceImpl(IHostIndexService.class);
+		this.cluster = ControllerCluster.getService(context);
+		this.table = context.getServiceImpl(IPipelineService.class).getTable(
+				IPipelineService.ARP);
+		this.responders = (!config.containsKey("responders")
+				|| Boolean.parseBoolean(config.get("responders").trim()));
+		this.responderBudget = (config.containsKey("responderBudget") 
+				? Integer.parseInt(config.get("responderBudget").trim()) 
+				: RESPONDER_BUDGET);
+		this.installedResponders = new HashMap<Long,Set<Long>>();
+		
+		// Obtain cache settings from config; the dedup window is in 
+		// milliseconds, the negative cache TTL in seconds
+		int capacity = (config.containsKey("cacheCapacity") 
+				? Integer.parseInt(config.get("cacheCapacity").trim()) 
+				: CACHE_CAPACITY);
+		int dedupWindow = (config.containsKey("dedupWindow") 
+				? Integer.parseInt(config.get("dedupWindow").trim()) 
+				: DEDUP_WINDOW);
+		int negativeTtl = (config.containsKey("negativeTtl") 
+				? Integer.parseInt(config.get("negativeTtl").trim()) 
+				: NEGATIVE_TTL);
+		this.recentRequests = new ExpiringKeyCache(capacity, dedupWindow);
+		this.unknownTargets = new ExpiringKeyCache(capacity, 
+				negativeTtl * 1000L);
 	}
 
 	/**
@@ -59,8 +147,301 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 	{
 		log.info(String.format("Starting %s...", MODULE_NAME));
 		this.floodlightProv.addOFMessageListener(OFType.PACKET_IN, this);
+		this.hostIndex.addListener(this);
+		this.floodlightProv.addOFSwitchListener(this);
+		this.cluster.addListener(this);
+		for (IOFSwitch sw : this.floodlightProv.getAllSwitchMap().values())
+		{ this.switchAdded(sw.getId()); }
+	}
+	
+	/**
+	 * Install the rule sending ARP requests no responder rule covers to the
+	 * controller, so they are answered, deduplicated and used to learn 
+	 * hosts instead of being flooded.
+	 * @param sw the switch
+	 */
+	private void installPuntRule(IOFSwitch sw)
+	{
+		OFMatch match = new OFMatch()
+				.setDataLayerType(OFMatch.ETH_TYPE_ARP)
+				.setField(OFOXMFieldType.ARP_OP, ARP.OP_REQUEST);
+		OFAction action = new OFActionOutput(OFPort.OFPP_CONTROLLER);
+		OFInstruction instruction = new OFInstructionApplyActions(
+				Arrays.asList(action));
+		SwitchCommands.installRule(sw, this.table, PUNT_PRIORITY, match,
+				Arrays.asList(instruction));
+	}
+	
+	/**
+	 * Install responder rules for every known host attached to a switch.
+	 * @param sw the switch
+	 */
+	private synchronized void installResponders(IOFSwitch sw)
+	{
+		this.installedResponders.remove(sw.getId());
+		Collection<Integer> ips = this.hostIndex.getIPAddresses();
+		for (int requesterIP : ips)
+		{
+			if (this.hostIndex.getSwitch(requesterIP) != sw.getId())
+			{ continue; }
+			for (int targetIP : ips)
+			{ this.installResponder(sw, requesterIP, targetIP); }
+		}
+	}
+	
+	/**
+	 * Replace the responder rules involving an IP address, both those 
+	 * answering for it and those answering requests from it.
+	 * @param ip the IP address
+	 */
+	private synchronized void updateResponders(int ip)
+	{
+		this.removeResponders(ip);
+		if (IHostIndexService.UNKNOWN == this.hostIndex.getMACAddress(ip))
+		{ return; }
+		
+		Collection<Integer> ips = this.hostIndex.getIPAddresses();
+		IOFSwitch sw = this.getHostSwitch(ip);
+		for (int otherIP : ips)
+		{
+			if (sw != null)
+			{ this.installResponder(sw, ip, otherIP); }
+			IOFSwitch otherSw = this.getHostSwitch(otherIP);
+			if (otherSw != null)
+			{ this.installResponder(otherSw, otherIP, ip); }
+		}
+	}
+	
+	/**
+	 * Remove the responder rules involving an IP address from every switch.
+	 * @param ip the IP address
+	 */
+	private synchronized void removeResponders(int ip)
+	{
+		OFMatch requesterMatch = new OFMatch()
+				.setDataLayerType(OFMatch.ETH_TYPE_ARP)
+				.setField(OFOXMFieldType.ARP_OP, ARP.OP_REQUEST)
+				.setField(OFOXMFieldType.ARP_SPA, ip);
+		for (IOFSwitch sw : this.floodlightProv.getAllSwitchMap().values())
+		{
+			if (!this.cluster.isLocal(sw.getId()))
+			{ continue; }
+			SwitchCommands.removeRules(sw, this.table, new OFMatch(), 
+					getResponderCookie(ip), -1L);
+			SwitchCommands.removeRules(sw, this.table, requesterMatch, 
+					RESPONDER_COOKIE, RESPONDER_COOKIE_MASK);
+		}
+		
+		for (Set<Long> pairs : this.installedResponders.values())
+		{
+			Iterator<Long> it = pairs.iterator();
+			while (it.hasNext())
+			{
+				long pair = it.next();
+				if ((int)(pair >>> 32) == ip || (int)pair == ip)
+				{ it.remove(); }
+			}
+		}
+	}
+	
+	/**
+	 * Install a rule in a requester's edge switch which turns the 
+	 * requester's ARP requests for a target into replies. Once the switch
+	 * holds its budget of responder rules, no more are installed and the
+	 * requests are answered by the controller.
+	 * @param sw the switch to which the requester is attached
+	 * @param requesterIP IP address of the host sending requests
+	 * @param targetIP IP address being requested
+	 */
+	private void installResponder(IOFSwitch sw, int requesterIP, int targetIP)
+	{
+		if (requesterIP == targetIP)
+		{ return; }
+		long requesterMAC = this.hostIndex.getMACAddress(requesterIP);
+		long requesterPort = this.hostIndex.getPort(requesterIP);
+		long targetMAC = this.hostIndex.getMACAddress(targetIP);
+		if (IHostIndexService.UNKNOWN == requesterMAC 
+				|| IHostIndexService.UNKNOWN == requesterPort
+				|| IHostIndexService.UNKNOWN == targetMAC)
+		{ return; }
+		
+		Set<Long> pairs = this.installedResponders.get(sw.getId());
+		if (null == pairs)
+		{
+			pairs = new HashSet<Long>();
+			this.installedResponders.put(sw.getId(), pairs);
+		}
+		long pair = ((long)requesterIP << 32) | (targetIP & 0xFFFFFFFFL);
+		if (!pairs.contains(pair) && pairs.size() >= this.responderBudget)
+		{ return; }
+		pairs.add(pair);
+		
+		byte[] requesterMACBytes = MACAddress.valueOf(requesterMAC).toBytes();
+		byte[] targetMACBytes = MACAddress.valueOf(targetMAC).toBytes();
+		
+		OFMatch match = new OFMatch()
+				.setInputPort((int)requesterPort)
+				.setDataLayerType(OFMatch.ETH_TYPE_ARP)
+				.setField(OFOXMFieldType.ARP_OP, ARP.OP_REQUEST)
+				.setField(OFOXMFieldType.ARP_SPA, requesterIP)
+				.setField(OFOXMFieldType.ARP_TPA, targetIP);
+		
+		// OpenFlow has no action to copy one field into another, so the
+		// reply is written from the addresses in the index
+		List<OFAction> actions = new ArrayList<OFAction>();
+		actions.add(new OFActionSetField(OFOXMFieldType.ETH_DST, 
+				requesterMACBytes));
+		actions.add(new OFActionSetField(OFOXMFieldType.ETH_SRC, 
+				targetMACBytes));
+		actions.add(new OFActionSetField(OFOXMFieldType.ARP_OP, ARP.OP_REPLY));
+		actions.add(new OFActionSetField(OFOXMFieldType.ARP_SHA, 
+				targetMACBytes));
+		actions.add(new OFActionSetField(OFOXMFieldType.ARP_SPA, targetIP));
+		actions.add(new OFActionSetField(OFOXMFieldType.ARP_THA, 
+				requesterMACBytes));
+		actions.add(new OFActionSetField(OFOXMFieldType.ARP_TPA, requesterIP));
+		actions.add(new OFActionOutput(OFPort.OFPP_IN_PORT));
+		OFInstruction instruction = new OFInstructionApplyActions(actions);
+		
+		SwitchCommands.installRule(sw, this.table, RESPONDER_PRIORITY, match,
+				Arrays.asList(instruction), SwitchCommands.NO_TIMEOUT, 
+				SwitchCommands.NO_TIMEOUT, OFPacketOut.BUFFER_ID_NONE, 
+				getResponderCookie(targetIP), (short)0);
+	}
+	
+	/**
+	 * Forget the responder rules of a switch this controller no longer owns.
+	 * @param switchId DPID of the switch
+	 */
+	private synchronized void forgetResponders(long switchId)
+	{ this.installedResponders.remove(switchId); }
+	
+	private static long getResponderCookie(int targetIP)
+	{ return RESPONDER_COOKIE | (targetIP & 0xFFFFFFFFL); }
+	
+	private IOFSwitch getHostSwitch(int ip)
+	{
+		long switchId = this.hostIndex.getSwitch(ip);
+		if (IHostIndexService.UNKNOWN == switchId 
+				|| !this.cluster.isLocal(switchId))
+		{ return null; }
+		return this.floodlightProv.getSwitch(switchId);
+	}
+	
+	/**
+	 * Event handler called when an IP address is added to the host index,
+	 * or its MAC address or attachment point changes.
+	 * @param ip the IP address
+	 */
+	@Override
+	public void hostUpdated(int ip)
+	{
+		// Requests for the address must no longer be ignored
+		this.unknownTargets.remove(ip);
+		if (this.responders)
+		{ this.updateResponders(ip); }
+	}
+	
+	/**
+	 * Event handler called when an IP address is removed from the host index.
+	 * @param ip the IP address
+	 */
+	@Override
+	public void hostRemoved(int ip)
+	{
+		if (this.responders)
+		{ this.removeResponders(ip); }
+	}
+	
+	/**
+     * Event handler called when a switch joins the network.
+     * @param DPID for the switch
+     */
+	@Override
+	public void switchAdded(long switchId) 
+	{
+		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+		if (null == sw || !this.cluster.isLocal(switchId))
+		{
+			this.forgetResponders(switchId);
+			return; 
+		}
+		this.installPuntRule(sw);
+		if (this.responders)
+		{ this.installResponders(sw); }
 	}
 
+	/**
+	 * Event handler called when a switch leaves the network.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchRemoved(long switchId) 
+	{ /* Nothing we need to do, since the switch is no longer active */ }
+
+	/**
+	 * Event handler called when the controller becomes the master for a switch.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchActivated(long switchId)
+	{ this.switchAdded(switchId); }
+	
+	/**
+	 * Event handler called when switches may have changed owner; switches
+	 * this controller took over need responder rules.
+	 */
+	@Override
+	public void ownershipChanged()
+	{
+		for (IOFSwitch sw : this.floodlightProv.getAllSwitchMap().values())
+		{ this.switchAdded(sw.getId()); }
+	}
+	
+	/**
+	 * Event handler called when another controller reports a host.
+	 * @param host the host's current snapshot
+	 */
+	@Override
+	public void remoteHostUpdated(Host host)
+	{ /* Nothing we need to do, since HostIndex reports the host's addresses */ }
+	
+	/**
+	 * Event handler called when another controller no longer reports a host.
+	 * @param host the host's last snapshot
+	 */
+	@Override
+	public void remoteHostRemoved(Host host)
+	{ /* Nothing we need to do, since HostIndex reports the host's addresses */ }
+	
+	/**
+	 * Event handler called when the links reported by other controllers 
+	 * changed.
+	 */
+	@Override
+	public void remoteLinksChanged()
+	{ /* Nothing we need to do, since responders are only at edge switches */ }
+
+	/**
+	 * Event handler called when a port on a switch goes up or down, or is
+	 * added or removed.
+	 * @param DPID for the switch
+	 * @param port the port on the switch whose status changed
+	 * @param type the type of status change (up, down, add, remove)
+	 */
+	@Override
+	public void switchPortChanged(long switchId, ImmutablePort port,
+			PortChangeType type) 
+	{ /* Nothing we need to do, since hosts that leave are removed by the index */ }
+
+	/**
+	 * Event handler called when some attribute of a switch changes.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchChanged(long switchId) 
+	{ /* Nothing we need to do */ }
+
 	/**
      * Tell the module system which services we provide.
      */
@@ -86,7 +467,8 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 		Collection<Class<? extends IFloodlightService >> floodlightService =
 	            new ArrayList<Class<? extends IFloodlightService>>();
         floodlightService.add(IFloodlightProviderService.class);
-        floodlightService.add(IDeviceService.class);
+        floodlightService.add(IHostIndexService.class);
+        floodlightService.add(IPipelineService.class);
         return floodlightService;
 	}
 
@@ -124,8 +506,8 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 	public net.floodlightcontroller.core.IListener.Command receive(
 			IOFSwitch sw, OFMessage msg, FloodlightContext cntx) 
 	{
-		// We only care about packet-in messages
-		if (msg.getType() != OFType.PACKET_IN)
+		// We only care about packet-in messages from switches we own
+		if (msg.getType() != OFType.PACKET_IN || !this.cluster.isLocal(sw.getId()))
 		{ return Command.CONTINUE; }
 		OFPacketIn pktIn = (OFPacketIn)msg;
 		
@@ -141,19 +523,34 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 				|| arp.getProtocolType() != ARP.PROTO_TYPE_IP)
 		{ return Command.CONTINUE; }
 				
-		// See if we known about the device whose MAC address is being requested
+		// Hosts retransmit requests, and many hosts may ask for the same 
+		// address at once; answer each sender once per dedup window, and 
+		// drop requests for addresses recently found to be unknown
 		int targetIP = IPv4.toIPv4Address(arp.getTargetProtocolAddress());
-		log.info(String.format("Received ARP request for %s from %s",
-				IPv4.fromIPv4Address(targetIP),
-				MACAddress.valueOf(arp.getSenderHardwareAddress()).toString()));
-		Iterator<? extends IDevice> deviceIterator = 
-				this.deviceProv.queryDevices(null, null, targetIP, null, null);
-		if (!deviceIterator.hasNext())
-		{ return Command.CONTINUE; }
+		int senderIP = IPv4.toIPv4Address(arp.getSenderProtocolAddress());
+		long now = System.currentTimeMillis();
+		if (this.unknownTargets.contains(targetIP, now)
+				|| this.recentRequests.add(
+						(((long)senderIP) << 32) | (targetIP & 0xFFFFFFFFL), now))
+		{ return Command.STOP; }
+		
+		// See if we known about the device whose MAC address is being requested
+		if (log.isDebugEnabled())
+		{
+			log.debug(String.format("Received ARP request for %s from %s",
+					IPv4.fromIPv4Address(targetIP),
+					MACAddress.valueOf(arp.getSenderHardwareAddress()).toString()));
+		}
+		long targetMac = this.hostIndex.getMACAddress(targetIP);
+		if (IHostIndexService.UNKNOWN == targetMac)
+		{
+			// Let other modules see the first request for the address
+			this.unknownTargets.add(targetIP, now);
+			return Command.CONTINUE;
+		}
 		
 		// Create ARP reply
-		IDevice device = deviceIterator.next();
-		byte[] deviceMac = MACAddress.valueOf(device.getMACAddress()).toBytes();
+		byte[] deviceMac = MACAddress.valueOf(targetMac).toBytes();
 		arp.setOpCode(ARP.OP_REPLY);
 		arp.setTargetHardwareAddress(arp.getSenderHardwareAddress());
 		arp.setTargetProtocolAddress(arp.getSenderProtocolAddress());
@@ -163,9 +560,12 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 		eth.setSourceMACAddress(deviceMac);
 		
 		// Send the ARP reply
-		log.info(String.format("Sending ARP reply %s->%s",
-				IPv4.fromIPv4Address(targetIP),
-				MACAddress.valueOf(deviceMac).toString()));
+		if (log.isDebugEnabled())
+		{
+			log.debug(String.format("Sending ARP reply %s->%s",
+					IPv4.fromIPv4Address(targetIP),
+					MACAddress.valueOf(deviceMac).toString()));
+		}
 		SwitchCommands.sendPacket(sw, (short)pktIn.getInPort(), eth);
 	
 		return Command.STOP;
@@ -0,0 +1,113 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Assigns keys (e.g., switch DPIDs) to members (e.g., controllers) by
+ * consistent hashing. Each member owns several points on a ring of 64-bit
+ * hashes, and a key belongs to the member owning the first point at or after
+ * the key's hash, so adding or removing a member moves only the keys that
+ * member gains or loses. The assignment depends only on the member names, so
+ * every process with the same members agrees on it.
+ */
+public class ConsistentHashRing
+{
+	// Points each member owns on the ring
+	private int virtualNodes;
+
+	// Hash -> member owning the point
+	private TreeMap<Long,String> ring;
+
+	// Members, in name order
+	private Set<String> members;
+
+	/**
+	 * Create an empty ring.
+	 * @param virtualNodes points each member owns on the ring; more points
+	 *        spread keys more evenly
+	 */
+	public ConsistentHashRing(int virtualNodes)
+	{
+		if (virtualNodes <= 0)
+		{ throw new IllegalArgumentException("Virtual nodes must be positive"); }
+		this.virtualNodes = virtualNodes;
+		this.ring = new TreeMap<Long,String>();
+		this.members = new TreeSet<String>();
+	}
+
+	/**
+	 * Replace the members of the ring.
+	 * @param members the new members
+	 * @return true if the members changed, otherwise false
+	 */
+	public synchronized boolean setMembers(Collection<String> members)
+	{
+		Set<String> updated = new TreeSet<String>(members);
+		if (updated.equals(this.members))
+		{ return false; }
+		this.members = updated;
+
+		// Members are added in name order, and a point claimed by two members
+		// stays with the first, so every process builds the same ring
+		this.ring.clear();
+		for (String member : this.members)
+		{
+			for (int i = 0; i < this.virtualNodes; i++)
+			{
+				long point = hash(member, i);
+				if (!this.ring.containsKey(point))
+				{ this.ring.put(point, member); }
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the members of the ring.
+	 * @return a snapshot of the members
+	 */
+	public synchronized Set<String> getMembers()
+	{ return new TreeSet<String>(this.members); }
+
+	/**
+	 * Get the member that owns a key.
+	 * @param key the key
+	 * @return the member, null if the ring is empty
+	 */
+	public synchronized String getOwner(long key)
+	{
+		if (this.ring.isEmpty())
+		{ return null; }
+		Map.Entry<Long,String> point = this.ring.ceilingEntry(mix(key));
+		if (null == point)
+		{ point = this.ring.firstEntry(); }
+		return point.getValue();
+	}
+
+	private static long hash(String member, int replica)
+	{
+		// FNV-1a over the name, then mixed with the replica number
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < member.length(); i++)
+		{
+			hash ^= member.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash ^ (replica * 0x9e3779b97f4a7c15L));
+	}
+
+	private static long mix(long key)
+	{
+		// Finalizer from MurmurHash3, so consecutive DPIDs land far apart
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+}
@@ -0,0 +1,684 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryListener;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+/**
+ * Lets several controller processes on one machine share the switches. Each
+ * switch is owned by one controller, chosen by consistent hashing of its
+ * DPID over the controllers that are alive, and only the owner installs
+ * rules in it or handles its packet-ins. The controllers share the hosts and
+ * links they learn at their own switches through a {@link SharedLog}: each
+ * appends what changed, and every controller replays the others' records.
+ * A controller is alive while it keeps writing heartbeats; when one stops,
+ * the others drop what it reported and take over its switches.
+ */
+public class ControllerCluster implements IFloodlightModule,
+		IControllerClusterService, IDeviceListener, ILinkDiscoveryListener
+{
+	public static final String MODULE_NAME =
+			ControllerCluster.class.getSimpleName();
+
+	private static final String LOG_FILE = "/tmp/floodlight-cluster.log";
+	private static final int HEARTBEAT_INTERVAL = 1000;
+	private static final int DEAD_INTERVAL = 3000;
+	private static final int VIRTUAL_NODES = 100;
+
+	// Interface to the logging system
+    private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+
+    // Interface to device manager service
+    private IDeviceService deviceProv;
+
+    // Interface to link discovery service
+    private ILinkDiscoveryService linkDiscProv;
+
+    // Interface to thread pool service, used to schedule heartbeats
+    private IThreadPoolService threadPool;
+
+    // Name of this controller; null when the controller runs alone
+    private String controllerId;
+
+    // Milliseconds between heartbeats, and without one before a controller
+    // is considered gone
+    private int heartbeatInterval;
+    private int deadInterval;
+
+    // Switch ownership among the controllers that are alive
+    private ConsistentHashRing ring;
+
+    // Records shared with the other controllers
+    private SharedLog sharedLog;
+
+    // Other controller -> time of its last heartbeat, -1 if none yet
+    private Map<String,Long> heartbeats;
+
+    // Other controller -> MAC address -> host it reported
+    private Map<String,Map<Long,Host>> remoteHosts;
+
+    // Other controller -> links it reported
+    private Map<String,Set<Link>> remoteLinks;
+
+    // Hosts and links this controller has reported
+    private Map<Long,Host> publishedHosts;
+    private Set<Link> publishedLinks;
+
+    // Modules notified of changes to the shared state
+    private List<IControllerClusterListener> listeners;
+
+    // Task which sends heartbeats and reads the other controllers' records
+    private SingletonTask syncTask;
+
+    // Stands in for the cluster when this module is not loaded: the 
+    // controller owns every switch and hears from no other controller
+    private static final IControllerClusterService STANDALONE =
+    		new IControllerClusterService() {
+		@Override
+		public String getControllerId()
+		{ return null; }
+
+		@Override
+		public String getOwner(long switchId)
+		{ return null; }
+
+		@Override
+		public boolean isLocal(long switchId)
+		{ return true; }
+
+		@Override
+		public Collection<Link> getRemoteLinks()
+		{ return Collections.emptyList(); }
+
+		@Override
+		public void addListener(IControllerClusterListener listener)
+		{ /* Nothing we need to do, since the shared state never changes */ }
+	};
+
+	/**
+	 * Get the cluster service modules should consult: this module if it is
+	 * loaded, otherwise one under which the controller owns every switch.
+	 * @param context the module context
+	 * @return the cluster service; never null
+	 */
+	public static IControllerClusterService getService(
+			FloodlightModuleContext context)
+	{
+		IControllerClusterService cluster = 
+				context.getServiceImpl(IControllerClusterService.class);
+		return (null == cluster ? STANDALONE : cluster);
+	}
+
+	/**
+     * Loads dependencies and initializes data structures.
+     */
+	@Override
+	public void init(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Initializing %s...", MODULE_NAME));
+		Map<String,String> config = context.getConfigParams(this);
+		this.deviceProv = context.getServiceImpl(IDeviceService.class);
+		this.linkDiscProv = context.getServiceImpl(ILinkDiscoveryService.class);
+		this.threadPool = context.getServiceImpl(IThreadPoolService.class);
+
+		// Without a controller ID, this controller owns every switch
+		if (config.containsKey("controllerId"))
+		{
+			this.controllerId = config.get("controllerId").trim();
+			if (0 == this.controllerId.length()
+					|| this.controllerId.matches(".*\\s.*"))
+			{
+				throw new FloodlightModuleException(
+						"Bad controller ID: " + this.controllerId);
+			}
+		}
+		this.heartbeatInterval = (config.containsKey("heartbeatInterval")
+				? Integer.parseInt(config.get("heartbeatInterval").trim())
+				: HEARTBEAT_INTERVAL);
+		this.deadInterval = (config.containsKey("deadInterval")
+				? Integer.parseInt(config.get("deadInterval").trim())
+				: DEAD_INTERVAL);
+		this.ring = new ConsistentHashRing(config.containsKey("virtualNodes")
+				? Integer.parseInt(config.get("virtualNodes").trim())
+				: VIRTUAL_NODES);
+		this.sharedLog = new SharedLog(config.containsKey("logFile")
+				? config.get("logFile").trim() : LOG_FILE);
+
+		this.heartbeats = new HashMap<String,Long>();
+		this.remoteHosts = new HashMap<String,Map<Long,Host>>();
+		this.remoteLinks = new HashMap<String,Set<Link>>();
+		this.publishedHosts = new HashMap<Long,Host>();
+		this.publishedLinks = new HashSet<Link>();
+		this.listeners = new CopyOnWriteArrayList<IControllerClusterListener>();
+		if (this.controllerId != null)
+		{ this.ring.setMembers(Collections.singleton(this.controllerId)); }
+	}
+
+	/**
+     * Subscribes to events and performs other startup tasks.
+     */
+	@Override
+	public void startUp(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Starting %s...", MODULE_NAME));
+		if (null == this.controllerId)
+		{ return; }
+		log.info(String.format("Controller %s sharing switches through %s",
+				this.controllerId, this.sharedLog.getPath()));
+
+		// Whatever an earlier run of this controller reported is stale
+		this.append("RESET");
+		this.deviceProv.addListener(this);
+		this.linkDiscProv.addListener(this);
+
+		this.syncTask = new SingletonTask(
+				this.threadPool.getScheduledExecutor(), new Runnable() {
+					@Override
+					public void run()
+					{
+						try
+						{ sync(); }
+						catch (RuntimeException e)
+						{ log.error("Cluster sync failed", e); }
+						finally
+						{
+							syncTask.reschedule(heartbeatInterval,
+									TimeUnit.MILLISECONDS);
+						}
+					}
+				});
+		this.syncTask.reschedule(0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get the name of this controller in the cluster.
+	 * @return the name, null if the controller is not part of a cluster
+	 */
+	@Override
+	public String getControllerId()
+	{ return this.controllerId; }
+
+	/**
+	 * Get the controller which owns a switch.
+	 * @param switchId DPID of the switch
+	 * @return the controller's name, null if the controller is not part of a
+	 *         cluster
+	 */
+	@Override
+	public String getOwner(long switchId)
+	{ return this.ring.getOwner(switchId); }
+
+	/**
+	 * Check whether this controller owns a switch.
+	 * @param switchId DPID of the switch
+	 * @return true if this controller owns the switch, otherwise false
+	 */
+	@Override
+	public boolean isLocal(long switchId)
+	{
+		return (null == this.controllerId
+				|| this.controllerId.equals(this.ring.getOwner(switchId)));
+	}
+
+	/**
+	 * Get the links between switches reported by other controllers.
+	 * @return a snapshot of the links
+	 */
+	@Override
+	public Collection<Link> getRemoteLinks()
+	{ return this.getMergedLinks(); }
+
+	/**
+	 * Subscribe to changes in the shared state.
+	 * @param listener notified of each change
+	 */
+	@Override
+	public void addListener(IControllerClusterListener listener)
+	{ this.listeners.add(listener); }
+
+	/**
+	 * Get the links reported by other controllers.
+	 */
+	private synchronized Set<Link> getMergedLinks()
+	{
+		Set<Link> links = new HashSet<Link>();
+		for (Set<Link> reported : this.remoteLinks.values())
+		{ links.addAll(reported); }
+		return links;
+	}
+
+	/**
+	 * Send a heartbeat, apply the records other controllers appended since
+	 * the last sync, and notify listeners of what changed. Listeners are
+	 * notified without holding this module's lock, so they may call back.
+	 */
+	private void sync()
+	{
+		long now = System.currentTimeMillis();
+		Map<Long,Host> oldHosts = null;
+		Set<Link> oldLinks = null;
+		boolean ownershipChanged;
+		synchronized (this)
+		{
+			try
+			{ this.sharedLog.writeHeartbeat(this.controllerId, now); }
+			catch (IOException e)
+			{
+				log.error("Cannot write heartbeat next to "
+						+ this.sharedLog.getPath(), e);
+			}
+			List<String> records;
+			try
+			{ records = this.sharedLog.read(); }
+			catch (IOException e)
+			{
+				log.error("Cannot read " + this.sharedLog.getPath(), e);
+				records = new ArrayList<String>();
+			}
+
+			// Take a snapshot only if the shared state may change
+			if (!records.isEmpty())
+			{
+				oldHosts = this.getMergedHosts();
+				oldLinks = this.getMergedLinks();
+			}
+			for (String record : records)
+			{ this.apply(record); }
+
+			// Forget controllers that stopped sending heartbeats
+			Set<String> alive = new HashSet<String>();
+			alive.add(this.controllerId);
+			for (Map.Entry<String,Long> heartbeat : this.heartbeats.entrySet())
+			{
+				try
+				{
+					heartbeat.setValue(this.sharedLog.readHeartbeat(
+							heartbeat.getKey()));
+				}
+				catch (IOException e)
+				{
+					log.error("Cannot read heartbeat of "
+							+ heartbeat.getKey(), e);
+				}
+				if (heartbeat.getValue() >= now - this.deadInterval)
+				{ alive.add(heartbeat.getKey()); }
+			}
+			Set<String> gone = new HashSet<String>(this.remoteHosts.keySet());
+			gone.addAll(this.remoteLinks.keySet());
+			gone.removeAll(alive);
+			if (!gone.isEmpty() && null == oldHosts)
+			{
+				oldHosts = this.getMergedHosts();
+				oldLinks = this.getMergedLinks();
+			}
+			for (String controller : gone)
+			{
+				this.remoteHosts.remove(controller);
+				this.remoteLinks.remove(controller);
+			}
+
+			ownershipChanged = this.ring.setMembers(alive);
+			if (ownershipChanged)
+			{
+				log.info(String.format("Controllers in cluster: %s",
+						this.ring.getMembers()));
+				this.republish();
+			}
+		}
+
+		if (oldHosts != null)
+		{
+			Map<Long,Host> newHosts = this.getMergedHosts();
+			for (Host host : newHosts.values())
+			{
+				if (!host.equals(oldHosts.get(host.getMACAddress())))
+				{
+					for (IControllerClusterListener listener : this.listeners)
+					{ listener.remoteHostUpdated(host); }
+				}
+			}
+			for (Host host : oldHosts.values())
+			{
+				if (!newHosts.containsKey(host.getMACAddress()))
+				{
+					for (IControllerClusterListener listener : this.listeners)
+					{ listener.remoteHostRemoved(host); }
+				}
+			}
+			if (!oldLinks.equals(this.getMergedLinks()))
+			{
+				for (IControllerClusterListener listener : this.listeners)
+				{ listener.remoteLinksChanged(); }
+			}
+		}
+		if (ownershipChanged)
+		{
+			for (IControllerClusterListener listener : this.listeners)
+			{ listener.ownershipChanged(); }
+		}
+	}
+
+	/**
+	 * Apply a record appended by another controller. Records are
+	 * "controller type fields...", where the types are RESET, HOST mac switch port ip,ip,..., HOSTGONE mac, LINK src srcPort dst
+	 * dstPort and LINKGONE src srcPort dst dstPort.
+	 * @param record the record
+	 */
+	private void apply(String record)
+	{
+		String[] fields = record.split(" ");
+		if (fields.length < 2 || fields[0].equals(this.controllerId))
+		{ return; }
+		String controller = fields[0];
+		String type = fields[1];
+
+		// Every controller appends RESET when it starts, so this learns of
+		// each one whose heartbeats must be checked
+		if (!this.heartbeats.containsKey(controller))
+		{ this.heartbeats.put(controller, -1L); }
+		try
+		{
+			if (type.equals("RESET"))
+			{
+				this.remoteHosts.remove(controller);
+				this.remoteLinks.remove(controller);
+			}
+			else if (type.equals("HOST"))
+			{
+				String[] ipFields = fields[5].split(",");
+				Integer[] ips = new Integer[ipFields.length];
+				for (int i = 0; i < ipFields.length; i++)
+				{ ips[i] = Integer.parseInt(ipFields[i]); }
+				Host host = new Host(Long.parseLong(fields[2]), ips,
+						Long.parseLong(fields[3]), Integer.parseInt(fields[4]));
+				Map<Long,Host> hosts = this.remoteHosts.get(controller);
+				if (null == hosts)
+				{
+					hosts = new HashMap<Long,Host>();
+					this.remoteHosts.put(controller, hosts);
+				}
+				hosts.put(host.getMACAddress(), host);
+			}
+			else if (type.equals("HOSTGONE"))
+			{
+				Map<Long,Host> hosts = this.remoteHosts.get(controller);
+				if (hosts != null)
+				{ hosts.remove(Long.parseLong(fields[2])); }
+			}
+			else if (type.equals("LINK") || type.equals("LINKGONE"))
+			{
+				Link link = new Link(Long.parseLong(fields[2]),
+						Integer.parseInt(fields[3]), Long.parseLong(fields[4]),
+						Integer.parseInt(fields[5]));
+				Set<Link> links = this.remoteLinks.get(controller);
+				if (null == links)
+				{
+					links = new HashSet<Link>();
+					this.remoteLinks.put(controller, links);
+				}
+				if (type.equals("LINK"))
+				{ links.add(link); }
+				else
+				{ links.remove(link); }
+			}
+		}
+		catch (RuntimeException e)
+		{ log.warn("Ignoring malformed cluster record: " + record); }
+	}
+
+	/**
+	 * Get the hosts reported by other controllers.
+	 * @return MAC address -> host
+	 */
+	private synchronized Map<Long,Host> getMergedHosts()
+	{
+		Map<Long,Host> hosts = new HashMap<Long,Host>();
+		for (Map<Long,Host> reported : this.remoteHosts.values())
+		{ hosts.putAll(reported); }
+		return hosts;
+	}
+
+	/**
+	 * Report what this controller knows about the switches it now owns, and
+	 * withdraw what it reported about switches it no longer owns.
+	 */
+	private synchronized void republish()
+	{
+		Set<Long> macs = new HashSet<Long>(this.publishedHosts.keySet());
+		for (IDevice device : this.deviceProv.getAllDevices())
+		{
+			macs.remove(device.getMACAddress());
+			this.publishHost(device.getMACAddress(), new Host(device));
+		}
+		for (long mac : macs)
+		{ this.publishHost(mac, null); }
+
+		Set<Link> links = new HashSet<Link>(this.linkDiscProv.getLinks().keySet());
+		for (Link link : links)
+		{ this.publishLink(link, true); }
+		for (Link link : new ArrayList<Link>(this.publishedLinks))
+		{
+			if (!links.contains(link))
+			{ this.publishLink(link, false); }
+		}
+	}
+
+	/**
+	 * Report a host if it is attached to a switch this controller owns, or
+	 * withdraw it if it was reported before and no longer is.
+	 * @param mac the host's MAC address
+	 * @param host the host's current snapshot, null if the host left
+	 */
+	private synchronized void publishHost(long mac, Host host)
+	{
+		boolean local = (host != null && host.isAttachedToSwitch()
+				&& host.getIPv4Address() != null
+				&& this.isLocal(host.getSwitchId()));
+		Host old = this.publishedHosts.get(mac);
+		if (local)
+		{
+			if (host.equals(old))
+			{ return; }
+			StringBuilder ips = new StringBuilder();
+			for (Integer ip : host.getIPv4Addresses())
+			{ ips.append(ips.length() > 0 ? "," : "").append(ip); }
+			this.publishedHosts.put(mac, host);
+			this.append(String.format("HOST %d %d %d %s", mac,
+					host.getSwitchId(), host.getPort(), ips));
+		}
+		else if (old != null)
+		{
+			this.publishedHosts.remove(mac);
+			this.append(String.format("HOSTGONE %d", mac));
+		}
+	}
+
+	/**
+	 * Report a link leaving a switch this controller owns, or withdraw it.
+	 * @param link the link
+	 * @param up true if the link is up, false if it is gone
+	 */
+	private synchronized void publishLink(Link link, boolean up)
+	{
+		up = up && this.isLocal(link.getSrc());
+		if (up == this.publishedLinks.contains(link))
+		{ return; }
+		if (up)
+		{ this.publishedLinks.add(link); }
+		else
+		{ this.publishedLinks.remove(link); }
+		this.append(String.format("%s %d %d %d %d", (up ? "LINK" : "LINKGONE"),
+				link.getSrc(), link.getSrcPort(), link.getDst(),
+				link.getDstPort()));
+	}
+
+	private void append(String record)
+	{
+		try
+		{ this.sharedLog.append(this.controllerId + " " + record); }
+		catch (IOException e)
+		{ log.error("Cannot append to " + this.sharedLog.getPath(), e); }
+	}
+
+	/**
+     * Event handler called when a host joins the network.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceAdded(IDevice device)
+	{ this.publishHost(device.getMACAddress(), new Host(device)); }
+
+	/**
+     * Event handler called when a host is no longer attached to a switch.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceRemoved(IDevice device)
+	{ this.publishHost(device.getMACAddress(), null); }
+
+	/**
+     * Event handler called when a host moves within the network.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceMoved(IDevice device)
+	{ this.publishHost(device.getMACAddress(), new Host(device)); }
+
+	/**
+     * Event handler called when the IP address of a host changes.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceIPV4AddrChanged(IDevice device)
+	{ this.publishHost(device.getMACAddress(), new Host(device)); }
+
+	/**
+     * Event handler called when the VLAN of a host changes.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceVlanChanged(IDevice device)
+	{ /* Nothing we need to do, since we're not using VLANs */ }
+
+	/**
+	 * Event handler called when multiple links go up or down.
+	 * @param updateList information about the change in each link's state
+	 */
+	@Override
+	public void linkDiscoveryUpdate(List<LDUpdate> updateList)
+	{
+		for (LDUpdate update : updateList)
+		{
+			// Links to hosts are reported as hosts
+			if (0 == update.getDst())
+			{ continue; }
+			Link link = new Link(update.getSrc(), update.getSrcPort(),
+					update.getDst(), update.getDstPort());
+			if (UpdateOperation.LINK_UPDATED == update.getOperation())
+			{ this.publishLink(link, true); }
+			else if (UpdateOperation.LINK_REMOVED == update.getOperation())
+			{ this.publishLink(link, false); }
+		}
+	}
+
+	/**
+	 * Event handler called when link goes up or down.
+	 * @param update information about the change in link state
+	 */
+	@Override
+	public void linkDiscoveryUpdate(LDUpdate update)
+	{ this.linkDiscoveryUpdate(Arrays.asList(update)); }
+
+	/**
+     * Tell the module system which services we provide.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>> getModuleServices()
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+					new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IControllerClusterService.class);
+		return services;
+	}
+
+	/**
+     * Tell the module system which services we implement.
+     */
+	@Override
+	public Map<Class<? extends IFloodlightService>, IFloodlightService>
+			getServiceImpls()
+	{
+        Map<Class<? extends IFloodlightService>, IFloodlightService> services =
+        			new HashMap<Class<? extends IFloodlightService>,
+        					IFloodlightService>();
+        // We are the class that implements the service
+        services.put(IControllerClusterService.class, this);
+        return services;
+	}
+
+	/**
+     * Tell the module system which modules we depend on.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>>
+			getModuleDependencies()
+	{
+		Collection<Class<? extends IFloodlightService >> modules =
+	            new ArrayList<Class<? extends IFloodlightService>>();
+		modules.add(IDeviceService.class);
+		modules.add(ILinkDiscoveryService.class);
+		modules.add(IThreadPoolService.class);
+        return modules;
+	}
+
+	/**
+	 * Gets a name for this module.
+	 * @return name for this module
+	 */
+	@Override
+	public String getName()
+	{ return MODULE_NAME; }
+
+	/**
+	 * Check if events must be passed to another module before this module is
+	 * notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPrereq(String type, String name)
+	{ return false; }
+
+	/**
+	 * Check if events must be passed to another module after this module has
+	 * been notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPostreq(String type, String name)
+	{ return false; }
+}
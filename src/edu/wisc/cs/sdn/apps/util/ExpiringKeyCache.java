@@ -0,0 +1,90 @@
+package edu.wisc.cs.sdn.apps.util;
+
+/**
+ * Remembers recently seen keys for a fixed time. The cache is direct-mapped:
+ * each key has exactly one slot in flat arrays, and a new key overwrites
+ * whatever was in its slot. Every operation is therefore O(1) and never
+ * allocates, at the cost of occasionally forgetting a key early when two
+ * keys collide.
+ */
+public class ExpiringKeyCache
+{
+	private static final int MIN_CAPACITY = 16;
+
+	// Key in each slot, and the time it was recorded; 0 marks an empty slot
+	private long[] keys;
+	private long[] recorded;
+
+	// Milliseconds after being recorded at which a key is forgotten
+	private long ttl;
+
+	/**
+	 * Create a cache.
+	 * @param capacity number of slots; rounded up to a power of two
+	 * @param ttlMillis milliseconds after being recorded at which a key is
+	 *        forgotten
+	 */
+	public ExpiringKeyCache(int capacity, long ttlMillis)
+	{
+		int slots = MIN_CAPACITY;
+		while (slots < capacity && slots < (1 << 30))
+		{ slots <<= 1; }
+		this.keys = new long[slots];
+		this.recorded = new long[slots];
+		this.ttl = ttlMillis;
+	}
+
+	/**
+	 * Check whether a key was recorded less than the TTL ago.
+	 * @param key the key
+	 * @param now the current time, in milliseconds
+	 * @return true if the key is in the cache, otherwise false
+	 */
+	public synchronized boolean contains(long key, long now)
+	{
+		int slot = this.slotFor(key);
+		return (this.recorded[slot] != 0 && this.keys[slot] == key
+				&& now - this.recorded[slot] < this.ttl);
+	}
+
+	/**
+	 * Record a key unless it is already in the cache. A key already in the
+	 * cache keeps the time it was first recorded, so it is forgotten on
+	 * schedule however often it is seen.
+	 * @param key the key
+	 * @param now the current time, in milliseconds; must be positive
+	 * @return true if the key was already in the cache, otherwise false
+	 */
+	public synchronized boolean add(long key, long now)
+	{
+		int slot = this.slotFor(key);
+		if (this.recorded[slot] != 0 && this.keys[slot] == key
+				&& now - this.recorded[slot] < this.ttl)
+		{ return true; }
+		this.keys[slot] = key;
+		this.recorded[slot] = now;
+		return false;
+	}
+
+	/**
+	 * Forget a key.
+	 * @param key the key
+	 */
+	public synchronized void remove(long key)
+	{
+		int slot = this.slotFor(key);
+		if (this.keys[slot] == key)
+		{ this.recorded[slot] = 0; }
+	}
+
+	private int slotFor(long key)
+	{
+		// Finalizer from MurmurHash3, so keys from one subnet spread out
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key & (this.keys.length - 1);
+	}
+}
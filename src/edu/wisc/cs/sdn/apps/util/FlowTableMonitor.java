@@ -0,0 +1,701 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFError;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.openflow.protocol.statistics.OFTableStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IOFSwitch.PortChangeType;
+import net.floodlightcontroller.core.IOFSwitchListener;
+import net.floodlightcontroller.core.ImmutablePort;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+/**
+ * Keeps count of the rules in every switch from table statistics, and
+ * evicts expendable rules when a switch fills up, so a full switch refuses
+ * as few rules as possible and never silently. The switch's tables are
+ * assumed to share one store of rules, as TCAM usually is.
+ *
+ * A switch's capacity is configured, or learned from the number of rules
+ * it held when it first refused a flow-mod as TABLE_FULL. Above the high
+ * watermark, or after a refusal, rules are evicted down to the low
+ * watermark: first from the connections stage, then from the elephants
+ * stage, and within a stage only rules with a timeout, whose owners
+ * already expect them to go away and rebuild them on demand. ARP, virtual
+ * IP and routing rules are never evicted, since without them packets would
+ * be dropped. Owners of refused rules are told once there is room again.
+ */
+public class FlowTableMonitor implements IFloodlightModule, IFlowTableService,
+		IOFSwitchListener, IOFMessageListener
+{
+	public static final String MODULE_NAME = FlowTableMonitor.class.getSimpleName();
+
+	private static final int INTERVAL = 10;
+	private static final double HIGH_WATERMARK = 0.9;
+	private static final double LOW_WATERMARK = 0.75;
+
+	// Stages whose rules may be evicted, the most expendable first
+	private static final List<String> EVICTION_ORDER = Arrays.asList(
+			IPipelineService.CONNECTIONS, IPipelineService.ELEPHANTS);
+
+	// Fewest rules evicted after a refusal, when the capacity is not known
+	private static final int MIN_EVICTION = 16;
+
+	// Error type and codes from the OpenFlow 1.3 specification
+	private static final short OFPET_FLOW_MOD_FAILED = 5;
+	private static final short OFPFMFC_TABLE_FULL = 1;
+	private static final short OFPFMFC_BAD_TABLE_ID = 2;
+
+	// Type and table ID offsets in an OpenFlow 1.3 flow-mod
+	private static final int MESSAGE_TYPE_OFFSET = 1;
+	private static final int FLOW_MOD_TABLE_OFFSET = 24;
+	private static final byte OFPT_FLOW_MOD = 14;
+	private static final byte UNKNOWN_TABLE = (byte)0xFF;
+
+	// OpenFlow does not report how long a rule has been idle, so the rules
+	// that matched the fewest packets per second of their lifetime go
+	// first, and the oldest among equals
+	private static final Comparator<OFFlowStatisticsReply> LEAST_USED =
+			new Comparator<OFFlowStatisticsReply>() {
+		@Override
+		public int compare(OFFlowStatisticsReply a, OFFlowStatisticsReply b)
+		{
+			int result = Double.compare(getPacketRate(a), getPacketRate(b));
+			if (0 == result)
+			{
+				result = (a.getDurationSeconds() > b.getDurationSeconds() ? -1
+						: (a.getDurationSeconds() == b.getDurationSeconds()
+							? 0 : 1));
+			}
+			return result;
+		}
+	};
+
+	// Interface to the logging system
+    private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+
+    // Interface to Floodlight core for interacting with connected switches
+    private IFloodlightProviderService floodlightProv;
+
+    // Interface to thread pool service, used to schedule polls and evictions
+    private IThreadPoolService threadPool;
+
+    // Interface to the pipeline, which says what each table holds
+    private IPipelineService pipeline;
+
+    // Interface to the controllers sharing the switches
+    private IControllerClusterService cluster;
+
+    // Seconds between polls
+    private int interval;
+
+    // Rules each switch can hold; 0 if learned from refusals
+    private int capacity;
+
+    // Fractions of capacity above which rules are evicted, and down to
+    // which they are evicted
+    private double highWatermark;
+    private double lowWatermark;
+
+    // Switch DPID -> rule counts
+    private ConcurrentMap<Long,SwitchTables> switches;
+
+    // Switches that need rules evicted
+    private Set<Long> pending;
+
+    // Listeners for switches that refused rules
+    private List<IFlowTableListener> listeners;
+
+    private AtomicLong tableFullErrors;
+    private AtomicLong evictedRules;
+
+    // Tasks which poll the switches and evict rules
+    private SingletonTask pollTask;
+    private SingletonTask evictTask;
+
+    private static class SwitchTables
+    {
+    	// Rules in each table, and in all tables, as last counted
+    	volatile Map<Byte,Integer> activeCounts =
+    			Collections.<Byte,Integer>emptyMap();
+    	volatile int activeCount;
+
+    	// Rules the switch held when it refused one; 0 if it never has
+    	volatile int learnedCapacity;
+
+    	// Set when the switch refuses a rule, until there is room again
+    	volatile boolean full;
+
+    	// Tables whose rules the switch refused while full
+    	final Set<Byte> rejectedTables = Collections.newSetFromMap(
+    			new ConcurrentHashMap<Byte,Boolean>());
+    }
+
+	/**
+     * Loads dependencies and initializes data structures.
+     */
+	@Override
+	public void init(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Initializing %s...", MODULE_NAME));
+		Map<String,String> config = context.getConfigParams(this);
+		this.floodlightProv = context.getServiceImpl(
+				IFloodlightProviderService.class);
+		this.threadPool = context.getServiceImpl(IThreadPoolService.class);
+		this.pipeline = context.getServiceImpl(IPipelineService.class);
+		this.cluster = ControllerCluster.getService(context);
+
+		this.interval = (config.containsKey("interval")
+				? Integer.parseInt(config.get("interval").trim()) : INTERVAL);
+		this.capacity = (config.containsKey("capacity")
+				? Integer.parseInt(config.get("capacity").trim()) : 0);
+		this.highWatermark = (config.containsKey("highWatermark")
+				? Double.parseDouble(config.get("highWatermark").trim())
+				: HIGH_WATERMARK);
+		this.lowWatermark = (config.containsKey("lowWatermark")
+				? Double.parseDouble(config.get("lowWatermark").trim())
+				: LOW_WATERMARK);
+		if (this.lowWatermark <= 0 || this.lowWatermark >= this.highWatermark
+				|| this.highWatermark > 1)
+		{
+			throw new FloodlightModuleException(
+					"Watermarks must satisfy 0 < lowWatermark < highWatermark <= 1");
+		}
+
+		this.switches = new ConcurrentHashMap<Long,SwitchTables>();
+		this.pending = Collections.newSetFromMap(
+				new ConcurrentHashMap<Long,Boolean>());
+		this.listeners = new CopyOnWriteArrayList<IFlowTableListener>();
+		this.tableFullErrors = new AtomicLong(0);
+		this.evictedRules = new AtomicLong(0);
+	}
+
+	/**
+     * Subscribes to events and performs other startup tasks.
+     */
+	@Override
+	public void startUp(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Starting %s...", MODULE_NAME));
+		this.pollTask = new SingletonTask(
+				this.threadPool.getScheduledExecutor(), new Runnable() {
+					@Override
+					public void run()
+					{
+						try
+						{ poll(); }
+						catch (RuntimeException e)
+						{ log.error("Table statistics poll failed", e); }
+						finally
+						{ pollTask.reschedule(interval, TimeUnit.SECONDS); }
+					}
+				});
+		this.pollTask.reschedule(this.interval, TimeUnit.SECONDS);
+
+		this.evictTask = new SingletonTask(
+				this.threadPool.getScheduledExecutor(), new Runnable() {
+					@Override
+					public void run()
+					{
+						for (long switchId : new ArrayList<Long>(pending))
+						{
+							pending.remove(switchId);
+							try
+							{ evict(switchId); }
+							catch (RuntimeException e)
+							{ log.error("Eviction from s" + switchId + " failed", e); }
+						}
+					}
+				});
+
+		this.floodlightProv.addOFSwitchListener(this);
+		this.floodlightProv.addOFMessageListener(OFType.ERROR, this);
+	}
+
+	private SwitchTables getTables(long switchId)
+	{
+		SwitchTables tables = this.switches.get(switchId);
+		if (null == tables)
+		{
+			this.switches.putIfAbsent(switchId, new SwitchTables());
+			tables = this.switches.get(switchId);
+		}
+		return tables;
+	}
+
+	/**
+	 * Count the rules in every switch, and evict rules from switches above
+	 * the high watermark or still full.
+	 */
+	private void poll()
+	{
+		Map<Long,IOFSwitch> all = this.floodlightProv.getAllSwitchMap();
+		this.switches.keySet().retainAll(all.keySet());
+
+		List<IOFSwitch> local = new ArrayList<IOFSwitch>();
+		for (IOFSwitch sw : all.values())
+		{
+			if (this.cluster.isLocal(sw.getId()))
+			{ local.add(sw); }
+		}
+		Map<Long,List<OFStatistics>> replies = SwitchCommands.queryStatistics(
+				local, OFStatisticsType.TABLE, null, this.interval);
+
+		for (Map.Entry<Long,List<OFStatistics>> reply : replies.entrySet())
+		{
+			SwitchTables tables = this.getTables(reply.getKey());
+			this.update(tables, reply.getValue());
+			if (tables.full || !this.hasRoom(reply.getKey()))
+			{ this.pending.add(reply.getKey()); }
+		}
+
+		if (!this.pending.isEmpty())
+		{ this.evictTask.reschedule(0, TimeUnit.SECONDS); }
+	}
+
+	private void update(SwitchTables tables, List<OFStatistics> stats)
+	{
+		Map<Byte,Integer> counts = new HashMap<Byte,Integer>();
+		int total = 0;
+		for (OFStatistics stat : stats)
+		{
+			if (stat instanceof OFTableStatistics)
+			{
+				OFTableStatistics tableStat = (OFTableStatistics)stat;
+				counts.put(tableStat.getTableId(), tableStat.getActiveCount());
+				total += tableStat.getActiveCount();
+			}
+		}
+		tables.activeCounts = counts;
+		tables.activeCount = total;
+
+		// A switch holding more rules than it did when it refused one can
+		// hold at least that many
+		if (tables.learnedCapacity > 0 && total > tables.learnedCapacity)
+		{ tables.learnedCapacity = total; }
+	}
+
+	/**
+	 * Evict rules from a switch down to the low watermark, and tell the
+	 * owners of rules it refused once it has room.
+	 * @param switchId DPID of the switch
+	 */
+	private void evict(long switchId)
+	{
+		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+		SwitchTables tables = this.switches.get(switchId);
+		if (null == sw || null == tables || !this.cluster.isLocal(switchId))
+		{ return; }
+
+		// Count afresh; a switch that just refused a rule holds as many as
+		// it can
+		List<OFStatistics> stats = SwitchCommands.queryStatistics(
+				Collections.singletonList(sw), OFStatisticsType.TABLE, null,
+				this.interval).get(switchId);
+		if (stats != null)
+		{
+			this.update(tables, stats);
+			if (tables.full && tables.activeCount > 0)
+			{ tables.learnedCapacity = tables.activeCount; }
+		}
+
+		int capacity = this.getCapacity(switchId);
+		int excess = (capacity > 0
+				? tables.activeCount - (int)(capacity * this.lowWatermark) : 0);
+		if (tables.full)
+		{ excess = Math.max(excess, MIN_EVICTION); }
+
+		int evicted = 0;
+		for (String stage : EVICTION_ORDER)
+		{
+			if (evicted >= excess)
+			{ break; }
+			if (this.pipeline.hasStage(stage))
+			{
+				evicted += this.evictRules(sw, this.pipeline.getTable(stage),
+						excess - evicted);
+			}
+		}
+		tables.activeCount = Math.max(0, tables.activeCount - evicted);
+		if (evicted > 0)
+		{
+			this.evictedRules.addAndGet(evicted);
+			log.info(String.format("Evicted %d rules from s%d, %d of %d in use",
+					evicted, switchId, tables.activeCount, capacity));
+		}
+
+		// Without room, owners would only have their rules refused again;
+		// the next poll tries once more
+		boolean room = (evicted > 0 || (capacity > 0
+				&& tables.activeCount < capacity * this.highWatermark));
+		if (!room)
+		{
+			log.warn(String.format("s%d is full with no rules left to evict",
+					switchId));
+			return;
+		}
+		tables.full = false;
+
+		Set<Byte> rejected = new HashSet<Byte>(tables.rejectedTables);
+		tables.rejectedTables.removeAll(rejected);
+		for (byte table : rejected)
+		{
+			for (IFlowTableListener listener : this.listeners)
+			{ listener.rulesRejected(switchId, table); }
+		}
+	}
+
+	/**
+	 * Evict the least used rules with a timeout from a table.
+	 * @param sw the switch
+	 * @param table the table
+	 * @param count most rules to evict
+	 * @return the number of rules evicted
+	 */
+	private int evictRules(IOFSwitch sw, byte table, int count)
+	{
+		List<OFStatistics> stats = SwitchCommands.queryFlowStatistics(
+				Collections.singletonList(sw), table, this.interval).get(
+						sw.getId());
+		if (null == stats)
+		{ return 0; }
+
+		List<OFFlowStatisticsReply> candidates =
+				new ArrayList<OFFlowStatisticsReply>();
+		for (OFStatistics stat : stats)
+		{
+			if (!(stat instanceof OFFlowStatisticsReply))
+			{ continue; }
+			OFFlowStatisticsReply rule = (OFFlowStatisticsReply)stat;
+			if (rule.getIdleTimeout() != SwitchCommands.NO_TIMEOUT
+					|| rule.getHardTimeout() != SwitchCommands.NO_TIMEOUT)
+			{ candidates.add(rule); }
+		}
+		Collections.sort(candidates, LEAST_USED);
+
+		int evicted = 0;
+		for (OFFlowStatisticsReply rule : candidates)
+		{
+			if (evicted >= count)
+			{ break; }
+			if (SwitchCommands.removeRule(sw, table, rule.getPriority(),
+					rule.getMatch()))
+			{ evicted++; }
+		}
+		return evicted;
+	}
+
+	private static double getPacketRate(OFFlowStatisticsReply rule)
+	{
+		return (double)rule.getPacketCount()
+				/ Math.max(1, rule.getDurationSeconds());
+	}
+
+	/**
+	 * Handle error messages from switches.
+	 * @param sw switch on which the message was received
+	 * @param msg message from the switch
+	 * @param cntx the Floodlight context in which the message should be handled
+	 * @return indication whether another module should also process the message
+	 */
+	@Override
+	public net.floodlightcontroller.core.IListener.Command receive(
+			IOFSwitch sw, OFMessage msg, FloodlightContext cntx)
+	{
+		if (msg.getType() != OFType.ERROR || !this.cluster.isLocal(sw.getId()))
+		{ return Command.CONTINUE; }
+		OFError error = (OFError)msg;
+		if (error.getErrorType() != OFPET_FLOW_MOD_FAILED)
+		{ return Command.CONTINUE; }
+
+		byte table = getOffendingTable(error);
+		if (OFPFMFC_TABLE_FULL == error.getErrorCode())
+		{ this.tableFull(sw.getId(), table); }
+		else if (OFPFMFC_BAD_TABLE_ID == error.getErrorCode())
+		{
+			log.error(String.format("s%d has no table %d for the pipeline %s",
+					sw.getId(), table & 0xFF, this.pipeline.getStages()));
+		}
+		return Command.CONTINUE;
+	}
+
+	/**
+	 * Get the table a refused flow-mod was for.
+	 * @param error the error reporting the refusal
+	 * @return the table, UNKNOWN_TABLE if the error does not say
+	 */
+	private static byte getOffendingTable(OFError error)
+	{
+		byte[] offending = error.getOffendingMsgBytes();
+		if (null == offending || offending.length <= FLOW_MOD_TABLE_OFFSET
+				|| offending[MESSAGE_TYPE_OFFSET] != OFPT_FLOW_MOD)
+		{ return UNKNOWN_TABLE; }
+		return offending[FLOW_MOD_TABLE_OFFSET];
+	}
+
+	/**
+	 * Record that a switch refused a rule because it was full, and evict
+	 * rules to make room.
+	 * @param switchId DPID of the switch
+	 * @param table the table the rule was for
+	 */
+	private void tableFull(long switchId, byte table)
+	{
+		this.tableFullErrors.incrementAndGet();
+		SwitchTables tables = this.getTables(switchId);
+		tables.rejectedTables.add(table);
+		if (!tables.full)
+		{
+			tables.full = true;
+			log.warn(String.format("s%d refused a rule for table %d: tables full",
+					switchId, table & 0xFF));
+		}
+		this.pending.add(switchId);
+		this.evictTask.reschedule(0, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Get the number of rules a switch held when last polled, over all its
+	 * tables.
+	 * @param switchId DPID of the switch
+	 * @return the number of rules, 0 if the switch has not been polled yet
+	 */
+	@Override
+	public int getActiveCount(long switchId)
+	{
+		SwitchTables tables = this.switches.get(switchId);
+		return (null == tables ? 0 : tables.activeCount);
+	}
+
+	/**
+	 * Get the number of rules one of a switch's tables held when last
+	 * polled.
+	 * @param switchId DPID of the switch
+	 * @param table the table
+	 * @return the number of rules, 0 if the table has not been polled yet
+	 */
+	@Override
+	public int getActiveCount(long switchId, byte table)
+	{
+		SwitchTables tables = this.switches.get(switchId);
+		Integer count = (null == tables ? null
+				: tables.activeCounts.get(table));
+		return (null == count ? 0 : count);
+	}
+
+	/**
+	 * Get the number of rules a switch can hold, over all its tables.
+	 * @param switchId DPID of the switch
+	 * @return the capacity, 0 if it is unknown
+	 */
+	@Override
+	public int getCapacity(long switchId)
+	{
+		if (this.capacity > 0)
+		{ return this.capacity; }
+		SwitchTables tables = this.switches.get(switchId);
+		return (null == tables ? 0 : tables.learnedCapacity);
+	}
+
+	/**
+	 * Check whether a switch has room for rules that are not needed to
+	 * forward packets, such as rules that only improve a path.
+	 * @param switchId DPID of the switch
+	 * @return false if the switch is above its high watermark or refused
+	 *         rules since its last eviction, otherwise true
+	 */
+	@Override
+	public boolean hasRoom(long switchId)
+	{
+		SwitchTables tables = this.switches.get(switchId);
+		if (null == tables)
+		{ return true; }
+		if (tables.full)
+		{ return false; }
+		int capacity = this.getCapacity(switchId);
+		return (0 == capacity
+				|| tables.activeCount < capacity * this.highWatermark);
+	}
+
+	/**
+	 * Get the number of flow-mods switches refused because a table was full.
+	 */
+	@Override
+	public long getTableFullErrors()
+	{ return this.tableFullErrors.get(); }
+
+	/**
+	 * Get the number of rules evicted to make room.
+	 */
+	@Override
+	public long getEvictedRules()
+	{ return this.evictedRules.get(); }
+
+	/**
+	 * Add a listener for switches that refused rules.
+	 * @param listener the listener
+	 */
+	@Override
+	public void addListener(IFlowTableListener listener)
+	{ this.listeners.add(listener); }
+
+    /**
+     * Event handler called when a switch joins the network.
+     * @param DPID for the switch
+     */
+	@Override
+	public void switchAdded(long switchId)
+	{
+		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+		if (null == sw || !this.cluster.isLocal(switchId))
+		{ return; }
+		this.getTables(switchId);
+
+		// The features reply says how many tables the switch has
+		int tables = sw.getTables() & 0xFF;
+		if (tables < this.pipeline.getStages().size())
+		{
+			log.error(String.format(
+					"s%d has %d tables, but the pipeline %s needs %d",
+					switchId, tables, this.pipeline.getStages(),
+					this.pipeline.getStages().size()));
+		}
+	}
+
+	/**
+	 * Event handler called when a switch leaves the network.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchRemoved(long switchId)
+	{
+		this.switches.remove(switchId);
+		this.pending.remove(switchId);
+	}
+
+	/**
+	 * Event handler called when the controller becomes the master for a switch.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchActivated(long switchId)
+	{ this.switchAdded(switchId); }
+
+	/**
+	 * Event handler called when a port on a switch goes up or down, or is
+	 * added or removed.
+	 * @param DPID for the switch
+	 * @param port the port on the switch whose status changed
+	 * @param type the type of status change (up, down, add, remove)
+	 */
+	@Override
+	public void switchPortChanged(long switchId, ImmutablePort port,
+			PortChangeType type)
+	{ /* Nothing we need to do */ }
+
+	/**
+	 * Event handler called when some attribute of a switch changes.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchChanged(long switchId)
+	{ /* Nothing we need to do */ }
+
+	/**
+	 * Gets a name for this module.
+	 * @return name for this module
+	 */
+	@Override
+	public String getName()
+	{ return MODULE_NAME; }
+
+	/**
+	 * Check if events must be passed to another module before this module is
+	 * notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPrereq(OFType type, String name)
+	{ return false; }
+
+	/**
+	 * Check if events must be passed to another module after this module has
+	 * been notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPostreq(OFType type, String name)
+	{ return false; }
+
+	/**
+     * Tell the module system which services we provide.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>> getModuleServices()
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IFlowTableService.class);
+		return services;
+	}
+
+	/**
+     * Tell the module system which services we implement.
+     */
+	@Override
+	public Map<Class<? extends IFloodlightService>, IFloodlightService>
+			getServiceImpls()
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> services =
+				new HashMap<Class<? extends IFloodlightService>,
+						IFloodlightService>();
+		// We are the class that implements the service
+		services.put(IFlowTableService.class, this);
+		return services;
+	}
+
+	/**
+     * Tell the module system which modules we depend on.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>>
+			getModuleDependencies()
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IFloodlightProviderService.class);
+		services.add(IThreadPoolService.class);
+		services.add(IPipelineService.class);
+		return services;
+	}
+}
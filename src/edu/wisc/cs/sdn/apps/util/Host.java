@@ -1,92 +1,177 @@
 package edu.wisc.cs.sdn.apps.util;
 
-import net.floodlightcontroller.core.IFloodlightProviderService;
-import net.floodlightcontroller.core.IOFSwitch;
+import java.util.Arrays;
+
 import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.SwitchPort;
 
+/**
+ * Snapshot of what Floodlight's device manager knew about a host at one
+ * point in time. A host's addresses and attachment point are read once, when
+ * the snapshot is taken, so the getters are cheap; a new snapshot is taken
+ * when the device manager reports a change.
+ */
 public class Host
 {
-	/* Meta-data about the host from Floodlight's device manager */
-	private IDevice device;
-	
-	/* Floodlight module which is needed to lookup switches by DPID */
-	private IFloodlightProviderService floodlightProv;
-	
+	/* The host's MAC address */
+	private final long macAddress;
+
+	/* The host's IPv4 addresses; never null, possibly empty */
+	private final Integer[] ipv4Addresses;
+
+	/* DPID of the switch to which the host is connected, null if unknown */
+	private final Long switchId;
+
+	/* Port on the switch to which the host is connected, null if unknown */
+	private final Integer port;
+
 	/**
 	 * Create a host.
 	 * @param device meta-data about the host from Floodlight's device manager
-	 * @param floodlightProv Floodlight module to lookup switches by DPID
 	 */
-	public Host(IDevice device, IFloodlightProviderService floodlightProv)
+	public Host(IDevice device)
 	{
-		this.device = device;
-		this.floodlightProv = floodlightProv;
+		this.macAddress = device.getMACAddress();
+		this.ipv4Addresses = withoutNulls(device.getIPv4Addresses());
+
+		SwitchPort[] attachmentPoints = device.getAttachmentPoints();
+		if (null == attachmentPoints || 0 == attachmentPoints.length)
+		{
+			this.switchId = null;
+			this.port = null;
+		}
+		else
+		{
+			this.switchId = attachmentPoints[0].getSwitchDPID();
+			this.port = attachmentPoints[0].getPort();
+		}
 	}
-	
+
+	/**
+	 * Create a host from what is known about it elsewhere, e.g., by another
+	 * controller.
+	 * @param macAddress the host's MAC address
+	 * @param ipv4Addresses the host's IPv4 addresses; may be null
+	 * @param switchId DPID of the switch to which the host is connected,
+	 *        null if unknown
+	 * @param port port on the switch to which the host is connected, null if
+	 *        unknown
+	 */
+	public Host(long macAddress, Integer[] ipv4Addresses, Long switchId,
+			Integer port)
+	{
+		this.macAddress = macAddress;
+		this.ipv4Addresses = withoutNulls(ipv4Addresses);
+		this.switchId = switchId;
+		this.port = (null == switchId ? null : port);
+	}
+
+	private static Integer[] withoutNulls(Integer[] ips)
+	{
+		int count = 0;
+		if (ips != null)
+		{
+			for (Integer ip : ips)
+			{
+				if (ip != null)
+				{ count++; }
+			}
+		}
+		Integer[] result = new Integer[count];
+		if (count > 0)
+		{
+			count = 0;
+			for (Integer ip : ips)
+			{
+				if (ip != null)
+				{ result[count++] = ip; }
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * Get the host's name (assuming a host's name corresponds to its MAC address).
 	 * @return the host's name
 	 */
 	public String getName()
 	{ return String.format("h%d",this.getMACAddress()); }
-	
+
 	/**
 	 * Get the host's MAC address.
 	 * @return the host's MAC address
 	 */
 	public long getMACAddress()
-	{ return this.device.getMACAddress(); }
-	
+	{ return this.macAddress; }
+
 	/**
 	 * Get the host's IPv4 address.
 	 * @return the host's IPv4 address, null if unknown
 	 */
 	public Integer getIPv4Address()
 	{
-		if (null == this.device.getIPv4Addresses()
-				|| 0 == this.device.getIPv4Addresses().length)
+		if (0 == this.ipv4Addresses.length)
 		{ return null; }
-		return this.device.getIPv4Addresses()[0];
+		return this.ipv4Addresses[0];
 	}
-	
+
 	/**
-	 * Get the switch to which the host is connected.
-	 * @return the switch to which the host is connected, null if unknown
+	 * Get all of the host's IPv4 addresses.
+	 * @return the host's IPv4 addresses; empty if none are known
 	 */
-	public IOFSwitch getSwitch()
-	{
-		if (null == this.device.getAttachmentPoints()
-				|| 0 == this.device.getAttachmentPoints().length)
-		{ return null; }
-		long switchDPID = this.device.getAttachmentPoints()[0].getSwitchDPID();
-		return this.floodlightProv.getSwitch(switchDPID);
-	}
-	
+	public Integer[] getIPv4Addresses()
+	{ return this.ipv4Addresses.clone(); }
+
+	/**
+	 * Get the DPID of the switch to which the host is connected.
+	 * @return the switch's DPID, null if unknown
+	 */
+	public Long getSwitchId()
+	{ return this.switchId; }
+
 	/**
 	 * Get the port on the switch to which the host is connected.
 	 * @return the port to which the host is connected, null if unknown
 	 */
 	public Integer getPort()
-	{
-		if (null == this.device.getAttachmentPoints()
-				|| 0 == this.device.getAttachmentPoints().length)
-		{ return null; }
-		return this.device.getAttachmentPoints()[0].getPort();
-	}
-	
+	{ return this.port; }
+
 	/**
-	 * Checks whether the host is attached to some switch.
+	 * Checks whether the host is attached to some switch. The switch may not
+	 * be connected to the controller.
 	 * @return true if the host is attached to some switch, otherwise false
 	 */
 	public boolean isAttachedToSwitch()
-	{ return (null != this.getSwitch()); }
-	
+	{ return (null != this.switchId); }
+
 	@Override
 	public boolean equals(Object obj)
 	{
 		if (!(obj instanceof Host))
 		{ return false; }
 		Host other = (Host)obj;
-		return other.device.equals(this.device);
+		return (other.macAddress == this.macAddress
+				&& Arrays.equals(other.ipv4Addresses, this.ipv4Addresses)
+				&& (null == this.switchId ? null == other.switchId
+						: this.switchId.equals(other.switchId))
+				&& (null == this.port ? null == other.port
+						: this.port.equals(other.port)));
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int hash = (int)(this.macAddress ^ (this.macAddress >>> 32));
+		hash = 31 * hash + Arrays.hashCode(this.ipv4Addresses);
+		hash = 31 * hash + (null == this.switchId ? 0 : this.switchId.hashCode());
+		hash = 31 * hash + (null == this.port ? 0 : this.port.hashCode());
+		return hash;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s %s s%s:%s", this.getName(),
+				Arrays.toString(this.ipv4Addresses), this.switchId, this.port);
 	}
-}
\ No newline at end of file
+}
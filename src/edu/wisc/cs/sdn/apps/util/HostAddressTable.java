@@ -0,0 +1,204 @@
+package edu.wisc.cs.sdn.apps.util;
+
+/**
+ * Maps host IPv4 addresses to the host's MAC address and attachment point.
+ * Entries live in flat arrays using open addressing with linear probing, so
+ * lookups neither box the key nor allocate.
+ */
+public class HostAddressTable
+{
+	/** Returned by lookups when the IP address is unknown. */
+	public static final long UNKNOWN = -1;
+
+	// Key marking an empty slot; no host is addressed as 0.0.0.0
+	private static final int EMPTY = 0;
+
+	private static final int MIN_CAPACITY = 16;
+
+	// Slots for IP addresses and the data stored with each address
+	private int[] keys;
+	private long[] macs;
+	private long[] switches;
+	private int[] ports;
+
+	// Number of occupied slots
+	private int size;
+
+	/**
+	 * Create an empty table.
+	 */
+	public HostAddressTable()
+	{ this.allocate(MIN_CAPACITY); }
+
+	/**
+	 * Get the MAC address of the host with an IP address.
+	 * @param ip the host's IP address
+	 * @return the MAC address, UNKNOWN if the IP address is unknown
+	 */
+	public synchronized long getMACAddress(int ip)
+	{
+		int slot = this.find(ip);
+		return (slot < 0 ? UNKNOWN : this.macs[slot]);
+	}
+
+	/**
+	 * Get the DPID of the switch to which the host with an IP address is
+	 * attached.
+	 * @param ip the host's IP address
+	 * @return the DPID, UNKNOWN if the IP address or attachment is unknown
+	 */
+	public synchronized long getSwitch(int ip)
+	{
+		int slot = this.find(ip);
+		return (slot < 0 ? UNKNOWN : this.switches[slot]);
+	}
+
+	/**
+	 * Get the switch port to which the host with an IP address is attached.
+	 * @param ip the host's IP address
+	 * @return the port, UNKNOWN if the IP address or attachment is unknown
+	 */
+	public synchronized long getPort(int ip)
+	{
+		int slot = this.find(ip);
+		return (slot < 0 || UNKNOWN == this.switches[slot]
+				? UNKNOWN : this.ports[slot]);
+	}
+
+	/**
+	 * Record the host with an IP address, replacing any existing entry.
+	 * @param ip the host's IP address; must be non-zero
+	 * @param mac the host's MAC address
+	 * @param switchDPID DPID of the switch to which the host is attached,
+	 *        UNKNOWN if the host is not attached
+	 * @param port port to which the host is attached
+	 */
+	public synchronized void put(int ip, long mac, long switchDPID, int port)
+	{
+		if (EMPTY == ip)
+		{ return; }
+
+		int slot = this.find(ip);
+		if (slot < 0)
+		{
+			if ((this.size + 1) * 4 > this.keys.length * 3)
+			{ this.allocate(this.keys.length << 1); }
+			slot = this.insertSlot(ip);
+			this.size++;
+		}
+		this.keys[slot] = ip;
+		this.macs[slot] = mac;
+		this.switches[slot] = switchDPID;
+		this.ports[slot] = port;
+	}
+
+	/**
+	 * Remove an IP address, but only if it still belongs to a particular host.
+	 * @param ip the IP address
+	 * @param mac MAC address of the host that had the IP address
+	 * @return true if the entry was removed, otherwise false
+	 */
+	public synchronized boolean remove(int ip, long mac)
+	{
+		int slot = this.find(ip);
+		if (slot < 0 || this.macs[slot] != mac)
+		{ return false; }
+		this.delete(slot);
+		return true;
+	}
+
+	/**
+	 * Get the number of IP addresses in the table.
+	 */
+	public synchronized int size()
+	{ return this.size; }
+
+	private int find(int ip)
+	{
+		int mask = this.keys.length - 1;
+		int slot = hash(ip) & mask;
+		while (this.keys[slot] != EMPTY)
+		{
+			if (this.keys[slot] == ip)
+			{ return slot; }
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int insertSlot(int ip)
+	{
+		int mask = this.keys.length - 1;
+		int slot = hash(ip) & mask;
+		while (this.keys[slot] != EMPTY)
+		{ slot = (slot + 1) & mask; }
+		return slot;
+	}
+
+	/**
+	 * Empty a slot, shifting back later entries in the same probe sequence so
+	 * lookups never stop early at the hole.
+	 */
+	private void delete(int slot)
+	{
+		int mask = this.keys.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (this.keys[next] != EMPTY)
+		{
+			int home = hash(this.keys[next]) & mask;
+			boolean movable = (hole <= next)
+					? (home <= hole || home > next)
+					: (home <= hole && home > next);
+			if (movable)
+			{
+				this.keys[hole] = this.keys[next];
+				this.macs[hole] = this.macs[next];
+				this.switches[hole] = this.switches[next];
+				this.ports[hole] = this.ports[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.keys[hole] = EMPTY;
+		this.size--;
+	}
+
+	private void allocate(int capacity)
+	{
+		int[] oldKeys = this.keys;
+		long[] oldMacs = this.macs;
+		long[] oldSwitches = this.switches;
+		int[] oldPorts = this.ports;
+
+		this.keys = new int[capacity];
+		this.macs = new long[capacity];
+		this.switches = new long[capacity];
+		this.ports = new int[capacity];
+
+		if (null == oldKeys)
+		{ return; }
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldKeys[i] != EMPTY)
+			{
+				int slot = this.insertSlot(oldKeys[i]);
+				this.keys[slot] = oldKeys[i];
+				this.macs[slot] = oldMacs[i];
+				this.switches[slot] = oldSwitches[i];
+				this.ports[slot] = oldPorts[i];
+			}
+		}
+	}
+
+	private static int hash(int key)
+	{
+		// Finalizer from MurmurHash3, so hosts in one subnet spread out
+		key ^= key >>> 16;
+		key *= 0x85ebca6b;
+		key ^= key >>> 13;
+		key *= 0xc2b2ae35;
+		key ^= key >>> 16;
+		return key;
+	}
+}
@@ -0,0 +1,392 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.packet.IPv4;
+
+public class HostIndex implements IFloodlightModule, IDeviceListener,
+		IHostIndexService, IControllerClusterListener
+{
+	public static final String MODULE_NAME = HostIndex.class.getSimpleName();
+
+	// Interface to the logging system
+    private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+
+    // Interface to device manager service
+    private IDeviceService deviceProv;
+
+    // Interface to the controllers sharing the switches
+    private IControllerClusterService cluster;
+
+    // IP address -> MAC address and attachment point
+    private HostAddressTable addresses;
+
+    // MAC address -> IP addresses currently in the table for that host
+    private Map<Long,Integer[]> indexedIPs;
+
+    // Virtual IP address -> MAC address answered for it
+    private Map<Integer,Long> virtualHosts;
+
+    // Modules notified of changes to the index
+    private List<IHostIndexListener> listeners;
+
+	/**
+     * Loads dependencies and initializes data structures.
+     */
+	@Override
+	public void init(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Initializing %s...", MODULE_NAME));
+		this.deviceProv = context.getServiceImpl(IDeviceService.class);
+		this.cluster = ControllerCluster.getService(context);
+		this.addresses = new HostAddressTable();
+		this.indexedIPs = new ConcurrentHashMap<Long,Integer[]>();
+		this.virtualHosts = new ConcurrentHashMap<Integer,Long>();
+		this.listeners = new CopyOnWriteArrayList<IHostIndexListener>();
+	}
+
+	/**
+     * Subscribes to events and performs other startup tasks.
+     */
+	@Override
+	public void startUp(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Starting %s...", MODULE_NAME));
+		this.deviceProv.addListener(this);
+
+		// Index any hosts the device manager learned before we subscribed
+		for (IDevice device : this.deviceProv.getAllDevices())
+		{ this.updateHost(new Host(device)); }
+
+		// Index hosts learned by the controllers owning other switches
+		this.cluster.addListener(this);
+	}
+
+	/**
+	 * Get the MAC address of the host with an IP address.
+	 * @param ip the host's IP address
+	 * @return the MAC address, UNKNOWN if no known host has the IP address
+	 */
+	@Override
+	public long getMACAddress(int ip)
+	{ return this.addresses.getMACAddress(ip); }
+
+	/**
+	 * Get the DPID of the switch to which the host with an IP address is
+	 * attached.
+	 * @param ip the host's IP address
+	 * @return the DPID, UNKNOWN if the host is unknown or not attached
+	 */
+	@Override
+	public long getSwitch(int ip)
+	{ return this.addresses.getSwitch(ip); }
+
+	/**
+	 * Get the switch port to which the host with an IP address is attached.
+	 * @param ip the host's IP address
+	 * @return the port, UNKNOWN if the host is unknown or not attached
+	 */
+	@Override
+	public long getPort(int ip)
+	{ return this.addresses.getPort(ip); }
+
+	/**
+	 * Get every IP address in the index, including virtual hosts.
+	 * @return a snapshot of the IP addresses
+	 */
+	@Override
+	public Collection<Integer> getIPAddresses()
+	{
+		Set<Integer> ips = new HashSet<Integer>(this.virtualHosts.keySet());
+		for (Integer[] hostIPs : this.indexedIPs.values())
+		{
+			for (Integer ip : hostIPs)
+			{
+				if (ip != null)
+				{ ips.add(ip); }
+			}
+		}
+		return ips;
+	}
+
+	/**
+	 * Record an IP address which is answered for by the controller rather
+	 * than by an attached host, e.g., a load balancer's virtual IP.
+	 * @param ip the virtual IP address
+	 * @param mac the MAC address to answer with
+	 */
+	@Override
+	public synchronized void addVirtualHost(int ip, long mac)
+	{
+		Long oldMAC = this.virtualHosts.put(ip, mac);
+		if (oldMAC != null && oldMAC == mac)
+		{ return; }
+		this.addresses.put(ip, mac, HostAddressTable.UNKNOWN, 0);
+		for (IHostIndexListener listener : this.listeners)
+		{ listener.hostUpdated(ip); }
+	}
+
+	/**
+	 * Remove a virtual host.
+	 * @param ip the virtual IP address
+	 * @return true if the virtual host was removed, false if it was unknown
+	 */
+	@Override
+	public synchronized boolean removeVirtualHost(int ip)
+	{
+		Long mac = this.virtualHosts.remove(ip);
+		if (null == mac)
+		{ return false; }
+		if (this.addresses.remove(ip, mac))
+		{ this.notifyRemoved(ip); }
+		return true;
+	}
+
+	/**
+	 * Subscribe to changes in the index.
+	 * @param listener notified of each change
+	 */
+	@Override
+	public void addListener(IHostIndexListener listener)
+	{ this.listeners.add(listener); }
+
+	/**
+	 * Bring the index entries for a host up to date.
+	 * @param host the host's current snapshot
+	 */
+	private synchronized void updateHost(Host host)
+	{
+		long mac = host.getMACAddress();
+		Integer[] ips = host.getIPv4Addresses();
+
+		long switchDPID = HostAddressTable.UNKNOWN;
+		int port = 0;
+		if (host.isAttachedToSwitch())
+		{
+			switchDPID = host.getSwitchId();
+			port = host.getPort();
+		}
+
+		// Drop addresses the host no longer has
+		Integer[] oldIPs = this.indexedIPs.get(mac);
+		if (oldIPs != null)
+		{
+			for (Integer oldIP : oldIPs)
+			{
+				if (!contains(ips, oldIP) && this.addresses.remove(oldIP, mac))
+				{ this.notifyRemoved(oldIP); }
+			}
+		}
+
+		for (Integer ip : ips)
+		{
+			// Virtual hosts are not claimed by devices
+			if (null == ip || this.virtualHosts.containsKey(ip))
+			{ continue; }
+			boolean changed = (this.addresses.getMACAddress(ip) != mac
+					|| this.addresses.getSwitch(ip) != switchDPID
+					|| (switchDPID != HostAddressTable.UNKNOWN
+						&& this.addresses.getPort(ip) != port));
+			this.addresses.put(ip, mac, switchDPID, port);
+			if (!changed)
+			{ continue; }
+			log.debug(String.format("Indexed %s -> s%d:%d",
+					IPv4.fromIPv4Address(ip), switchDPID, port));
+			for (IHostIndexListener listener : this.listeners)
+			{ listener.hostUpdated(ip); }
+		}
+		this.indexedIPs.put(mac, ips);
+	}
+
+	/**
+	 * Remove the index entries for a host.
+	 * @param mac the host's MAC address
+	 */
+	private synchronized void removeHost(long mac)
+	{
+		Integer[] oldIPs = this.indexedIPs.remove(mac);
+		if (null == oldIPs)
+		{ return; }
+		for (Integer oldIP : oldIPs)
+		{
+			if (oldIP != null && this.addresses.remove(oldIP, mac))
+			{ this.notifyRemoved(oldIP); }
+		}
+	}
+
+	private void notifyRemoved(int ip)
+	{
+		for (IHostIndexListener listener : this.listeners)
+		{ listener.hostRemoved(ip); }
+	}
+
+	private static boolean contains(Integer[] ips, Integer ip)
+	{
+		for (Integer candidate : ips)
+		{
+			if (ip.equals(candidate))
+			{ return true; }
+		}
+		return false;
+	}
+
+    /**
+     * Event handler called when a host joins the network.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceAdded(IDevice device)
+	{ this.updateHost(new Host(device)); }
+
+	/**
+     * Event handler called when a host is no longer attached to a switch.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceRemoved(IDevice device)
+	{ this.removeHost(device.getMACAddress()); }
+
+	/**
+     * Event handler called when a host moves within the network.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceMoved(IDevice device)
+	{ this.updateHost(new Host(device)); }
+
+	/**
+     * Event handler called when the IP address of a host changes.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceIPV4AddrChanged(IDevice device)
+	{ this.updateHost(new Host(device)); }
+
+	/**
+	 * Event handler called when another controller reports a host.
+	 * @param host the host's current snapshot
+	 */
+	@Override
+	public void remoteHostUpdated(Host host)
+	{ this.updateHost(host); }
+
+	/**
+	 * Event handler called when another controller no longer reports a host.
+	 * @param host the host's last snapshot
+	 */
+	@Override
+	public void remoteHostRemoved(Host host)
+	{
+		// The host may still be known to our own device manager
+		if (!this.deviceProv.queryDevices(host.getMACAddress(), null, null,
+				null, null).hasNext())
+		{ this.removeHost(host.getMACAddress()); }
+	}
+
+	/**
+	 * Event handler called when the links reported by other controllers
+	 * changed.
+	 */
+	@Override
+	public void remoteLinksChanged()
+	{ /* Nothing we need to do, since the index holds no links */ }
+
+	/**
+	 * Event handler called when switches may have changed owner.
+	 */
+	@Override
+	public void ownershipChanged()
+	{ /* Nothing we need to do, since hosts are indexed on every controller */ }
+
+	/**
+     * Event handler called when the VLAN of a host changes.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceVlanChanged(IDevice device)
+	{ /* Nothing we need to do, since we're not using VLANs */ }
+
+	/**
+     * Tell the module system which services we provide.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>> getModuleServices()
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+					new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IHostIndexService.class);
+		return services;
+	}
+
+	/**
+     * Tell the module system which services we implement.
+     */
+	@Override
+	public Map<Class<? extends IFloodlightService>, IFloodlightService>
+			getServiceImpls()
+	{
+        Map<Class<? extends IFloodlightService>, IFloodlightService> services =
+        			new HashMap<Class<? extends IFloodlightService>,
+        					IFloodlightService>();
+        // We are the class that implements the service
+        services.put(IHostIndexService.class, this);
+        return services;
+	}
+
+	/**
+     * Tell the module system which modules we depend on.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>>
+			getModuleDependencies()
+	{
+		Collection<Class<? extends IFloodlightService >> modules =
+	            new ArrayList<Class<? extends IFloodlightService>>();
+		modules.add(IDeviceService.class);
+        return modules;
+	}
+
+	/**
+	 * Gets a name for this module.
+	 * @return name for this module
+	 */
+	@Override
+	public String getName()
+	{ return MODULE_NAME; }
+
+	/**
+	 * Check if events must be passed to another module before this module is
+	 * notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPrereq(String type, String name)
+	{ return false; }
+
+	/**
+	 * Check if events must be passed to another module after this module has
+	 * been notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPostreq(String type, String name)
+	{ return false; }
+}
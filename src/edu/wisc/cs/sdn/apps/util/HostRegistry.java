@@ -0,0 +1,133 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Known hosts, indexed by MAC address, by IP address and by the switch to
+ * which they are attached, so each kind of lookup is O(1). Hosts are
+ * immutable snapshots; when a host changes, its new snapshot replaces the
+ * old one in every index.
+ */
+public class HostRegistry
+{
+	// MAC address -> host
+	private Map<Long,Host> byMAC;
+
+	// IP address -> host
+	private Map<Integer,Host> byIP;
+
+	// Switch DPID -> hosts attached to the switch
+	private Map<Long,Set<Host>> bySwitch;
+
+	/**
+	 * Create an empty registry.
+	 */
+	public HostRegistry()
+	{
+		this.byMAC = new HashMap<Long,Host>();
+		this.byIP = new HashMap<Integer,Host>();
+		this.bySwitch = new HashMap<Long,Set<Host>>();
+	}
+
+	/**
+	 * Record a host, replacing any earlier snapshot of the host with the same
+	 * MAC address.
+	 * @param host the host
+	 * @return the snapshot that was replaced, null if the host is new
+	 */
+	public synchronized Host put(Host host)
+	{
+		Host old = this.remove(host.getMACAddress());
+		this.byMAC.put(host.getMACAddress(), host);
+		for (Integer ip : host.getIPv4Addresses())
+		{ this.byIP.put(ip, host); }
+		if (host.isAttachedToSwitch())
+		{
+			Set<Host> attached = this.bySwitch.get(host.getSwitchId());
+			if (null == attached)
+			{
+				attached = new LinkedHashSet<Host>();
+				this.bySwitch.put(host.getSwitchId(), attached);
+			}
+			attached.add(host);
+		}
+		return old;
+	}
+
+	/**
+	 * Forget a host.
+	 * @param macAddress the host's MAC address
+	 * @return the host's last snapshot, null if the host was unknown
+	 */
+	public synchronized Host remove(long macAddress)
+	{
+		Host host = this.byMAC.remove(macAddress);
+		if (null == host)
+		{ return null; }
+		for (Integer ip : host.getIPv4Addresses())
+		{
+			// Another host may have taken the address since
+			if (this.byIP.get(ip) == host)
+			{ this.byIP.remove(ip); }
+		}
+		if (host.isAttachedToSwitch())
+		{
+			Set<Host> attached = this.bySwitch.get(host.getSwitchId());
+			if (attached != null)
+			{
+				attached.remove(host);
+				if (attached.isEmpty())
+				{ this.bySwitch.remove(host.getSwitchId()); }
+			}
+		}
+		return host;
+	}
+
+	/**
+	 * Get a host by its MAC address.
+	 * @param macAddress the host's MAC address
+	 * @return the host, null if unknown
+	 */
+	public synchronized Host getByMAC(long macAddress)
+	{ return this.byMAC.get(macAddress); }
+
+	/**
+	 * Get the host with an IP address.
+	 * @param ip the IP address
+	 * @return the host, null if no known host has the IP address
+	 */
+	public synchronized Host getByIP(int ip)
+	{ return this.byIP.get(ip); }
+
+	/**
+	 * Get the hosts attached to a switch.
+	 * @param switchId DPID of the switch
+	 * @return a snapshot of the hosts; empty if there are none
+	 */
+	public synchronized Collection<Host> getBySwitch(long switchId)
+	{
+		Set<Host> attached = this.bySwitch.get(switchId);
+		if (null == attached)
+		{ return Collections.emptyList(); }
+		return new ArrayList<Host>(attached);
+	}
+
+	/**
+	 * Get all known hosts.
+	 * @return a snapshot of the hosts
+	 */
+	public synchronized Collection<Host> getHosts()
+	{ return new ArrayList<Host>(this.byMAC.values()); }
+
+	/**
+	 * Get the number of known hosts.
+	 */
+	public synchronized int size()
+	{ return this.byMAC.size(); }
+}
@@ -0,0 +1,34 @@
+package edu.wisc.cs.sdn.apps.util;
+
+/**
+ * Receives changes to the state shared by the controllers in a cluster.
+ * Hosts and links reported here were learned by other controllers; a
+ * module still learns about its own controller's hosts and links from the
+ * device manager and link discovery.
+ */
+public interface IControllerClusterListener
+{
+	/**
+	 * Called when another controller reports a new or changed host.
+	 * @param host the host's current snapshot
+	 */
+	public void remoteHostUpdated(Host host);
+
+	/**
+	 * Called when another controller no longer reports a host, because the
+	 * host left or the controller went away.
+	 * @param host the host's last snapshot
+	 */
+	public void remoteHostRemoved(Host host);
+
+	/**
+	 * Called when the links reported by other controllers changed.
+	 */
+	public void remoteLinksChanged();
+
+	/**
+	 * Called when controllers joined or left the cluster, so some switches
+	 * may have changed owner.
+	 */
+	public void ownershipChanged();
+}
@@ -0,0 +1,43 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Collection;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.routing.Link;
+
+public interface IControllerClusterService extends IFloodlightService
+{
+	/**
+	 * Get the name of this controller in the cluster.
+	 * @return the name, null if the controller is not part of a cluster
+	 */
+	public String getControllerId();
+
+	/**
+	 * Get the controller which owns a switch, and alone installs rules in it.
+	 * @param switchId DPID of the switch
+	 * @return the controller's name, null if the controller is not part of a
+	 *         cluster
+	 */
+	public String getOwner(long switchId);
+
+	/**
+	 * Check whether this controller owns a switch. Every switch is owned
+	 * when the controller is not part of a cluster.
+	 * @param switchId DPID of the switch
+	 * @return true if this controller owns the switch, otherwise false
+	 */
+	public boolean isLocal(long switchId);
+
+	/**
+	 * Get the links between switches reported by other controllers.
+	 * @return a snapshot of the links
+	 */
+	public Collection<Link> getRemoteLinks();
+
+	/**
+	 * Subscribe to changes in the shared state.
+	 * @param listener notified of each change
+	 */
+	public void addListener(IControllerClusterListener listener);
+}
@@ -0,0 +1,17 @@
+package edu.wisc.cs.sdn.apps.util;
+
+/**
+ * Notified by {@link IFlowTableService} when a switch refused rules because
+ * its flow tables were full.
+ */
+public interface IFlowTableListener
+{
+	/**
+	 * Called once rules were evicted to make room in a switch that refused
+	 * rules for a table; rules the owner of the table needs must be
+	 * installed again.
+	 * @param switchId DPID of the switch
+	 * @param table the table whose rules were refused
+	 */
+	public void rulesRejected(long switchId, byte table);
+}
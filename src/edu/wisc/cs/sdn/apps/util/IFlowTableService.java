@@ -0,0 +1,59 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+/**
+ * Tracks how many rules each switch holds and how many it can hold, and
+ * evicts expendable rules when a switch fills up.
+ */
+public interface IFlowTableService extends IFloodlightService
+{
+	/**
+	 * Get the number of rules a switch held when last polled, over all its
+	 * tables.
+	 * @param switchId DPID of the switch
+	 * @return the number of rules, 0 if the switch has not been polled yet
+	 */
+	public int getActiveCount(long switchId);
+
+	/**
+	 * Get the number of rules one of a switch's tables held when last
+	 * polled.
+	 * @param switchId DPID of the switch
+	 * @param table the table
+	 * @return the number of rules, 0 if the table has not been polled yet
+	 */
+	public int getActiveCount(long switchId, byte table);
+
+	/**
+	 * Get the number of rules a switch can hold, over all its tables.
+	 * @param switchId DPID of the switch
+	 * @return the capacity, 0 if it is unknown
+	 */
+	public int getCapacity(long switchId);
+
+	/**
+	 * Check whether a switch has room for rules that are not needed to
+	 * forward packets, such as rules that only improve a path.
+	 * @param switchId DPID of the switch
+	 * @return false if the switch is above its high watermark or refused
+	 *         rules since its last eviction, otherwise true
+	 */
+	public boolean hasRoom(long switchId);
+
+	/**
+	 * Get the number of flow-mods switches refused because a table was full.
+	 */
+	public long getTableFullErrors();
+
+	/**
+	 * Get the number of rules evicted to make room.
+	 */
+	public long getEvictedRules();
+
+	/**
+	 * Add a listener for switches that refused rules.
+	 * @param listener the listener
+	 */
+	public void addListener(IFlowTableListener listener);
+}
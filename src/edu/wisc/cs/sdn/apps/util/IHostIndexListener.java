@@ -0,0 +1,21 @@
+package edu.wisc.cs.sdn.apps.util;
+
+/**
+ * Notified by {@link IHostIndexService} when the index entry for an IP
+ * address changes.
+ */
+public interface IHostIndexListener
+{
+	/**
+	 * Called when an IP address is added to the index, or its MAC address or
+	 * attachment point changes.
+	 * @param ip the IP address
+	 */
+	public void hostUpdated(int ip);
+
+	/**
+	 * Called when an IP address is removed from the index.
+	 * @param ip the IP address
+	 */
+	public void hostRemoved(int ip);
+}
@@ -0,0 +1,62 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Collection;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+public interface IHostIndexService extends IFloodlightService
+{
+	/** Returned by lookups when the IP address is unknown. */
+	public static final long UNKNOWN = HostAddressTable.UNKNOWN;
+
+	/**
+	 * Get the MAC address of the host with an IP address.
+	 * @param ip the host's IP address
+	 * @return the MAC address, UNKNOWN if no known host has the IP address
+	 */
+	public long getMACAddress(int ip);
+
+	/**
+	 * Get the DPID of the switch to which the host with an IP address is
+	 * attached.
+	 * @param ip the host's IP address
+	 * @return the DPID, UNKNOWN if the host is unknown or not attached
+	 */
+	public long getSwitch(int ip);
+
+	/**
+	 * Get the switch port to which the host with an IP address is attached.
+	 * @param ip the host's IP address
+	 * @return the port, UNKNOWN if the host is unknown or not attached
+	 */
+	public long getPort(int ip);
+
+	/**
+	 * Get every IP address in the index, including virtual hosts.
+	 * @return a snapshot of the IP addresses
+	 */
+	public Collection<Integer> getIPAddresses();
+
+	/**
+	 * Record an IP address which is answered for by the controller rather
+	 * than by an attached host, e.g., a load balancer's virtual IP. Virtual
+	 * hosts have a MAC address but no attachment point, and are not affected
+	 * by device manager events.
+	 * @param ip the virtual IP address
+	 * @param mac the MAC address to answer with
+	 */
+	public void addVirtualHost(int ip, long mac);
+
+	/**
+	 * Remove a virtual host.
+	 * @param ip the virtual IP address
+	 * @return true if the virtual host was removed, false if it was unknown
+	 */
+	public boolean removeVirtualHost(int ip);
+
+	/**
+	 * Subscribe to changes in the index.
+	 * @param listener notified of each change
+	 */
+	public void addListener(IHostIndexListener listener);
+}
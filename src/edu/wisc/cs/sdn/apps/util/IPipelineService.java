@@ -0,0 +1,49 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.List;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+/**
+ * Assigns switch tables to the stages of the packet processing pipeline.
+ * Stages always appear in the order of the constants below, and a packet
+ * matching no rule in one stage's table goes on to the next stage's table.
+ */
+public interface IPipelineService extends IFloodlightService
+{
+	/** ARP responder rules; the first table ARP requests reach. */
+	public static final String ARP = "arp";
+
+	/** Exact-match rules for load balanced connections. */
+	public static final String CONNECTIONS = "connections";
+
+	/** Wildcard rules sending new connections to virtual IPs to the controller. */
+	public static final String VIPS = "vips";
+
+	/** Rules sampling and counting flows to find elephants. */
+	public static final String ELEPHANTS = "elephants";
+
+	/** Routing rules; always the last stage. */
+	public static final String ROUTING = "routing";
+
+	/**
+	 * Get the table assigned to a stage.
+	 * @param stage the stage
+	 * @return the table
+	 * @throws IllegalArgumentException if the stage is not in the pipeline
+	 */
+	public byte getTable(String stage);
+
+	/**
+	 * Check whether a stage is in the pipeline.
+	 * @param stage the stage
+	 * @return true if the stage has a table, otherwise false
+	 */
+	public boolean hasStage(String stage);
+
+	/**
+	 * Get the stages in the pipeline.
+	 * @return the stages, in the order packets pass through them
+	 */
+	public List<String> getStages();
+}
@@ -0,0 +1,39 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+public interface IPortStatsService extends IFloodlightService
+{
+	/**
+	 * Get the smoothed utilization of a switch port: the busier of its two
+	 * directions as a fraction of the link capacity.
+	 * @param switchId DPID of the switch
+	 * @param port the port on the switch
+	 * @return the utilization, usually between 0 and 1; 0 if the port has
+	 *         not been measured yet
+	 */
+	public double getUtilization(long switchId, int port);
+
+	/**
+	 * Get the smoothed rate at which a switch port transmits, in bits per
+	 * second.
+	 * @param switchId DPID of the switch
+	 * @param port the port on the switch
+	 * @return the rate, 0 if the port has not been measured yet
+	 */
+	public double getTransmitRate(long switchId, int port);
+
+	/**
+	 * Get the smoothed rate at which a switch port receives, in bits per
+	 * second.
+	 * @param switchId DPID of the switch
+	 * @param port the port on the switch
+	 * @return the rate, 0 if the port has not been measured yet
+	 */
+	public double getReceiveRate(long switchId, int port);
+
+	/**
+	 * Get the number of seconds between polls.
+	 */
+	public int getInterval();
+}
@@ -0,0 +1,250 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Keeps flapping links out of the routing graph, like BGP route flap
+ * damping. Every time a link goes down it gains a penalty, which decays
+ * exponentially with a fixed half-life. A link whose penalty reaches the
+ * suppress threshold is suppressed: it is left out of the graph and its
+ * updates are absorbed, until its penalty decays below the reuse threshold.
+ * The penalty is capped so no link is suppressed for longer than a maximum
+ * time after its last flap. Both directions of a link share one penalty.
+ */
+public class LinkDampener
+{
+	/** Penalty added each time a link goes down. */
+	public static final double FLAP_PENALTY = 1000;
+
+	// Downs of a link within this many milliseconds count as one flap, since
+	// link discovery reports each direction separately
+	private static final long FLAP_GROUPING = 1000;
+
+	private double suppressThreshold;
+	private double reuseThreshold;
+	private double halfLife;
+	private double maxPenalty;
+
+	// Link, with its ends in a fixed order -> damping state
+	private Map<LinkKey,State> states;
+
+	// Number of links currently suppressed
+	private int suppressedCount;
+
+	// Number of times any link was suppressed
+	private long suppressions;
+
+	// Number of updates absorbed because their link was suppressed
+	private long absorbedUpdates;
+
+	private static class State
+	{
+		double penalty;
+		long updated;
+		long lastFlap;
+		boolean suppressed;
+		Link link;
+	}
+
+	private static final class LinkKey
+	{
+		final long a, b;
+		final int aPort, bPort;
+
+		LinkKey(Link link)
+		{
+			boolean forward = (link.getSrc() < link.getDst()
+					|| (link.getSrc() == link.getDst()
+						&& link.getSrcPort() <= link.getDstPort()));
+			this.a = (forward ? link.getSrc() : link.getDst());
+			this.aPort = (forward ? link.getSrcPort() : link.getDstPort());
+			this.b = (forward ? link.getDst() : link.getSrc());
+			this.bPort = (forward ? link.getDstPort() : link.getSrcPort());
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof LinkKey))
+			{ return false; }
+			LinkKey other = (LinkKey)obj;
+			return (other.a == this.a && other.aPort == this.aPort
+					&& other.b == this.b && other.bPort == this.bPort);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int hash = (int)(this.a ^ (this.a >>> 32));
+			hash = 31 * hash + this.aPort;
+			hash = 31 * hash + (int)(this.b ^ (this.b >>> 32));
+			return 31 * hash + this.bPort;
+		}
+	}
+
+	/**
+	 * Create a dampener.
+	 * @param suppressThreshold penalty at which a link is suppressed
+	 * @param reuseThreshold penalty below which a suppressed link is used again
+	 * @param halfLife seconds in which a penalty decays by half
+	 * @param maxSuppressTime most seconds a link stays suppressed after its
+	 *        last flap
+	 */
+	public LinkDampener(double suppressThreshold, double reuseThreshold,
+			int halfLife, int maxSuppressTime)
+	{
+		if (reuseThreshold <= 0 || reuseThreshold >= suppressThreshold
+				|| halfLife <= 0)
+		{ throw new IllegalArgumentException("Bad link damping parameters"); }
+		this.suppressThreshold = suppressThreshold;
+		this.reuseThreshold = reuseThreshold;
+		this.halfLife = halfLife * 1000.0;
+		this.maxPenalty = Math.max(suppressThreshold,
+				reuseThreshold * Math.pow(2, (double)maxSuppressTime / halfLife));
+		this.states = new HashMap<LinkKey,State>();
+	}
+
+	/**
+	 * Record a link going up or down.
+	 * @param link the link
+	 * @param down true if the link went down, false if it came up
+	 * @param now the current time in milliseconds
+	 * @return true if routing must see the update, false if the link is
+	 *         suppressed and the update was absorbed
+	 */
+	public synchronized boolean update(Link link, boolean down, long now)
+	{
+		LinkKey key = new LinkKey(link);
+		State state = this.states.get(key);
+		if (null == state)
+		{
+			// A link that never went down has nothing to remember
+			if (!down)
+			{ return true; }
+			state = new State();
+			state.updated = now;
+			state.lastFlap = now - FLAP_GROUPING;
+			this.states.put(key, state);
+		}
+		this.decay(state, now);
+		state.link = link;
+
+		if (down && now - state.lastFlap >= FLAP_GROUPING)
+		{
+			state.lastFlap = now;
+			state.penalty = Math.min(this.maxPenalty,
+					state.penalty + FLAP_PENALTY);
+			if (!state.suppressed && state.penalty >= this.suppressThreshold)
+			{
+				// The link leaving the graph is itself a change routing sees
+				state.suppressed = true;
+				this.suppressedCount++;
+				this.suppressions++;
+				return true;
+			}
+		}
+		if (state.suppressed)
+		{
+			this.absorbedUpdates++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether a link is left out of the routing graph.
+	 * @param link the link
+	 * @return true if the link is suppressed, otherwise false
+	 */
+	public synchronized boolean isSuppressed(Link link)
+	{
+		State state = this.states.get(new LinkKey(link));
+		return (state != null && state.suppressed);
+	}
+
+	/**
+	 * Leave suppressed links out of a collection of links.
+	 * @param links the links
+	 * @return the links that are not suppressed
+	 */
+	public synchronized Collection<Link> filter(Collection<Link> links)
+	{
+		if (0 == this.suppressedCount)
+		{ return links; }
+		List<Link> usable = new ArrayList<Link>(links.size());
+		for (Link link : links)
+		{
+			if (!this.isSuppressed(link))
+			{ usable.add(link); }
+		}
+		return usable;
+	}
+
+	/**
+	 * Decay every penalty, use suppressed links again once their penalty is
+	 * below the reuse threshold, and forget links whose penalty is gone.
+	 * @param now the current time in milliseconds
+	 * @return the links that are no longer suppressed
+	 */
+	public synchronized List<Link> release(long now)
+	{
+		List<Link> released = new ArrayList<Link>();
+		for (Iterator<State> it = this.states.values().iterator(); it.hasNext(); )
+		{
+			State state = it.next();
+			this.decay(state, now);
+			if (state.suppressed && state.penalty < this.reuseThreshold)
+			{
+				state.suppressed = false;
+				this.suppressedCount--;
+				released.add(state.link);
+			}
+			if (!state.suppressed && state.penalty < this.reuseThreshold / 2)
+			{ it.remove(); }
+		}
+		return released;
+	}
+
+	/**
+	 * Get the links that are currently suppressed.
+	 * @return one direction of each suppressed link
+	 */
+	public synchronized List<Link> getSuppressedLinks()
+	{
+		List<Link> suppressed = new ArrayList<Link>();
+		for (State state : this.states.values())
+		{
+			if (state.suppressed)
+			{ suppressed.add(state.link); }
+		}
+		return suppressed;
+	}
+
+	/**
+	 * Get the number of times any link was suppressed.
+	 */
+	public synchronized long getSuppressions()
+	{ return this.suppressions; }
+
+	/**
+	 * Get the number of updates absorbed because their link was suppressed.
+	 */
+	public synchronized long getAbsorbedUpdates()
+	{ return this.absorbedUpdates; }
+
+	private void decay(State state, long now)
+	{
+		if (now > state.updated)
+		{
+			state.penalty *= Math.pow(0.5, (now - state.updated) / this.halfLife);
+			state.updated = now;
+		}
+	}
+}
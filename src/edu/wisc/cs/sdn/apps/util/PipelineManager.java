@@ -0,0 +1,276 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionGotoTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IOFSwitch.PortChangeType;
+import net.floodlightcontroller.core.IOFSwitchListener;
+import net.floodlightcontroller.core.ImmutablePort;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+/**
+ * Numbers the switch tables of the configured pipeline stages in order, and
+ * installs in every switch the chain of lowest-priority rules that pass
+ * packets matching nothing in one table on to the next. Applications only
+ * install rules in the tables of their own stages, so no application has to
+ * know which others are loaded or which tables they use.
+ */
+public class PipelineManager implements IFloodlightModule, IPipelineService,
+		IOFSwitchListener, IControllerClusterListener
+{
+	public static final String MODULE_NAME = PipelineManager.class.getSimpleName();
+
+	// Every stage, in the order packets pass through them
+	private static final List<String> STAGE_ORDER = Arrays.asList(ARP,
+			CONNECTIONS, VIPS, ELEPHANTS, ROUTING);
+
+	private static final String DEFAULT_STAGES = ARP + "," + ROUTING;
+
+	// Rules passing packets to the next table lose to every other rule
+	private static final short CHAIN_PRIORITY = 0;
+
+	// Interface to the logging system
+    private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+
+    // Interface to Floodlight core for interacting with connected switches
+    private IFloodlightProviderService floodlightProv;
+
+    // Interface to the controllers sharing the switches
+    private IControllerClusterService cluster;
+
+    // Stages in the pipeline, in order; a stage's table is its index
+    private List<String> stages;
+
+	/**
+     * Loads dependencies and initializes data structures.
+     */
+	@Override
+	public void init(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Initializing %s...", MODULE_NAME));
+		Map<String,String> config = context.getConfigParams(this);
+		this.floodlightProv = context.getServiceImpl(
+				IFloodlightProviderService.class);
+		this.cluster = ControllerCluster.getService(context);
+
+		// Obtain stages from config; they must be known, appear in the
+		// standard order, and end with routing
+		String stageList = (config.containsKey("stages")
+				? config.get("stages") : DEFAULT_STAGES);
+		this.stages = new ArrayList<String>();
+		int last = -1;
+		for (String stage : stageList.split(","))
+		{
+			stage = stage.trim();
+			int position = STAGE_ORDER.indexOf(stage);
+			if (position < 0)
+			{ throw new FloodlightModuleException("Unknown pipeline stage: " + stage); }
+			if (position <= last)
+			{
+				throw new FloodlightModuleException(String.format(
+						"Pipeline stages must be in the order %s", STAGE_ORDER));
+			}
+			last = position;
+			this.stages.add(stage);
+		}
+		if (!ROUTING.equals(this.stages.get(this.stages.size() - 1)))
+		{ throw new FloodlightModuleException("The last pipeline stage must be routing"); }
+		this.stages = Collections.unmodifiableList(this.stages);
+		log.info("Pipeline stages: " + this.stages);
+	}
+
+	/**
+     * Subscribes to events and performs other startup tasks.
+     */
+	@Override
+	public void startUp(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Starting %s...", MODULE_NAME));
+		this.floodlightProv.addOFSwitchListener(this);
+		this.cluster.addListener(this);
+	}
+
+	/**
+	 * Get the table assigned to a stage.
+	 * @param stage the stage
+	 * @return the table
+	 * @throws IllegalArgumentException if the stage is not in the pipeline
+	 */
+	@Override
+	public byte getTable(String stage)
+	{
+		int table = this.stages.indexOf(stage);
+		if (table < 0)
+		{
+			throw new IllegalArgumentException(String.format(
+					"Stage %s is not in the pipeline %s", stage, this.stages));
+		}
+		return (byte)table;
+	}
+
+	/**
+	 * Check whether a stage is in the pipeline.
+	 * @param stage the stage
+	 * @return true if the stage has a table, otherwise false
+	 */
+	@Override
+	public boolean hasStage(String stage)
+	{ return this.stages.contains(stage); }
+
+	/**
+	 * Get the stages in the pipeline.
+	 * @return the stages, in the order packets pass through them
+	 */
+	@Override
+	public List<String> getStages()
+	{ return this.stages; }
+
+    /**
+     * Event handler called when a switch joins the network.
+     * @param DPID for the switch
+     */
+	@Override
+	public void switchAdded(long switchId)
+	{
+		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+		if (null == sw
+				|| !this.cluster.isLocal(switchId))
+		{ return; }
+		for (int table = 0; table < this.stages.size() - 1; table++)
+		{
+			OFInstruction instruction =
+					new OFInstructionGotoTable((byte)(table + 1));
+			SwitchCommands.installRule(sw, (byte)table, CHAIN_PRIORITY,
+					new OFMatch(), Arrays.asList(instruction));
+		}
+	}
+
+	/**
+	 * Event handler called when a switch leaves the network.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchRemoved(long switchId)
+	{ /* Nothing we need to do, since the switch's rules are gone too */ }
+
+	/**
+	 * Event handler called when the controller becomes the master for a switch.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchActivated(long switchId)
+	{ this.switchAdded(switchId); }
+
+	/**
+	 * Event handler called when a port on a switch goes up or down, or is
+	 * added or removed.
+	 * @param DPID for the switch
+	 * @param port the port on the switch whose status changed
+	 * @param type the type of status change (up, down, add, remove)
+	 */
+	@Override
+	public void switchPortChanged(long switchId, ImmutablePort port,
+			PortChangeType type)
+	{ /* Nothing we need to do */ }
+
+	/**
+	 * Event handler called when some attribute of a switch changes.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchChanged(long switchId)
+	{ /* Nothing we need to do */ }
+
+	/**
+	 * Event handler called when another controller reports a host.
+	 * @param host the host's current snapshot
+	 */
+	@Override
+	public void remoteHostUpdated(Host host)
+	{ /* Nothing we need to do */ }
+
+	/**
+	 * Event handler called when another controller no longer reports a host.
+	 * @param host the host's last snapshot
+	 */
+	@Override
+	public void remoteHostRemoved(Host host)
+	{ /* Nothing we need to do */ }
+
+	/**
+	 * Event handler called when the links reported by other controllers
+	 * changed.
+	 */
+	@Override
+	public void remoteLinksChanged()
+	{ /* Nothing we need to do */ }
+
+	/**
+	 * Event handler called when switches may have changed owner; switches
+	 * this controller took over need the chain.
+	 */
+	@Override
+	public void ownershipChanged()
+	{
+		for (long switchId : this.floodlightProv.getAllSwitchMap().keySet())
+		{ this.switchAdded(switchId); }
+	}
+
+    /**
+     * Tell the module system which services we provide.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>> getModuleServices()
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IPipelineService.class);
+		return services;
+	}
+
+	/**
+     * Tell the module system which services we implement.
+     */
+	@Override
+	public Map<Class<? extends IFloodlightService>, IFloodlightService>
+			getServiceImpls()
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> services =
+				new HashMap<Class<? extends IFloodlightService>,
+						IFloodlightService>();
+		// We are the class that implements the service
+		services.put(IPipelineService.class, this);
+		return services;
+	}
+
+	/**
+     * Tell the module system which modules we depend on.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>>
+			getModuleDependencies()
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IFloodlightProviderService.class);
+		return services;
+	}
+}
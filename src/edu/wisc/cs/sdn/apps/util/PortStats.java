@@ -0,0 +1,288 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.statistics.OFPortStatisticsReply;
+import org.openflow.protocol.statistics.OFPortStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+/**
+ * Polls every switch for port statistics and keeps an exponentially weighted
+ * moving average of each port's transmit and receive rates. The averages are
+ * written only by the polling task and published through volatile fields, so
+ * readers never take a lock.
+ */
+public class PortStats implements IFloodlightModule, IPortStatsService
+{
+	public static final String MODULE_NAME = PortStats.class.getSimpleName();
+
+	private static final int INTERVAL = 5;
+	private static final double ALPHA = 0.3;
+	private static final int LINK_CAPACITY_MBPS = 1000;
+
+	// Interface to the logging system
+    private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+
+    // Interface to Floodlight core for interacting with connected switches
+    private IFloodlightProviderService floodlightProv;
+
+    // Interface to thread pool service, used to schedule polls
+    private IThreadPoolService threadPool;
+
+    // Seconds between polls
+    private int interval;
+
+    // Weight of the newest sample in the moving averages
+    private double alpha;
+
+    // Capacity assumed for every link, in bits per second
+    private double linkCapacity;
+
+    // Switch DPID -> port number -> measurements
+    private Map<Long,Map<Integer,PortLoad>> loads;
+
+    // Task which polls the switches
+    private SingletonTask pollTask;
+
+    private static class PortLoad
+    {
+    	// Counters and time of the previous sample; only the poller uses them
+    	long lastTransmitBytes;
+    	long lastReceiveBytes;
+    	long lastTime;
+
+    	// Smoothed rates in bits per second
+    	volatile double transmitRate;
+    	volatile double receiveRate;
+    }
+
+	/**
+     * Loads dependencies and initializes data structures.
+     */
+	@Override
+	public void init(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Initializing %s...", MODULE_NAME));
+		Map<String,String> config = context.getConfigParams(this);
+		this.floodlightProv = context.getServiceImpl(
+				IFloodlightProviderService.class);
+		this.threadPool = context.getServiceImpl(IThreadPoolService.class);
+
+		this.interval = (config.containsKey("interval")
+				? Integer.parseInt(config.get("interval").trim()) : INTERVAL);
+		this.alpha = (config.containsKey("alpha")
+				? Double.parseDouble(config.get("alpha").trim()) : ALPHA);
+		int capacityMbps = (config.containsKey("linkCapacityMbps")
+				? Integer.parseInt(config.get("linkCapacityMbps").trim())
+				: LINK_CAPACITY_MBPS);
+		this.linkCapacity = capacityMbps * 1e6;
+		this.loads = new ConcurrentHashMap<Long,Map<Integer,PortLoad>>();
+	}
+
+	/**
+     * Subscribes to events and performs other startup tasks.
+     */
+	@Override
+	public void startUp(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Starting %s...", MODULE_NAME));
+		this.pollTask = new SingletonTask(
+				this.threadPool.getScheduledExecutor(), new Runnable() {
+					@Override
+					public void run()
+					{
+						try
+						{ poll(); }
+						catch (RuntimeException e)
+						{ log.error("Port statistics poll failed", e); }
+						finally
+						{ pollTask.reschedule(interval, TimeUnit.SECONDS); }
+					}
+				});
+		this.pollTask.reschedule(this.interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Request port statistics from every switch and fold the replies into
+	 * the moving averages.
+	 */
+	private void poll()
+	{
+		Map<Long,IOFSwitch> switches = this.floodlightProv.getAllSwitchMap();
+		this.loads.keySet().retainAll(switches.keySet());
+
+		OFPortStatisticsRequest portRequest = new OFPortStatisticsRequest();
+		portRequest.setPortNumber(OFPort.OFPP_ANY.getValue());
+		Map<Long,List<OFStatistics>> replies = SwitchCommands.queryStatistics(
+				switches.values(), OFStatisticsType.PORT, portRequest, 
+				this.interval);
+
+		for (Map.Entry<Long,List<OFStatistics>> reply : replies.entrySet())
+		{
+			List<OFStatistics> stats = reply.getValue();
+			long now = System.nanoTime();
+			Map<Integer,PortLoad> ports = this.loads.get(reply.getKey());
+			if (null == ports)
+			{
+				ports = new ConcurrentHashMap<Integer,PortLoad>();
+				this.loads.put(reply.getKey(), ports);
+			}
+			for (OFStatistics stat : stats)
+			{
+				if (stat instanceof OFPortStatisticsReply)
+				{ this.update(ports, (OFPortStatisticsReply)stat, now); }
+			}
+		}
+	}
+
+	private void update(Map<Integer,PortLoad> ports,
+			OFPortStatisticsReply stat, long now)
+	{
+		PortLoad load = ports.get(stat.getPortNumber());
+		if (null == load)
+		{
+			// The first sample only sets the baseline
+			load = new PortLoad();
+			load.lastTransmitBytes = stat.getTransmitBytes();
+			load.lastReceiveBytes = stat.getReceiveBytes();
+			load.lastTime = now;
+			ports.put(stat.getPortNumber(), load);
+			return;
+		}
+
+		double seconds = (now - load.lastTime) / 1e9;
+		if (seconds <= 0)
+		{ return; }
+		// Counters go backwards if the port was reset
+		double transmitRate = Math.max(0,
+				stat.getTransmitBytes() - load.lastTransmitBytes) * 8 / seconds;
+		double receiveRate = Math.max(0,
+				stat.getReceiveBytes() - load.lastReceiveBytes) * 8 / seconds;
+		load.transmitRate += this.alpha * (transmitRate - load.transmitRate);
+		load.receiveRate += this.alpha * (receiveRate - load.receiveRate);
+		load.lastTransmitBytes = stat.getTransmitBytes();
+		load.lastReceiveBytes = stat.getReceiveBytes();
+		load.lastTime = now;
+	}
+
+	private PortLoad getLoad(long switchId, int port)
+	{
+		Map<Integer,PortLoad> ports = this.loads.get(switchId);
+		return (null == ports ? null : ports.get(port));
+	}
+
+	/**
+	 * Get the smoothed utilization of a switch port: the busier of its two
+	 * directions as a fraction of the link capacity.
+	 * @param switchId DPID of the switch
+	 * @param port the port on the switch
+	 * @return the utilization, usually between 0 and 1; 0 if the port has
+	 *         not been measured yet
+	 */
+	@Override
+	public double getUtilization(long switchId, int port)
+	{
+		PortLoad load = this.getLoad(switchId, port);
+		if (null == load)
+		{ return 0; }
+		return Math.max(load.transmitRate, load.receiveRate)
+				/ this.linkCapacity;
+	}
+
+	/**
+	 * Get the smoothed rate at which a switch port transmits, in bits per
+	 * second.
+	 * @param switchId DPID of the switch
+	 * @param port the port on the switch
+	 * @return the rate, 0 if the port has not been measured yet
+	 */
+	@Override
+	public double getTransmitRate(long switchId, int port)
+	{
+		PortLoad load = this.getLoad(switchId, port);
+		return (null == load ? 0 : load.transmitRate);
+	}
+
+	/**
+	 * Get the smoothed rate at which a switch port receives, in bits per
+	 * second.
+	 * @param switchId DPID of the switch
+	 * @param port the port on the switch
+	 * @return the rate, 0 if the port has not been measured yet
+	 */
+	@Override
+	public double getReceiveRate(long switchId, int port)
+	{
+		PortLoad load = this.getLoad(switchId, port);
+		return (null == load ? 0 : load.receiveRate);
+	}
+
+	/**
+	 * Get the number of seconds between polls.
+	 */
+	@Override
+	public int getInterval()
+	{ return this.interval; }
+
+	/**
+     * Tell the module system which services we provide.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>> getModuleServices()
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IPortStatsService.class);
+		return services;
+	}
+
+	/**
+     * Tell the module system which services we implement.
+     */
+	@Override
+	public Map<Class<? extends IFloodlightService>, IFloodlightService>
+			getServiceImpls()
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> services =
+				new HashMap<Class<? extends IFloodlightService>,
+						IFloodlightService>();
+		// We are the class that implements the service
+		services.put(IPortStatsService.class, this);
+		return services;
+	}
+
+	/**
+     * Tell the module system which modules we depend on.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>>
+			getModuleDependencies()
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IFloodlightProviderService.class);
+		services.add(IThreadPoolService.class);
+		return services;
+	}
+}
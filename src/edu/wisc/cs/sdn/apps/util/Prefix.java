@@ -0,0 +1,80 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * An IPv4 address prefix, e.g., 10.0.1.0/24.
+ */
+public class Prefix
+{
+	private final int address;
+	private final int length;
+
+	/**
+	 * Create a prefix.
+	 * @param address any address in the prefix; bits beyond the prefix
+	 *        length are cleared
+	 * @param length number of leading bits in the prefix, 0 to 32
+	 */
+	public Prefix(int address, int length)
+	{
+		if (length < 0 || length > 32)
+		{ throw new IllegalArgumentException("Bad prefix length: " + length); }
+		this.length = length;
+		this.address = address & getMask(length);
+	}
+
+	/**
+	 * Get the mask for a prefix length.
+	 * @param length number of leading bits, 0 to 32
+	 * @return the mask
+	 */
+	public static int getMask(int length)
+	{ return (0 == length ? 0 : -1 << (32 - length)); }
+
+	public int getAddress()
+	{ return this.address; }
+
+	public int getLength()
+	{ return this.length; }
+
+	public int getMask()
+	{ return getMask(this.length); }
+
+	/**
+	 * Get the lowest address in the prefix, as an unsigned value.
+	 */
+	public long getFirst()
+	{ return this.address & 0xFFFFFFFFL; }
+
+	/**
+	 * Get the highest address in the prefix, as an unsigned value.
+	 */
+	public long getLast()
+	{ return (this.address | ~this.getMask()) & 0xFFFFFFFFL; }
+
+	/**
+	 * Check whether the prefix contains an address.
+	 * @param ip the address
+	 * @return true if the address is in the prefix, otherwise false
+	 */
+	public boolean contains(int ip)
+	{ return (ip & this.getMask()) == this.address; }
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (!(obj instanceof Prefix))
+		{ return false; }
+		Prefix other = (Prefix)obj;
+		return (other.address == this.address && other.length == this.length);
+	}
+
+	@Override
+	public int hashCode()
+	{ return 31 * this.address + this.length; }
+
+	@Override
+	public String toString()
+	{ return IPv4.fromIPv4Address(this.address) + "/" + this.length; }
+}
@@ -0,0 +1,170 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFOXMFieldType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Prefix routes installed in one flow table of each switch. The routes each
+ * switch holds are remembered, so bringing a switch up to date sends only
+ * the rules that were added, changed or withdrawn. Rule priority grows with
+ * prefix length, so the switch matches the longest prefix.
+ */
+public class PrefixRouteTable
+{
+	// Interface to the logging system
+    private static Logger log =
+            LoggerFactory.getLogger(PrefixRouteTable.class.getSimpleName());
+
+	// Switch table in which the routes are installed
+	private byte table;
+
+	// Switch DPID -> installed route -> output port
+	private Map<Long,Map<Prefix,Integer>> installed;
+
+	/**
+	 * Create a route table.
+	 * @param table the switch table in which routes are installed
+	 */
+	public PrefixRouteTable(byte table)
+	{
+		this.table = table;
+		this.installed = new HashMap<Long,Map<Prefix,Integer>>();
+	}
+
+	/**
+	 * Install and remove rules so a switch holds exactly a set of routes.
+	 * @param sw the switch
+	 * @param routes prefix -> output port
+	 */
+	public synchronized void apply(IOFSwitch sw, Map<Prefix,Integer> routes)
+	{
+		Map<Prefix,Integer> current = this.installed.get(sw.getId());
+		if (null == current)
+		{ current = Collections.emptyMap(); }
+
+		for (Prefix prefix : current.keySet())
+		{
+			if (!routes.containsKey(prefix))
+			{
+				SwitchCommands.removeRule(sw, this.table, getPriority(prefix),
+						getMatch(prefix));
+			}
+		}
+		int changed = 0;
+		for (Map.Entry<Prefix,Integer> route : routes.entrySet())
+		{
+			if (route.getValue().equals(current.get(route.getKey())))
+			{ continue; }
+			OFAction action = new OFActionOutput(route.getValue());
+			OFInstruction instruction = new OFInstructionApplyActions(
+					Arrays.asList(action));
+			SwitchCommands.installRule(sw, this.table, 
+					getPriority(route.getKey()), getMatch(route.getKey()),
+					Arrays.asList(instruction));
+			changed++;
+		}
+		if (changed > 0 || current.size() > routes.size())
+		{
+			log.info(String.format("Switch s%d now holds %d routes (%d changed)",
+					sw.getId(), routes.size(), changed));
+		}
+		this.installed.put(sw.getId(), new HashMap<Prefix,Integer>(routes));
+	}
+
+	/**
+	 * Forget the routes of switches that are no longer connected.
+	 * @param switches DPIDs of the connected switches
+	 */
+	public synchronized void retainSwitches(Set<Long> switches)
+	{ this.installed.keySet().retainAll(switches); }
+
+	/**
+	 * Forget the routes installed in a switch, so the next apply installs
+	 * all of them again.
+	 * @param switchId DPID of the switch
+	 */
+	public synchronized void forgetSwitch(long switchId)
+	{ this.installed.remove(switchId); }
+
+	/**
+	 * Assign each owner (e.g., a switch) the largest prefixes, no shorter
+	 * than a minimum length, that contain its addresses and no address of
+	 * another owner.
+	 * @param owners address -> owner; addresses are unsigned values
+	 * @param minLength shortest prefix to assign
+	 * @return prefix -> owner
+	 */
+	public static Map<Prefix,Long> assignPrefixes(Map<Long,Long> owners,
+			int minLength)
+	{
+		List<Long> addresses = new ArrayList<Long>(owners.keySet());
+		Collections.sort(addresses);
+
+		// A prefix belongs to one owner if it lies strictly between the
+		// nearest addresses, below and above, of other owners
+		Map<Prefix,Long> prefixes = new HashMap<Prefix,Long>();
+		int runStart = 0;
+		while (runStart < addresses.size())
+		{
+			long owner = owners.get(addresses.get(runStart));
+			int runEnd = runStart;
+			while (runEnd + 1 < addresses.size() 
+					&& owners.get(addresses.get(runEnd + 1)) == owner)
+			{ runEnd++; }
+			long below = (runStart > 0 ? addresses.get(runStart - 1) : -1);
+			long above = (runEnd + 1 < addresses.size() 
+					? addresses.get(runEnd + 1) : 1L << 32);
+
+			for (int i = runStart; i <= runEnd; i++)
+			{
+				int ip = (int)(long)addresses.get(i);
+				int length = 32;
+				while (length > minLength)
+				{
+					Prefix wider = new Prefix(ip, length - 1);
+					if (wider.getFirst() <= below || wider.getLast() >= above)
+					{ break; }
+					length--;
+				}
+				prefixes.put(new Prefix(ip, length), owner);
+			}
+			runStart = runEnd + 1;
+		}
+		return prefixes;
+	}
+
+	private static short getPriority(Prefix prefix)
+	{ return (short)(SwitchCommands.DEFAULT_PRIORITY + prefix.getLength()); }
+
+	private static OFMatch getMatch(Prefix prefix)
+	{
+		OFMatch match = new OFMatch().setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		if (32 == prefix.getLength())
+		{ 
+			match.setNetworkDestination(OFMatch.ETH_TYPE_IPV4, 
+					prefix.getAddress());
+		}
+		else
+		{
+			match.setField(OFOXMFieldType.IPV4_DST, prefix.getAddress(),
+					prefix.getMask());
+		}
+		return match;
+	}
+}
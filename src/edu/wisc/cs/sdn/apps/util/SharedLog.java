@@ -0,0 +1,175 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only log of one-line text records in a local file, shared by every
+ * controller process on the machine. Each process appends its own records
+ * and reads everyone's records in the order they were appended. The file is
+ * opened for appending, so each record is written at the end of the file
+ * with a single write even when several processes append at once.
+ * Records are read a chunk at a time, so the file may outgrow any buffer.
+ */
+public class SharedLog
+{
+	// Bytes read from the file at a time
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	// The log file
+	private File file;
+
+	// Stream appending to the file; opened on the first append
+	private FileOutputStream out;
+
+	// Offset of the first byte not yet read
+	private long offset;
+
+	/**
+	 * Open a log, creating the file on the first append if necessary.
+	 * @param path path of the log file
+	 */
+	public SharedLog(String path)
+	{
+		this.file = new File(path);
+		this.offset = 0;
+	}
+
+	/**
+	 * Get the path of the log file.
+	 */
+	public String getPath()
+	{ return this.file.getPath(); }
+
+	/**
+	 * Append a record to the log.
+	 * @param record the record; must not contain a newline
+	 * @throws IOException if the log cannot be written
+	 */
+	public synchronized void append(String record) throws IOException
+	{
+		if (record.indexOf('\n') >= 0)
+		{ throw new IllegalArgumentException("Record contains a newline"); }
+		if (null == this.out)
+		{ this.out = new FileOutputStream(this.file, true); }
+		this.out.write((record + "\n").getBytes("UTF-8"));
+		this.out.flush();
+	}
+
+	/**
+	 * Read the records appended, by any process, since the last read.
+	 * @return the records, in the order they were appended; a record still
+	 *         being written is returned by a later read
+	 * @throws IOException if the log cannot be read
+	 */
+	public synchronized List<String> read() throws IOException
+	{
+		List<String> records = new ArrayList<String>();
+		if (!this.file.exists())
+		{ return records; }
+
+		RandomAccessFile in = new RandomAccessFile(this.file, "r");
+		try
+		{
+			// A log that shrank was replaced; read it from the start
+			long length = in.length();
+			if (length < this.offset)
+			{ this.offset = 0; }
+			if (length == this.offset)
+			{ return records; }
+
+			// Read in chunks, carrying a record that spans two chunks over
+			byte[] chunk = new byte[(int)Math.min(length - this.offset,
+					CHUNK_SIZE)];
+			ByteArrayOutputStream partial = new ByteArrayOutputStream();
+			long position = this.offset;
+			in.seek(position);
+			while (position < length)
+			{
+				int count = in.read(chunk, 0,
+						(int)Math.min(chunk.length, length - position));
+				if (count < 0)
+				{ break; }
+
+				int start = 0;
+				for (int i = 0; i < count; i++)
+				{
+					if (chunk[i] != '\n')
+					{ continue; }
+					partial.write(chunk, start, i - start);
+					if (partial.size() > 0)
+					{ records.add(partial.toString("UTF-8")); }
+					partial.reset();
+					start = i + 1;
+					this.offset = position + start;
+				}
+				partial.write(chunk, start, count - start);
+				position += count;
+			}
+		}
+		finally
+		{ in.close(); }
+		return records;
+	}
+
+	/**
+	 * Record that a process is alive. Heartbeats are kept out of the log, in
+	 * an eight-byte file per process next to it that each heartbeat
+	 * overwrites, so the log only grows with the records appended.
+	 * @param name name of the process
+	 * @param time time of the heartbeat, in milliseconds
+	 * @throws IOException if the heartbeat cannot be written
+	 */
+	public void writeHeartbeat(String name, long time) throws IOException
+	{
+		RandomAccessFile out = new RandomAccessFile(
+				this.getHeartbeatFile(name), "rw");
+		try
+		{ out.write(ByteBuffer.allocate(8).putLong(time).array()); }
+		finally
+		{ out.close(); }
+	}
+
+	/**
+	 * Get the time of the last heartbeat of a process.
+	 * @param name name of the process
+	 * @return the time in milliseconds, -1 if the process never sent one
+	 * @throws IOException if the heartbeat cannot be read
+	 */
+	public long readHeartbeat(String name) throws IOException
+	{
+		File heartbeat = this.getHeartbeatFile(name);
+		if (heartbeat.length() < 8)
+		{ return -1; }
+		byte[] data = new byte[8];
+		RandomAccessFile in = new RandomAccessFile(heartbeat, "r");
+		try
+		{ in.readFully(data); }
+		finally
+		{ in.close(); }
+		return ByteBuffer.wrap(data).getLong();
+	}
+
+	private File getHeartbeatFile(String name)
+	{ return new File(this.file.getPath() + "." + name); }
+
+	/**
+	 * Stop appending to the log.
+	 */
+	public synchronized void close()
+	{
+		if (null == this.out)
+		{ return; }
+		try
+		{ this.out.close(); }
+		catch (IOException e)
+		{ /* Nothing more will be written anyway */ }
+		this.out = null;
+	}
+}
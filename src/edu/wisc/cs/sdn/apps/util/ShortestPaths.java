@@ -0,0 +1,73 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Hop-count shortest paths between switches.
+ */
+public class ShortestPaths
+{
+	/**
+	 * Compute, for every pair of switches, the port on which the first 
+	 * switch sends packets toward the second along a shortest path. Links
+	 * with an end outside the given switches are ignored, so paths can be
+	 * confined to part of the network.
+	 * @param switches DPIDs of the switches
+	 * @param links links between switches
+	 * @return switch DPID -> destination switch DPID -> port; destinations
+	 *         a switch cannot reach are absent
+	 */
+	public static Map<Long,Map<Long,Integer>> computeNextHops(
+			Set<Long> switches, Collection<Link> links)
+	{
+		// Switch DPID -> neighbor DPID -> port toward the neighbor
+		Map<Long,Map<Long,Integer>> neighbors = 
+				new HashMap<Long,Map<Long,Integer>>();
+		for (long sw : switches)
+		{ neighbors.put(sw, new HashMap<Long,Integer>()); }
+		for (Link link : links)
+		{
+			if (!switches.contains(link.getSrc()) 
+					|| !switches.contains(link.getDst()))
+			{ continue; }
+			neighbors.get(link.getSrc()).put(link.getDst(), link.getSrcPort());
+			neighbors.get(link.getDst()).put(link.getSrc(), link.getDstPort());
+		}
+		
+		Map<Long,Map<Long,Integer>> nextHops = 
+				new HashMap<Long,Map<Long,Integer>>();
+		for (long sw : switches)
+		{ nextHops.put(sw, new HashMap<Long,Integer>()); }
+		
+		// Breadth-first search outward from each destination
+		for (long dst : switches)
+		{
+			Set<Long> visited = new HashSet<Long>();
+			Queue<Long> queue = new LinkedList<Long>();
+			visited.add(dst);
+			queue.add(dst);
+			while (!queue.isEmpty())
+			{
+				long current = queue.remove();
+				for (long neighbor : neighbors.get(current).keySet())
+				{
+					if (visited.add(neighbor))
+					{
+						nextHops.get(neighbor).put(dst, 
+								neighbors.get(neighbor).get(current));
+						queue.add(neighbor);
+					}
+				}
+			}
+		}
+		return nextHops;
+	}
+}
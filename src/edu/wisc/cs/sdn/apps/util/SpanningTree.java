@@ -0,0 +1,121 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Loop-free tree over the switches, along which broadcasts are flooded.
+ * Links are considered in a fixed order, by their endpoints, and each link
+ * joining two parts of the tree is taken; this is a minimum spanning tree
+ * under distinct link weights, so every controller with the same links
+ * computes the same tree, and one link going up or down swaps at most one
+ * link of the tree.
+ */
+public class SpanningTree
+{
+	private static final Comparator<Link> LINK_ORDER = new Comparator<Link>() {
+		@Override
+		public int compare(Link a, Link b)
+		{
+			int result = compareLong(getLowSwitch(a), getLowSwitch(b));
+			if (0 == result)
+			{ result = compareLong(getHighSwitch(a), getHighSwitch(b)); }
+			if (0 == result)
+			{ result = compareLong(getLowPort(a), getLowPort(b)); }
+			if (0 == result)
+			{ result = compareLong(getHighPort(a), getHighPort(b)); }
+			return result;
+		}
+	};
+
+	/**
+	 * Compute the ports of each switch that are on the tree. Links with an
+	 * end outside the given switches are ignored; switches that are not
+	 * connected get one tree for each connected part.
+	 * @param switches DPIDs of the switches
+	 * @param links links between switches
+	 * @return switch DPID -> ports on tree links; every switch is present
+	 */
+	public static Map<Long,Set<Integer>> computeTreePorts(Set<Long> switches,
+			Collection<Link> links)
+	{
+		Map<Long,Set<Integer>> treePorts = new HashMap<Long,Set<Integer>>();
+		Map<Long,Long> parents = new HashMap<Long,Long>();
+		for (long sw : switches)
+		{
+			treePorts.put(sw, new HashSet<Integer>());
+			parents.put(sw, sw);
+		}
+
+		List<Link> ordered = new ArrayList<Link>();
+		for (Link link : links)
+		{
+			if (switches.contains(link.getSrc())
+					&& switches.contains(link.getDst())
+					&& link.getSrc() != link.getDst())
+			{ ordered.add(link); }
+		}
+		Collections.sort(ordered, LINK_ORDER);
+
+		// Kruskal's algorithm, with a union-find forest of switches; the
+		// second direction of a link always finds its ends already joined
+		for (Link link : ordered)
+		{
+			long srcRoot = findRoot(parents, link.getSrc());
+			long dstRoot = findRoot(parents, link.getDst());
+			if (srcRoot == dstRoot)
+			{ continue; }
+			parents.put(Math.max(srcRoot, dstRoot), Math.min(srcRoot, dstRoot));
+			treePorts.get(link.getSrc()).add(link.getSrcPort());
+			treePorts.get(link.getDst()).add(link.getDstPort());
+		}
+		return treePorts;
+	}
+
+	private static long findRoot(Map<Long,Long> parents, long sw)
+	{
+		long root = sw;
+		while (parents.get(root) != root)
+		{ root = parents.get(root); }
+
+		// Point every switch on the way straight at the root
+		while (sw != root)
+		{
+			long parent = parents.get(sw);
+			parents.put(sw, root);
+			sw = parent;
+		}
+		return root;
+	}
+
+	private static boolean isForward(Link link)
+	{
+		return (link.getSrc() < link.getDst()
+				|| (link.getSrc() == link.getDst()
+					&& link.getSrcPort() <= link.getDstPort()));
+	}
+
+	private static long getLowSwitch(Link link)
+	{ return (isForward(link) ? link.getSrc() : link.getDst()); }
+
+	private static long getHighSwitch(Link link)
+	{ return (isForward(link) ? link.getDst() : link.getSrc()); }
+
+	private static int getLowPort(Link link)
+	{ return (isForward(link) ? link.getSrcPort() : link.getDstPort()); }
+
+	private static int getHighPort(Link link)
+	{ return (isForward(link) ? link.getDstPort() : link.getSrcPort()); }
+
+	private static int compareLong(long a, long b)
+	{ return (a < b ? -1 : (a == b ? 0 : 1)); }
+}
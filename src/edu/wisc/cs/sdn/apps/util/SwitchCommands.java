@@ -2,14 +2,25 @@ package edu.wisc.cs.sdn.apps.util;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFStatisticsRequest;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
 import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,11 +54,15 @@ public class SwitchCommands
      *         rule will never be removed due to a lack of matching packets
      * @param bufferId apply the newly installed rule to the packet buffered
      *         in this provided slot on the switch
+     * @param cookie opaque value the switch reports back with the rule's
+     *         statistics and removal messages
+     * @param flags flow-mod flags (e.g., OFFlowMod.OFPFF_SEND_FLOW_REM)
      * @return true if the rule was sent to the switch, otherwise false
      */
     public static boolean installRule(IOFSwitch sw, byte table, short priority,
             OFMatch matchCriteria, List<OFInstruction> instructions, 
-            short hardTimeout, short idleTimeout, int bufferId)
+            short hardTimeout, short idleTimeout, int bufferId, long cookie,
+            short flags)
     {
         OFFlowMod rule = new OFFlowMod();
         rule.setHardTimeout(hardTimeout);
@@ -55,6 +70,8 @@ public class SwitchCommands
         rule.setPriority(priority);
         rule.setTableId(table);
         rule.setBufferId(bufferId);
+        rule.setCookie(cookie);
+        rule.setFlags(flags);
 
         rule.setMatch(matchCriteria.clone());
         rule.setInstructions(instructions);
@@ -79,6 +96,32 @@ public class SwitchCommands
         return true;
     }
     
+    /**
+     * Installs a rule in a switch's flow table.
+     * @param sw the switch in which the rule should be installed
+     * @param table the table in which the rule should be installed
+     * @param priority the priority of the rule; larger values are higher 
+     *         priority
+     * @param matchCriteria the match criteria for the rule
+     * @param instructions the actions to apply to packets matching the rule
+     * @param hardTimeout the rule should be removed after hardTimeout seconds 
+     *         have elapsed since the rule was installed; if 0, then the rule
+     *         will never be removed
+     * @param idleTimeout the rules should be removed after idleTimeout seconds
+     *         have elapsed since a packet last matched the rule; if 0, then the
+     *         rule will never be removed due to a lack of matching packets
+     * @param bufferId apply the newly installed rule to the packet buffered
+     *         in this provided slot on the switch
+     * @return true if the rule was sent to the switch, otherwise false
+     */
+    public static boolean installRule(IOFSwitch sw, byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions, 
+            short hardTimeout, short idleTimeout, int bufferId)
+    {
+    	return installRule(sw, table, priority, matchCriteria, instructions, 
+    			hardTimeout, idleTimeout, bufferId, 0, (short)0);
+    }
+    
     /**
      * Installs a rule in a switch's flow table.
      * @param sw the switch in which the rule should be installed
@@ -152,6 +195,90 @@ public class SwitchCommands
         return true;
     }
     
+    /**
+     * Remove the rule with exactly the given priority and match criteria from
+     * a switch's flow table, leaving more specific rules in place.
+     * @param sw the switch from which the rule should be removed
+     * @param table the table from which the rule should be removed
+     * @param priority priority of the rule
+     * @param matchCriteria match criteria of the rule
+     * @return true if the delete was sent to the switch, otherwise false
+     */
+    public static boolean removeRule(IOFSwitch sw, byte table, short priority,
+    		OFMatch matchCriteria)
+    {
+        OFFlowMod rule = new OFFlowMod();
+        rule.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
+        rule.setTableId(table);
+        rule.setPriority(priority);
+
+        rule.setMatch(matchCriteria.clone());
+        rule.setLength((short)OFFlowMod.MINIMUM_LENGTH);
+
+        try
+        {
+            sw.write(rule, null);
+            sw.flush();
+            log.debug("Removing rule: "+rule);
+        }
+        catch (IOException e)
+        {
+            log.error("Failed to remove rule: "+rule);
+            return false;
+        }
+
+        return true;
+    }
+    
+    /**
+     * Remove all rules whose cookie matches from a switch's flow table.
+     * @param sw the switch from which the rules should be removed
+     * @param table the table from which the rules should be removed
+     * @param cookie cookie of the rules to delete
+     * @param cookieMask bits of the cookie that must match
+     * @return true if the delete was sent to the switch, otherwise false
+     */
+    public static boolean removeRules(IOFSwitch sw, byte table, long cookie,
+    		long cookieMask)
+    { return removeRules(sw, table, new OFMatch(), cookie, cookieMask); }
+    
+    /**
+     * Remove all rules whose match criteria and cookie match from a switch's
+     * flow table.
+     * @param sw the switch from which the rules should be removed
+     * @param table the table from which the rules should be removed
+     * @param matchCriteria match criteria specifying the rules to delete
+     * @param cookie cookie of the rules to delete
+     * @param cookieMask bits of the cookie that must match
+     * @return true if the delete was sent to the switch, otherwise false
+     */
+    public static boolean removeRules(IOFSwitch sw, byte table, 
+    		OFMatch matchCriteria, long cookie, long cookieMask)
+    {
+        OFFlowMod rule = new OFFlowMod();
+        rule.setCommand(OFFlowMod.OFPFC_DELETE);
+        rule.setTableId(table);
+        rule.setCookie(cookie);
+        rule.setCookieMask(cookieMask);
+
+        rule.setMatch(matchCriteria.clone());
+        rule.setLength((short)OFFlowMod.MINIMUM_LENGTH);
+
+        try
+        {
+            sw.write(rule, null);
+            sw.flush();
+            log.debug("Removing rules: "+rule);
+        }
+        catch (IOException e)
+        {
+            log.error("Failed to remove rules: "+rule);
+            return false;
+        }
+
+        return true;
+    }
+    
 	/**
 	 * Sends a packet out of a switch.
 	 * @param outSw the switch out which the packet should be forwarded
@@ -194,4 +321,80 @@ public class SwitchCommands
         
         return true;
 	}
+
+	/**
+	 * Requests statistics from several switches and waits for the replies.
+	 * All requests are sent before waiting for any reply.
+	 * @param switches the switches to query
+	 * @param type the type of statistics (e.g., FLOW, PORT, TABLE)
+	 * @param body the request body, or null if the type takes none
+	 * @param timeout seconds to wait for each switch's reply
+	 * @return switch DPID -> statistics, for each switch that replied in time
+	 */
+	public static Map<Long,List<OFStatistics>> queryStatistics(
+			Collection<IOFSwitch> switches, OFStatisticsType type, 
+			OFStatistics body, int timeout)
+	{
+		Map<Long,Future<List<OFStatistics>>> replies =
+				new HashMap<Long,Future<List<OFStatistics>>>();
+		for (IOFSwitch sw : switches)
+		{
+			OFStatisticsRequest request = new OFStatisticsRequest();
+			request.setStatisticType(type);
+			int length = OFStatisticsRequest.MINIMUM_LENGTH;
+			if (body != null)
+			{
+				request.setStatistics(Collections.singletonList(body));
+				length += body.getLength();
+			}
+			request.setLength((short)length);
+			try
+			{ replies.put(sw.getId(), sw.queryStatistics(request)); }
+			catch (IOException e)
+			{
+				log.error(String.format("Failed to request %s statistics from s%d",
+						type, sw.getId()));
+			}
+		}
+
+		Map<Long,List<OFStatistics>> stats = 
+				new HashMap<Long,List<OFStatistics>>();
+		for (Map.Entry<Long,Future<List<OFStatistics>>> reply :
+				replies.entrySet())
+		{
+			List<OFStatistics> switchStats = null;
+			try
+			{ switchStats = reply.getValue().get(timeout, TimeUnit.SECONDS); }
+			catch (Exception e)
+			{ /* Treated like no reply */ }
+			if (null == switchStats)
+			{
+				log.debug(String.format("No %s statistics from s%d", type,
+						reply.getKey()));
+				continue;
+			}
+			stats.put(reply.getKey(), switchStats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Requests the statistics of every rule in one table from several 
+	 * switches and waits for the replies.
+	 * @param switches the switches to query
+	 * @param table the table whose rules are wanted
+	 * @param timeout seconds to wait for each switch's reply
+	 * @return switch DPID -> rule statistics, for each switch that replied 
+	 *         in time
+	 */
+	public static Map<Long,List<OFStatistics>> queryFlowStatistics(
+			Collection<IOFSwitch> switches, byte table, int timeout)
+	{
+		OFFlowStatisticsRequest flowRequest = new OFFlowStatisticsRequest();
+		flowRequest.setTableId(table);
+		flowRequest.setMatch(new OFMatch());
+		flowRequest.setOutPort(OFPort.OFPP_ANY.getValue());
+		return queryStatistics(switches, OFStatisticsType.FLOW, flowRequest,
+				timeout);
+	}
 }
@@ -0,0 +1,106 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+
+/**
+ * Builds TCP segments the controller sends on behalf of hosts or virtual IPs.
+ */
+public class TcpPackets
+{
+	public static final short FLAG_FIN = 0x01;
+	public static final short FLAG_SYN = 0x02;
+	public static final short FLAG_RST = 0x04;
+	public static final short FLAG_ACK = 0x10;
+
+	private static final byte TTL = 64;
+	private static final short WINDOW = 8192;
+
+	/**
+	 * Build a TCP segment with no payload.
+	 * @param srcMAC source MAC address
+	 * @param dstMAC destination MAC address
+	 * @param srcIP source IP address
+	 * @param dstIP destination IP address
+	 * @param srcPort source TCP port
+	 * @param dstPort destination TCP port
+	 * @param sequence sequence number
+	 * @param acknowledge acknowledgment number
+	 * @param flags TCP flags
+	 * @return the Ethernet frame carrying the segment
+	 */
+	public static Ethernet buildSegment(byte[] srcMAC, byte[] dstMAC,
+			int srcIP, int dstIP, short srcPort, short dstPort, int sequence,
+			int acknowledge, short flags)
+	{
+		TCP tcp = new TCP()
+				.setSourcePort(srcPort)
+				.setDestinationPort(dstPort)
+				.setSequence(sequence)
+				.setAcknowledge(acknowledge)
+				.setFlags(flags)
+				.setDataOffset((byte)5)
+				.setWindowSize(0 == (flags & FLAG_RST) ? WINDOW : 0);
+
+		IPv4 ip = (IPv4)new IPv4()
+				.setTtl(TTL)
+				.setProtocol(IPv4.PROTOCOL_TCP)
+				.setSourceAddress(srcIP)
+				.setDestinationAddress(dstIP)
+				.setPayload(tcp);
+
+		return (Ethernet)new Ethernet()
+				.setEtherType(Ethernet.TYPE_IPv4)
+				.setSourceMACAddress(srcMAC)
+				.setDestinationMACAddress(dstMAC)
+				.setPayload(ip);
+	}
+
+	/**
+	 * Build the reset a receiver sends for a segment that belongs to no
+	 * connection, following RFC 793: if the segment carries an ACK the reset
+	 * takes its sequence number from that ACK, otherwise the reset has
+	 * sequence number 0 and acknowledges everything the segment occupied.
+	 * @param received the segment to answer
+	 * @return the reset, addressed back to the segment's sender; null if the
+	 *         segment is itself a reset, which must never be answered
+	 */
+	public static Ethernet buildReset(Ethernet received)
+	{
+		IPv4 ip = (IPv4)received.getPayload();
+		TCP tcp = (TCP)ip.getPayload();
+		short flags = tcp.getFlags();
+		if (0 != (flags & FLAG_RST))
+		{ return null; }
+
+		int sequence;
+		int acknowledge;
+		short replyFlags;
+		if (0 != (flags & FLAG_ACK))
+		{
+			sequence = tcp.getAcknowledge();
+			acknowledge = 0;
+			replyFlags = FLAG_RST;
+		}
+		else
+		{
+			// SYN and FIN each occupy one sequence number
+			int length = (ip.getTotalLength() & 0xFFFF)
+					- (ip.getHeaderLength() & 0xF) * 4
+					- (tcp.getDataOffset() & 0xF) * 4;
+			if (0 != (flags & FLAG_SYN))
+			{ length++; }
+			if (0 != (flags & FLAG_FIN))
+			{ length++; }
+			sequence = 0;
+			acknowledge = tcp.getSequence() + Math.max(0, length);
+			replyFlags = (short)(FLAG_RST | FLAG_ACK);
+		}
+
+		return buildSegment(received.getDestinationMACAddress(),
+				received.getSourceMACAddress(), ip.getDestinationAddress(),
+				ip.getSourceAddress(), tcp.getDestinationPort(),
+				tcp.getSourcePort(), sequence, acknowledge, replyFlags);
+	}
+}
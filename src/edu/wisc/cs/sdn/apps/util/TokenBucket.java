@@ -0,0 +1,49 @@
+package edu.wisc.cs.sdn.apps.util;
+
+/**
+ * Token bucket rate limiter. Tokens accrue at a fixed rate up to a burst
+ * size, and each admitted event consumes one token.
+ */
+public class TokenBucket
+{
+	// Tokens added per nanosecond
+	private double ratePerNano;
+
+	// Maximum number of tokens the bucket can hold
+	private double burst;
+
+	// Tokens currently in the bucket
+	private double tokens;
+
+	// Time at which tokens were last added, in nanoseconds
+	private long lastRefill;
+
+	/**
+	 * Create a full token bucket.
+	 * @param ratePerSecond number of events admitted per second
+	 * @param burst maximum number of events admitted at once
+	 */
+	public TokenBucket(double ratePerSecond, double burst)
+	{
+		this.ratePerNano = ratePerSecond / 1e9;
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Take a token if one is available.
+	 * @return true if the event is admitted, otherwise false
+	 */
+	public synchronized boolean tryAcquire()
+	{
+		long now = System.nanoTime();
+		this.tokens = Math.min(this.burst,
+				this.tokens + (now - this.lastRefill) * this.ratePerNano);
+		this.lastRefill = now;
+		if (this.tokens < 1)
+		{ return false; }
+		this.tokens -= 1;
+		return true;
+	}
+}
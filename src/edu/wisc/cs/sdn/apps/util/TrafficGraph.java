@@ -0,0 +1,290 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Switch graph weighted by link utilization, for routing away from busy
+ * links. Every link contributes an edge in each direction, and edges are
+ * numbered so the graph lives in primitive arrays indexed by edge: the
+ * switches at either end, the port on the sending switch, and the
+ * utilization of that port as last used for routing. An edge costs one hop
+ * plus a penalty that grows as its port approaches saturation.
+ */
+public class TrafficGraph
+{
+	// Smallest spare capacity assumed on a link, so a saturated link has a
+	// large but finite cost
+	private static final double MIN_HEADROOM = 0.01;
+
+	// Switch index -> DPID, and DPID -> switch index
+	private long[] switchIds;
+	private Map<Long,Integer> indexes;
+
+	// Edge -> sending switch, receiving switch, and port on the sender
+	private int[] tails;
+	private int[] heads;
+	private int[] ports;
+
+	// Edge -> utilization of its port, as last used for routing
+	private double[] utilization;
+
+	// Edges entering switch s are inEdges[inStart[s]] .. inEdges[inStart[s+1]-1]
+	private int[] inStart;
+	private int[] inEdges;
+
+	// Sending switch index and port -> edge
+	private Map<Long,Integer> edgesByPort;
+
+	/**
+	 * Build a graph.
+	 * @param switches DPIDs of the switches
+	 * @param links links between switches; links with an end outside the
+	 *        given switches are ignored
+	 * @param previous the graph this one replaces, whose utilizations carry
+	 *        over to ports still in use; may be null
+	 */
+	public TrafficGraph(Set<Long> switches, Collection<Link> links,
+			TrafficGraph previous)
+	{
+		this.switchIds = new long[switches.size()];
+		this.indexes = new HashMap<Long,Integer>();
+		for (long sw : switches)
+		{
+			this.switchIds[this.indexes.size()] = sw;
+			this.indexes.put(sw, this.indexes.size());
+		}
+
+		// Each port leads to one switch, so both directions of a link, and
+		// each direction reported twice, yield one edge per port
+		int[] tails = new int[links.size() * 2];
+		int[] heads = new int[tails.length];
+		int[] ports = new int[tails.length];
+		this.edgesByPort = new HashMap<Long,Integer>();
+		int count = 0;
+		for (Link link : links)
+		{
+			Integer src = this.indexes.get(link.getSrc());
+			Integer dst = this.indexes.get(link.getDst());
+			if (null == src || null == dst)
+			{ continue; }
+			for (int direction = 0; direction < 2; direction++)
+			{
+				int tail = (0 == direction ? src : dst);
+				int port = (0 == direction ? link.getSrcPort() : link.getDstPort());
+				long key = portKey(tail, port);
+				if (this.edgesByPort.containsKey(key))
+				{ continue; }
+				this.edgesByPort.put(key, count);
+				tails[count] = tail;
+				heads[count] = (0 == direction ? dst : src);
+				ports[count] = port;
+				count++;
+			}
+		}
+		this.tails = Arrays.copyOf(tails, count);
+		this.heads = Arrays.copyOf(heads, count);
+		this.ports = Arrays.copyOf(ports, count);
+
+		this.utilization = new double[count];
+		if (previous != null)
+		{
+			for (int e = 0; e < count; e++)
+			{
+				this.utilization[e] = previous.getUtilization(
+						this.switchIds[this.tails[e]], this.ports[e]);
+			}
+		}
+
+		// Group edges by receiving switch, for searches from a destination
+		this.inStart = new int[this.switchIds.length + 1];
+		for (int e = 0; e < count; e++)
+		{ this.inStart[this.heads[e] + 1]++; }
+		for (int s = 0; s < this.switchIds.length; s++)
+		{ this.inStart[s + 1] += this.inStart[s]; }
+		this.inEdges = new int[count];
+		int[] fill = Arrays.copyOf(this.inStart, this.switchIds.length);
+		for (int e = 0; e < count; e++)
+		{ this.inEdges[fill[this.heads[e]]++] = e; }
+	}
+
+	/**
+	 * Get the number of edges in the graph; twice the number of links.
+	 */
+	public int getEdgeCount()
+	{ return this.tails.length; }
+
+	/**
+	 * Get the utilization of a switch port, as last used for routing.
+	 * @param switchId DPID of the switch
+	 * @param port the port on the switch
+	 * @return the utilization, 0 if the port is not on a link in the graph
+	 */
+	public double getUtilization(long switchId, int port)
+	{
+		Integer index = this.indexes.get(switchId);
+		Integer edge = (null == index ? null
+				: this.edgesByPort.get(portKey(index, port)));
+		return (null == edge ? 0 : this.utilization[edge]);
+	}
+
+	/**
+	 * Take new utilization measurements, ignoring any port whose
+	 * utilization moved less than a threshold from the value last used.
+	 * @param stats source of port utilization measurements
+	 * @param hysteresis least change in utilization that is taken
+	 * @return true if some edge's utilization changed, otherwise false
+	 */
+	public boolean updateUtilization(IPortStatsService stats, double hysteresis)
+	{
+		boolean changed = false;
+		for (int e = 0; e < this.utilization.length; e++)
+		{
+			double measured = stats.getUtilization(
+					this.switchIds[this.tails[e]], this.ports[e]);
+			if (Math.abs(measured - this.utilization[e]) > hysteresis)
+			{
+				this.utilization[e] = measured;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Compute the port on which each switch sends packets toward a
+	 * destination switch along a least-cost path. A switch keeps its current
+	 * port if that port leads to a switch closer to the destination and its
+	 * path costs at most a fraction more than the best one, so paths move
+	 * only for a clear gain; since every kept port leads closer to the
+	 * destination, the paths stay loop-free.
+	 * @param dst DPID of the destination switch
+	 * @param utilizationWeight how much a saturated link costs compared to a
+	 *        hop; 0 makes every edge cost one hop
+	 * @param current switch DPID -> port currently used toward the
+	 *        destination; may be null
+	 * @param hysteresis fraction by which the current path may cost more
+	 *        than the best path and still be kept
+	 * @return switch DPID -> port; the destination and switches that cannot
+	 *         reach it are absent
+	 */
+	public Map<Long,Integer> computeNextHops(long dst, double utilizationWeight,
+			Map<Long,Integer> current, double hysteresis)
+	{
+		Map<Long,Integer> nextHops = new HashMap<Long,Integer>();
+		Integer target = this.indexes.get(dst);
+		if (null == target)
+		{ return nextHops; }
+
+		int n = this.switchIds.length;
+		double[] distance = new double[n];
+		Arrays.fill(distance, Double.POSITIVE_INFINITY);
+		int[] via = new int[n];
+		Arrays.fill(via, -1);
+
+		// Dijkstra outward from the destination over reversed edges, with a
+		// binary heap holding at most one entry per relaxation
+		int[] heapNodes = new int[this.tails.length + 1];
+		double[] heapKeys = new double[this.tails.length + 1];
+		int heapSize = 0;
+		distance[target] = 0;
+		heapNodes[heapSize] = target;
+		heapKeys[heapSize++] = 0;
+		while (heapSize > 0)
+		{
+			int node = heapNodes[0];
+			double key = heapKeys[0];
+			heapSize--;
+			siftDown(heapNodes, heapKeys, heapSize, heapNodes[heapSize],
+					heapKeys[heapSize]);
+			if (key > distance[node])
+			{ continue; }
+			for (int i = this.inStart[node]; i < this.inStart[node + 1]; i++)
+			{
+				int e = this.inEdges[i];
+				int tail = this.tails[e];
+				double candidate = key + this.getCost(e, utilizationWeight);
+				if (candidate < distance[tail])
+				{
+					distance[tail] = candidate;
+					via[tail] = e;
+					siftUp(heapNodes, heapKeys, heapSize++, tail, candidate);
+				}
+			}
+		}
+
+		for (int s = 0; s < n; s++)
+		{
+			int e = via[s];
+			if (s == target || e < 0)
+			{ continue; }
+			Integer currentPort = (null == current ? null
+					: current.get(this.switchIds[s]));
+			if (currentPort != null && currentPort != this.ports[e])
+			{
+				Integer kept = this.edgesByPort.get(portKey(s, currentPort));
+				if (kept != null && distance[this.heads[kept]] < distance[s]
+						&& this.getCost(kept, utilizationWeight)
+							+ distance[this.heads[kept]]
+							<= distance[s] * (1 + hysteresis))
+				{ e = kept; }
+			}
+			nextHops.put(this.switchIds[s], this.ports[e]);
+		}
+		return nextHops;
+	}
+
+	private double getCost(int edge, double utilizationWeight)
+	{
+		double used = Math.max(0, this.utilization[edge]);
+		return 1 + utilizationWeight * used
+				/ Math.max(MIN_HEADROOM, 1 - used);
+	}
+
+	private static long portKey(int switchIndex, int port)
+	{ return ((long)switchIndex << 32) | (port & 0xFFFFFFFFL); }
+
+	private static void siftUp(int[] nodes, double[] keys, int slot, int node,
+			double key)
+	{
+		while (slot > 0)
+		{
+			int parent = (slot - 1) >>> 1;
+			if (keys[parent] <= key)
+			{ break; }
+			nodes[slot] = nodes[parent];
+			keys[slot] = keys[parent];
+			slot = parent;
+		}
+		nodes[slot] = node;
+		keys[slot] = key;
+	}
+
+	private static void siftDown(int[] nodes, double[] keys, int size,
+			int node, double key)
+	{
+		if (0 == size)
+		{ return; }
+		int slot = 0;
+		while (true)
+		{
+			int child = 2 * slot + 1;
+			if (child >= size)
+			{ break; }
+			if (child + 1 < size && keys[child + 1] < keys[child])
+			{ child++; }
+			if (keys[child] >= key)
+			{ break; }
+			nodes[slot] = nodes[child];
+			keys[slot] = keys[child];
+			slot = child;
+		}
+		nodes[slot] = node;
+		keys[slot] = key;
+	}
+}